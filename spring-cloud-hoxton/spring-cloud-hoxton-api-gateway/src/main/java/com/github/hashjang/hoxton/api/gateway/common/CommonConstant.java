@@ -1,5 +1,16 @@
 package com.github.hashjang.hoxton.api.gateway.common;
 
 public interface CommonConstant {
+    /**
+     * 微服务名称，RecordServiceNameFilter 放在 exchange 的 attribute 里面，不放在请求头里面
+     */
     String SERVICE_NAME = "SERVICE-NAME";
+    /**
+     * 告诉被调用的微服务还剩多少毫秒，和 spring-cloud-iiford 的 RequestDeadline.HEADER 一致
+     */
+    String REQUEST_TIMEOUT = "X-Request-Timeout";
+    /**
+     * EncryptFilter 解密请求体、加密响应体用的 key，不转发给被调用的微服务
+     */
+    String ENCRYPT_KEY = "X-Encrypt-Key";
 }
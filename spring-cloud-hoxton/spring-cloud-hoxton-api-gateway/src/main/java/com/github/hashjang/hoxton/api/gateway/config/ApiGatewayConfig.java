@@ -6,12 +6,15 @@ import org.springframework.cloud.gateway.config.GatewayProperties;
 import org.springframework.cloud.gateway.event.EnableBodyCachingEvent;
 import org.springframework.cloud.gateway.filter.AdaptCachedBodyGlobalFilter;
 import org.springframework.cloud.loadbalancer.annotation.LoadBalancerClients;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 
 import javax.annotation.PostConstruct;
+import java.time.Duration;
 
 @Configuration
-@EnableConfigurationProperties(ApiGatewayRetryConfig.class)
+@EnableConfigurationProperties({ApiGatewayRetryConfig.class, BodyCaptureConfig.class})
 @LoadBalancerClients(defaultConfiguration = CommonLoadBalancerConfig.class)
 public class ApiGatewayConfig {
     @Autowired
@@ -19,6 +22,16 @@ public class ApiGatewayConfig {
     @Autowired
     private GatewayProperties gatewayProperties;
 
+    /**
+     * 所有微服务共享，放在父 context 里面，InstanceLoadStatsFilter 记录，每个微服务的 LoadBalancer 读取
+     */
+    @Bean
+    public InstanceLoadStatsRegistry instanceLoadStatsRegistry(Environment environment) {
+        return new InstanceLoadStatsRegistry(environment.getProperty(
+                CommonLoadBalancerConfig.PEAK_EWMA_DECAY_TIME, Duration.class, Duration.ofSeconds(10)
+        ));
+    }
+
     @PostConstruct
     public void init() {
         //让每一个路径都做body Cache，这样重试有Body的请求的时候，重试的请求不会没有body，因为原始body是一次性的基于netty的FluxReceive
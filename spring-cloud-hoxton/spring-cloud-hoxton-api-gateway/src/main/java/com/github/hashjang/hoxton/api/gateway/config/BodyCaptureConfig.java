@@ -0,0 +1,36 @@
+package com.github.hashjang.hoxton.api.gateway.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.Set;
+
+/**
+ * 请求响应 body 采样记录的配置，只有 enabled 为 true 的时候才会注册 BodyCaptureFilter
+ */
+@Data
+@ConfigurationProperties(prefix = "spring.cloud.gateway.body-capture")
+public class BodyCaptureConfig {
+    private boolean enabled = false;
+    /**
+     * 只记录这些路由，为空则所有路由
+     */
+    private Set<String> routes = Set.of();
+    /**
+     * 采样率，0 到 1
+     */
+    private double sampleRate = 0.01;
+    /**
+     * 是否允许通过请求头强制记录，默认关闭：网关是对外的，任何客户端都可以带这个请求头让网关打印 body
+     * 只在排查问题的时候打开，并且最好只在内网的网关打开
+     */
+    private boolean headerTriggerEnabled = false;
+    /**
+     * headerTriggerEnabled 为 true 的时候，请求带了这个请求头（值为 true）的时候一定记录，方便排查问题
+     */
+    private String header = "X-Capture-Body";
+    /**
+     * 每个 body 最多记录多少字节，超过的截断
+     */
+    private int maxBytes = 1024;
+}
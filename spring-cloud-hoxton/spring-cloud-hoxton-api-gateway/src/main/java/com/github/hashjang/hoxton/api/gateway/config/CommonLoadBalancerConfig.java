@@ -17,6 +17,8 @@ import org.springframework.core.annotation.Order;
 import org.springframework.core.env.Environment;
 
 public class CommonLoadBalancerConfig {
+    public static final String PEAK_EWMA_ENABLED = "spring.cloud.loadbalancer.peak-ewma.enabled";
+    public static final String PEAK_EWMA_DECAY_TIME = "spring.cloud.loadbalancer.peak-ewma.decay-time";
 
     private volatile boolean isValid = false;
 
@@ -57,11 +59,20 @@ public class CommonLoadBalancerConfig {
     public ReactorLoadBalancer<ServiceInstance> reactorServiceInstanceLoadBalancer(
             Environment environment,
             ServiceInstanceListSupplier serviceInstanceListSupplier,
-            Tracer tracer) {
+            Tracer tracer,
+            InstanceLoadStatsRegistry instanceLoadStatsRegistry) {
         if (!isValid) {
             throw new IllegalStateException("should use the ServiceInstanceListSupplier in this configuration, please check config");
         }
         String name = environment.getProperty(LoadBalancerClientFactory.PROPERTY_NAME);
+        if (environment.getProperty(PEAK_EWMA_ENABLED, Boolean.class, false)) {
+            return new PeakEwmaLoadBalancer(
+                    name,
+                    serviceInstanceListSupplier,
+                    tracer,
+                    instanceLoadStatsRegistry
+            );
+        }
         return new RoundRobinBaseOnTraceIdLoadBalancer(
                 name,
                 serviceInstanceListSupplier,
@@ -0,0 +1,95 @@
+package com.github.hashjang.hoxton.api.gateway.config;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 某个实例（host:port）的负载统计：正在处理的请求数，以及 peak-EWMA 响应时间
+ * peak-EWMA：响应时间比当前平均值大的时候直接取这个值（对变慢敏感），否则按照距离上次更新的时间指数衰减地靠近这个值（对变快迟钝）
+ * 长时间没有请求，平均值也会随着时间衰减，这样变慢的实例过一段时间还会被重新尝试
+ */
+public class InstanceLoadStats {
+    /**
+     * 没有响应时间统计并且有正在处理的请求的时候的代价，保证优先选择已知的实例，并且不会一下子把请求全部打到新实例
+     */
+    private static final double PENALTY = Long.MAX_VALUE >> 16;
+    /**
+     * 失败的请求按照当前平均值的这个倍数记录，防止快速失败的实例因为响应时间短反而被选中更多
+     */
+    private static final double FAILURE_PENALTY_FACTOR = 5;
+    /**
+     * 连续失败的时候惩罚值不会无限翻倍，最多 10 秒，保证衰减之后实例还会被重新尝试
+     */
+    private static final double MAX_FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final double decayNanos;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private volatile double ewmaNanos;
+    private volatile long lastUpdateNanos = System.nanoTime();
+
+    public InstanceLoadStats(long decayNanos) {
+        this.decayNanos = decayNanos;
+    }
+
+    /**
+     * 请求发出之前调用，之后必须调用 {@link #complete(long)} 或者 {@link #fail(long)}
+     */
+    public void start() {
+        inflight.incrementAndGet();
+    }
+
+    /**
+     * @param rttNanos 请求花费的时间
+     */
+    public void complete(long rttNanos) {
+        inflight.decrementAndGet();
+        update(rttNanos);
+    }
+
+    /**
+     * 请求异常或者响应码不是 2xx，记录 max(rtt, min(当前平均值 * FAILURE_PENALTY_FACTOR, MAX_FAILURE_PENALTY_NANOS))
+     *
+     * @param rttNanos 请求花费的时间
+     */
+    public void fail(long rttNanos) {
+        inflight.decrementAndGet();
+        synchronized (this) {
+            update(Math.max(rttNanos, Math.min(this.ewmaNanos * FAILURE_PENALTY_FACTOR, MAX_FAILURE_PENALTY_NANOS)));
+        }
+    }
+
+    private void update(double rttNanos) {
+        synchronized (this) {
+            long now = System.nanoTime();
+            double ewma = this.ewmaNanos;
+            if (rttNanos > ewma) {
+                this.ewmaNanos = rttNanos;
+            } else {
+                double w = Math.exp(-(now - lastUpdateNanos) / decayNanos);
+                this.ewmaNanos = ewma * w + rttNanos * (1 - w);
+            }
+            this.lastUpdateNanos = now;
+        }
+    }
+
+    /**
+     * 选择实例的代价，越小越好：衰减到当前时间的响应时间 * (正在处理的请求数 + 1)
+     */
+    public double cost(long nowNanos) {
+        int pending = inflight.get();
+        double ewma = this.ewmaNanos;
+        if (ewma == 0) {
+            return pending == 0 ? 0 : PENALTY + pending;
+        }
+        double decayed = ewma * Math.exp(-Math.max(0, nowNanos - lastUpdateNanos) / decayNanos);
+        return decayed * (pending + 1);
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    public double getEwmaNanos() {
+        return ewmaNanos;
+    }
+}
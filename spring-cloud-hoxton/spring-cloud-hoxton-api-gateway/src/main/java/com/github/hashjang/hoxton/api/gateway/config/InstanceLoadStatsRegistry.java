@@ -0,0 +1,27 @@
+package com.github.hashjang.hoxton.api.gateway.config;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 所有实例的负载统计，key 为 host:port
+ * 在 Spring 父 context 中，InstanceLoadStatsFilter 记录，每个微服务的 LoadBalancer 子 context 读取
+ * 实例下线不会删除，一个实例只有一个很小的对象，不会有问题
+ */
+public class InstanceLoadStatsRegistry {
+    private final Map<String, InstanceLoadStats> stats = new ConcurrentHashMap<>();
+    private final long decayNanos;
+
+    public InstanceLoadStatsRegistry(Duration decayTime) {
+        this.decayNanos = decayTime.toNanos();
+    }
+
+    public InstanceLoadStats get(String hostAndPort) {
+        InstanceLoadStats instanceLoadStats = stats.get(hostAndPort);
+        if (instanceLoadStats == null) {
+            instanceLoadStats = stats.computeIfAbsent(hostAndPort, k -> new InstanceLoadStats(decayNanos));
+        }
+        return instanceLoadStats;
+    }
+}
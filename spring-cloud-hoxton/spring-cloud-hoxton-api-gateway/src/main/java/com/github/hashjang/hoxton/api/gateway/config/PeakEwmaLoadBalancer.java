@@ -0,0 +1,136 @@
+package com.github.hashjang.hoxton.api.gateway.config;
+
+import brave.Span;
+import brave.Tracer;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.loadbalancer.reactive.DefaultResponse;
+import org.springframework.cloud.client.loadbalancer.reactive.EmptyResponse;
+import org.springframework.cloud.client.loadbalancer.reactive.Request;
+import org.springframework.cloud.client.loadbalancer.reactive.Response;
+import org.springframework.cloud.loadbalancer.core.ReactorServiceInstanceLoadBalancer;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于 peak-EWMA 响应时间与正在处理的请求数的负载均衡，通过 spring.cloud.loadbalancer.peak-ewma.enabled=true 启用
+ * 随机选两个实例（power of two choices），选代价（{@link InstanceLoadStats#cost(long)}）小的那个
+ * 和 RoundRobinBaseOnTraceIdLoadBalancer 一样，重试的时候线程不固定，所以通过 traceId 记录这个请求已经尝试过的实例，重试的时候排除
+ */
+@Log4j2
+public class PeakEwmaLoadBalancer implements ReactorServiceInstanceLoadBalancer {
+    //和 RoundRobinBaseOnTraceIdLoadBalancer 的 positionCache 一样的过期时间
+    private final Cache<Long, Set<String>> triedInstancesCache = Caffeine.newBuilder().expireAfterWrite(3, TimeUnit.SECONDS).build();
+    private final String serviceId;
+    private final ServiceInstanceListSupplier serviceInstanceListSupplier;
+    private final Tracer tracer;
+    private final InstanceLoadStatsRegistry instanceLoadStatsRegistry;
+    private volatile Snapshot snapshot;
+
+    public PeakEwmaLoadBalancer(String serviceId, ServiceInstanceListSupplier serviceInstanceListSupplier, Tracer tracer, InstanceLoadStatsRegistry instanceLoadStatsRegistry) {
+        this.serviceId = serviceId;
+        this.serviceInstanceListSupplier = serviceInstanceListSupplier;
+        this.tracer = tracer;
+        this.instanceLoadStatsRegistry = instanceLoadStatsRegistry;
+    }
+
+    @Override
+    public Mono<Response<ServiceInstance>> choose(Request request) {
+        Span span = tracer.currentSpan();
+        return serviceInstanceListSupplier.get().next().map(serviceInstances -> getInstanceResponse(serviceInstances, span));
+    }
+
+    private Response<ServiceInstance> getInstanceResponse(List<ServiceInstance> serviceInstances, Span span) {
+        if (serviceInstances.isEmpty()) {
+            log.warn("No servers available for service: " + this.serviceId);
+            return new EmptyResponse();
+        }
+        Snapshot current = getSnapshot(serviceInstances);
+        //没有 traceId 的时候不会有重试
+        Set<String> triedInstances = span == null ? null :
+                triedInstancesCache.get(span.context().traceId(), k -> ConcurrentHashMap.newKeySet());
+        int chosen = choose(current, triedInstances);
+        if (triedInstances != null) {
+            triedInstances.add(current.hostAndPorts[chosen]);
+        }
+        return new DefaultResponse(current.instances[chosen]);
+    }
+
+    private int choose(Snapshot current, Set<String> triedInstances) {
+        int count = current.instances.length;
+        int[] candidates = null;
+        int candidateCount = count;
+        if (triedInstances != null && !triedInstances.isEmpty()) {
+            //只有重试的时候才需要排除，这时候才创建数组
+            candidates = new int[count];
+            candidateCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (!triedInstances.contains(current.hostAndPorts[i])) {
+                    candidates[candidateCount++] = i;
+                }
+            }
+            //所有实例都尝试过了，重新从所有实例里面选
+            if (candidateCount == 0) {
+                candidates = null;
+                candidateCount = count;
+            }
+        }
+        if (candidateCount == 1) {
+            return candidates == null ? 0 : candidates[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(candidateCount);
+        int b = random.nextInt(candidateCount - 1);
+        if (b >= a) {
+            b++;
+        }
+        if (candidates != null) {
+            a = candidates[a];
+            b = candidates[b];
+        }
+        long now = System.nanoTime();
+        return current.stats[a].cost(now) <= current.stats[b].cost(now) ? a : b;
+    }
+
+    /**
+     * 只有实例列表变了（缓存过期重新拉取）才重新创建
+     */
+    private Snapshot getSnapshot(List<ServiceInstance> serviceInstances) {
+        Snapshot current = this.snapshot;
+        if (current != null && current.source == serviceInstances) {
+            return current;
+        }
+        current = new Snapshot(serviceInstances, instanceLoadStatsRegistry);
+        this.snapshot = current;
+        return current;
+    }
+
+    /**
+     * 实例以及对应的 host:port 与负载统计，不可变
+     */
+    private static final class Snapshot {
+        private final List<ServiceInstance> source;
+        private final ServiceInstance[] instances;
+        private final String[] hostAndPorts;
+        private final InstanceLoadStats[] stats;
+
+        private Snapshot(List<ServiceInstance> source, InstanceLoadStatsRegistry instanceLoadStatsRegistry) {
+            this.source = source;
+            this.instances = source.toArray(new ServiceInstance[0]);
+            this.hostAndPorts = new String[instances.length];
+            this.stats = new InstanceLoadStats[instances.length];
+            for (int i = 0; i < instances.length; i++) {
+                hostAndPorts[i] = instances[i].getHost() + ":" + instances[i].getPort();
+                stats[i] = instanceLoadStatsRegistry.get(hostAndPorts[i]);
+            }
+        }
+    }
+}
@@ -1,38 +1,39 @@
 package com.github.hashjang.hoxton.api.gateway.filter;
 
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.LoadingCache;
 import org.springframework.cloud.gateway.filter.GatewayFilterChain;
 import org.springframework.cloud.gateway.filter.GlobalFilter;
 import org.springframework.core.Ordered;
 import org.springframework.http.HttpMethod;
-import org.springframework.util.AntPathMatcher;
+import org.springframework.http.server.PathContainer;
 import org.springframework.util.CollectionUtils;
 import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.util.pattern.PathPattern;
+import org.springframework.web.util.pattern.PathPatternParser;
 import reactor.core.publisher.Mono;
 
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 public abstract class AbstractSpecificPathFilter implements GlobalFilter, Ordered {
-    private final AntPathMatcher MATCHER = new AntPathMatcher();
-
-    protected final LoadingCache<String, Boolean> FILTER_CACHE = Caffeine.newBuilder().build(key -> {
-        String[] split = key.split(",");
-        HttpMethod httpMethod = HttpMethod.valueOf(split[0]);
-        Map<String, List<HttpMethod>> paths = getPaths();
-        for (String path : paths.keySet()) {
-            if (MATCHER.match(path, split[1])) {
-                List<HttpMethod> httpMethods = paths.get(path);
-                if (CollectionUtils.isEmpty(httpMethods)) {
-                    return true;
-                } else if (httpMethods.contains(httpMethod)) {
-                    return true;
-                }
-            }
-        }
-        return false;
-    });
+    private static final PathPattern[] EMPTY = new PathPattern[0];
+
+    /**
+     * getPaths() 里面的路径在启动的时候编译成 PathPattern，按照 HttpMethod.ordinal() 分组
+     * 之前是按照 method + path 缓存 AntPathMatcher 的结果，路径里面有 id 的时候缓存会无限增长，每个新路径都要遍历一遍所有的 pattern
+     * PathPattern 按照路径的每一段匹配，不用缓存，也基本不分配内存
+     */
+    private PathPattern[][] patternsByMethod;
+
+    /**
+     * getPaths() 是子类实现的，不能在构造器里面调用，所以在 Bean 初始化的时候编译
+     * 路径写错了（例如 ** 不在最后）启动的时候就会抛出 PatternParseException，而不是每个请求都抛出
+     */
+    @PostConstruct
+    public void compilePaths() {
+        patternsByMethod = compile(getPaths());
+    }
 
     @Override
     public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
@@ -50,11 +51,43 @@ public abstract class AbstractSpecificPathFilter implements GlobalFilter, Ordere
      */
     protected boolean shouldBeFiltered(ServerWebExchange exchange) {
         var request = exchange.getRequest();
-        String path = request.getPath().value();
-        return FILTER_CACHE.get(request.getMethod() + "," + path);
+        HttpMethod method = request.getMethod();
+        if (method == null) {
+            return false;
+        }
+        PathContainer path = request.getPath().pathWithinApplication();
+        for (PathPattern pathPattern : patternsByMethod[method.ordinal()]) {
+            if (pathPattern.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static PathPattern[][] compile(Map<String, List<HttpMethod>> paths) {
+        HttpMethod[] methods = HttpMethod.values();
+        List<List<PathPattern>> grouped = new ArrayList<>(methods.length);
+        for (int i = 0; i < methods.length; i++) {
+            grouped.add(new ArrayList<>());
+        }
+        PathPatternParser parser = new PathPatternParser();
+        paths.forEach((path, httpMethods) -> {
+            PathPattern pathPattern = parser.parse(path);
+            for (HttpMethod method : methods) {
+                //没有指定 method 则所有 method 都经过
+                if (CollectionUtils.isEmpty(httpMethods) || httpMethods.contains(method)) {
+                    grouped.get(method.ordinal()).add(pathPattern);
+                }
+            }
+        });
+        PathPattern[][] result = new PathPattern[methods.length][];
+        for (int i = 0; i < methods.length; i++) {
+            result[i] = grouped.get(i).toArray(EMPTY);
+        }
+        return result;
     }
 
     protected abstract Mono<Void> filter0(ServerWebExchange exchange, GatewayFilterChain chain);
 
     protected abstract Map<String, List<HttpMethod>> getPaths();
-}
\ No newline at end of file
+}
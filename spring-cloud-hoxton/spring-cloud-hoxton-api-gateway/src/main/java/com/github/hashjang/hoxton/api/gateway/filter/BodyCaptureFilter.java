@@ -0,0 +1,115 @@
+package com.github.hashjang.hoxton.api.gateway.filter;
+
+import com.github.hashjang.hoxton.api.gateway.config.BodyCaptureConfig;
+import lombok.extern.log4j.Log4j2;
+import org.reactivestreams.Publisher;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
+import org.springframework.core.Ordered;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
+import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 采样记录请求和响应的 body，代替之前对所有请求的 body 都 log() 的 LogFilter
+ * 只有 spring.cloud.gateway.body-capture.enabled=true 的时候才注册，不开启的时候对请求没有任何影响
+ * 开启后按照路由和采样率，或者请求头（需要打开 header-trigger-enabled），决定是否记录；每个 body 最多记录 maxBytes 字节，不改变 DataBuffer 的读取位置
+ * 日志通过 log4j2 的 AsyncLogger 异步输出
+ */
+@Log4j2
+@Component
+@ConditionalOnProperty(prefix = "spring.cloud.gateway.body-capture", name = "enabled", havingValue = "true")
+public class BodyCaptureFilter implements GlobalFilter, Ordered {
+    private final BodyCaptureConfig bodyCaptureConfig;
+
+    public BodyCaptureFilter(BodyCaptureConfig bodyCaptureConfig) {
+        this.bodyCaptureConfig = bodyCaptureConfig;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+        if (!shouldCapture(exchange)) {
+            return chain.filter(exchange);
+        }
+        ServerHttpRequest request = exchange.getRequest();
+        String requestLine = request.getMethodValue() + " " + request.getPath().value();
+        int maxBytes = bodyCaptureConfig.getMaxBytes();
+        return chain.filter(exchange.mutate().request(new ServerHttpRequestDecorator(request) {
+            @Override
+            public Flux<DataBuffer> getBody() {
+                Snippet snippet = new Snippet(maxBytes);
+                return super.getBody().doOnNext(snippet::append)
+                        .doOnComplete(() -> log.info("{} request body: {}", requestLine, snippet));
+            }
+        }).response(new ServerHttpResponseDecorator(exchange.getResponse()) {
+            @Override
+            public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+                Snippet snippet = new Snippet(maxBytes);
+                return super.writeWith(Flux.from(body).doOnNext(snippet::append)
+                        .doOnComplete(() -> log.info("{} response {} body: {}", requestLine, getStatusCode(), snippet)));
+            }
+        }).build());
+    }
+
+    private boolean shouldCapture(ServerWebExchange exchange) {
+        if (!bodyCaptureConfig.getRoutes().isEmpty()) {
+            Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
+            if (route == null || !bodyCaptureConfig.getRoutes().contains(route.getId())) {
+                return false;
+            }
+        }
+        if (bodyCaptureConfig.isHeaderTriggerEnabled()
+                && "true".equalsIgnoreCase(exchange.getRequest().getHeaders().getFirst(bodyCaptureConfig.getHeader()))) {
+            return true;
+        }
+        return ThreadLocalRandom.current().nextDouble() < bodyCaptureConfig.getSampleRate();
+    }
+
+    @Override
+    public int getOrder() {
+        //放在最开头，记录的是客户端发过来的原始 body
+        return Ordered.HIGHEST_PRECEDENCE;
+    }
+
+    /**
+     * 只复制前 maxBytes 个字节，通过 asByteBuffer() 读取，不影响 DataBuffer 本身的读取位置
+     */
+    private static class Snippet {
+        private final byte[] bytes;
+        private int length;
+        private long total;
+
+        private Snippet(int maxBytes) {
+            this.bytes = new byte[maxBytes];
+        }
+
+        private void append(DataBuffer dataBuffer) {
+            int readable = dataBuffer.readableByteCount();
+            total += readable;
+            int copy = Math.min(readable, bytes.length - length);
+            if (copy > 0) {
+                ByteBuffer byteBuffer = dataBuffer.asByteBuffer(dataBuffer.readPosition(), copy);
+                byteBuffer.get(bytes, length, copy);
+                length += copy;
+            }
+        }
+
+        @Override
+        public String toString() {
+            String text = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            return total > length ? text + "...(" + total + " bytes)" : text;
+        }
+    }
+}
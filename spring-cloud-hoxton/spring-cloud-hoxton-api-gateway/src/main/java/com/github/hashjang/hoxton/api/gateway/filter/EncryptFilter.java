@@ -1,41 +1,40 @@
 package com.github.hashjang.hoxton.api.gateway.filter;
 
-import lombok.AllArgsConstructor;
-import lombok.Builder;
-import lombok.Data;
-import lombok.NoArgsConstructor;
+import com.github.hashjang.hoxton.api.gateway.common.CommonConstant;
 import lombok.extern.log4j.Log4j2;
 import org.reactivestreams.Publisher;
 import org.springframework.cloud.gateway.filter.GatewayFilterChain;
 import org.springframework.core.Ordered;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.PooledDataBuffer;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.codec.HttpMessageReader;
 import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
 import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
 import org.springframework.stereotype.Component;
-import org.springframework.web.reactive.function.server.HandlerStrategies;
-import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.util.StringUtils;
 import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
 import java.util.List;
 import java.util.Map;
 
 /**
  * 加解密filter，解密修改requestbody，加密修改responsebody
+ * 请求体和响应体都是 16 字节 IV + AES/CTR 密文，key 在请求头 X-Encrypt-Key 里面，都由 StreamEncryptor 一段一段处理，不把整个 body 读到内存
  */
 @Log4j2
 @Component
 public class EncryptFilter extends AbstractSpecificPathFilter {
-    private final List<HttpMessageReader<?>> messageReaders = HandlerStrategies.withDefaults().messageReaders();
 
     @Override
     protected Mono<Void> filter0(ServerWebExchange exchange, GatewayFilterChain chain) {
@@ -43,101 +42,83 @@ public class EncryptFilter extends AbstractSpecificPathFilter {
         HttpHeaders headers = request.getHeaders();
         ServerHttpResponse response = exchange.getResponse();
         DataBufferFactory bufferFactory = response.bufferFactory();
-        if (headers.getContentLength() == 0) {
+        String key = headers.getFirst(CommonConstant.ENCRYPT_KEY);
+        if (headers.getContentLength() == 0 || !StringUtils.hasText(key)) {
             return FilterUtil.errorResponse(response, HttpStatus.BAD_REQUEST, bufferFactory, "");
         }
-        return decrypt0(exchange).flatMap(decryptResult -> {
-            log.info("decrypt data: {}", decryptResult);
-            if (decryptResult.isSuccessful()) {
-                String result = decryptResult.getResult();
-                return chain.filter(exchange.mutate().request(
-                        new ServerHttpRequestDecorator(request) {
-                            @Override
-                            public HttpHeaders getHeaders() {
-                                HttpHeaders httpHeaders = new HttpHeaders();
-                                httpHeaders.putAll(headers);
-
-                                httpHeaders.remove(HttpHeaders.CONTENT_LENGTH);
-                                httpHeaders.remove(HttpHeaders.CONTENT_TYPE);
-
-                                httpHeaders.set(HttpHeaders.TRANSFER_ENCODING, "chunked");
-                                //对于{或者是[开头的，认为是json
-                                if (result.trim().startsWith("{") || result.trim().startsWith("[")) {
-                                    httpHeaders.set(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
-                                } else {
-                                    //否则就是表单
-                                    httpHeaders.set(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_FORM_URLENCODED_VALUE);
-                                }
-                                return httpHeaders;
-                            }
-
-                            @Override
-                            public Flux<DataBuffer> getBody() {
-                                return Flux.from(
-                                        Mono.just(bufferFactory.wrap(result.getBytes()))
-                                );
-                            }
-                        }
-                ).response(new ServerHttpResponseDecorator(response) {
-                    @Override
-                    public HttpHeaders getHeaders() {
-                        HttpHeaders responseHeaders = super.getHeaders();
-                        responseHeaders.remove(HttpHeaders.CONTENT_LENGTH);
-                        responseHeaders.set(HttpHeaders.TRANSFER_ENCODING, "chunked");
-                        return responseHeaders;
-                    }
+        SecretKeySpec secretKey;
+        try {
+            secretKey = StreamEncryptor.secretKey(key);
+        } catch (GeneralSecurityException e) {
+            log.error("error while init encrypt key: {}", e.getMessage(), e);
+            return FilterUtil.errorResponse(response, HttpStatus.BAD_REQUEST, bufferFactory, "encrypt failed");
+        }
+        //只等第一段解密出来，用来判断 Content-Type，之后的请求体边读边解密转发
+        return StreamEncryptor.decrypt(request.getBody(), bufferFactory, secretKey).<Void>switchOnFirst((signal, decryptedBody) -> {
+            if (!signal.hasValue()) {
+                //请求体是空的，或者连 IV 都不完整
+                if (signal.hasError()) {
+                    log.error("error while decrypt request: {}", signal.getThrowable().getMessage(), signal.getThrowable());
+                }
+                return FilterUtil.errorResponse(response, HttpStatus.BAD_REQUEST, bufferFactory, "encrypt failed");
+            }
+            boolean json = isJson(signal.get());
+            //mutate 只复制一次请求头，之后其他 filter 多次调用 getHeaders() 都是同一个，不会每次复制
+            ServerHttpRequest decrypted = request.mutate().headers(httpHeaders -> {
+                httpHeaders.remove(CommonConstant.ENCRYPT_KEY);
+                httpHeaders.remove(HttpHeaders.CONTENT_LENGTH);
+                httpHeaders.remove(HttpHeaders.CONTENT_TYPE);
 
-                    @Override
-                    public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
-                        if (body instanceof Flux) {
-                            //有TCP粘包拆包问题，这个body是多次写入的，一次调用拿不到完整的body，所以这里转换成fluxBody利用其中的buffer来接受完整的body
-                            Flux<? extends DataBuffer> fluxBody = Flux.from(body);
-                            return super.writeWith(fluxBody.buffer().map(buffers -> {
-                                DataBuffer buffer = bufferFactory.join(buffers);
-                                try {
-                                    String s = FilterUtil.dataBufferToString(buffer);
-                                    log.info("encrypt response: {}", s);
-                                    byte[] uppedContent = encrypt0(exchange, s, decryptResult.getKey()).getBytes();
-                                    return bufferFactory.wrap(uppedContent);
-                                } catch (Exception e) {
-                                    log.error("error while encrypt response: {}", e.getMessage(), e);
-                                }
-                                return null;
-                            }));
+                httpHeaders.set(HttpHeaders.TRANSFER_ENCODING, "chunked");
+                //对于{或者是[开头的，认为是json
+                if (json) {
+                    httpHeaders.set(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
+                } else {
+                    //否则就是表单
+                    httpHeaders.set(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_FORM_URLENCODED_VALUE);
+                }
+            }).build();
+            return chain.filter(exchange.mutate().request(
+                    new ServerHttpRequestDecorator(decrypted) {
+                        @Override
+                        public Flux<DataBuffer> getBody() {
+                            //原始请求体只能读一次，所以不能重新订阅；非 GET 请求只在连接失败的时候重试，这时候请求体还没有发出去
+                            return decryptedBody;
                         }
-                        // if body is not a flux. never got there.
-                        return super.writeWith(body);
                     }
+            ).response(new ServerHttpResponseDecorator(response) {
+                @Override
+                public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+                    //响应头在这时候还没有提交，改一次就行，不用每次 getHeaders() 都改
+                    HttpHeaders responseHeaders = getHeaders();
+                    responseHeaders.remove(HttpHeaders.CONTENT_LENGTH);
+                    responseHeaders.set(HttpHeaders.TRANSFER_ENCODING, "chunked");
+                    //加密之后是 IV + 密文，不再是上游的 Content-Type
+                    responseHeaders.set(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE);
+                    //流式加密，来一个 DataBuffer 加密一个，不用把整个响应攒起来，第一个字节不用等整个响应返回
+                    return super.writeWith(StreamEncryptor.encrypt(Flux.from(body), bufferFactory, secretKey)
+                            .doOnError(e -> log.error("error while encrypt response: {}", e.getMessage(), e)));
+                }
 
-                    @Override
-                    public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {
-                        return super.writeAndFlushWith(body);
-                    }
-                }).build());
-            } else {
-                return FilterUtil.errorResponse(response, HttpStatus.BAD_REQUEST, bufferFactory, "encrypt failed");
-            }
-        });
-    }
-
-    private Mono<DecryptResult> decrypt0(ServerWebExchange exchange) {
-        ServerRequest serverRequest = ServerRequest.create(exchange,
-                messageReaders);
-        return serverRequest.bodyToMono(Map.class).flatMap(map -> {
-            Object test = map.get("test");
-            Object key = map.get("key");
-            return Mono.just(DecryptResult.builder().key(key.toString())
-                    .result(FilterUtil.toJsonString(Map.ofEntries(
-                            Map.entry("decrypted", test)
-                    )))
-                    .successful(true)
-                    .build()
-            );
-        });
+                @Override
+                public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {
+                    return writeWith(Flux.from(body).concatMap(p -> p));
+                }
+            }).build());
+        }).doOnDiscard(PooledDataBuffer.class, DataBufferUtils::release).then();
     }
 
-    private String encrypt0(ServerWebExchange exchange, String body, String key) throws Exception {
-        return body + " - " + key;
+    /**
+     * 只看第一段解密出来的内容，不读取
+     */
+    private static boolean isJson(DataBuffer first) {
+        for (int i = first.readPosition(); i < first.writePosition(); i++) {
+            byte b = first.getByte(i);
+            if (!Character.isWhitespace(b)) {
+                return b == '{' || b == '[';
+            }
+        }
+        return false;
     }
 
     @Override
@@ -151,14 +132,4 @@ public class EncryptFilter extends AbstractSpecificPathFilter {
     public int getOrder() {
         return Ordered.HIGHEST_PRECEDENCE;
     }
-
-    @Data
-    @Builder
-    @NoArgsConstructor
-    @AllArgsConstructor
-    protected static class DecryptResult {
-        private boolean successful;
-        private String result;
-        private String key;
-    }
 }
@@ -2,6 +2,9 @@ package com.github.hashjang.hoxton.api.gateway.filter;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.hashjang.hoxton.api.gateway.common.CommonConstant;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferFactory;
 import org.springframework.core.io.buffer.DataBufferUtils;
@@ -9,6 +12,7 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Mono;
 
 import java.io.IOException;
@@ -16,6 +20,20 @@ import java.io.IOException;
 public class FilterUtil {
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
+    /**
+     * @return RecordServiceNameFilter 记录的微服务名称
+     */
+    public static String getServiceName(ServerWebExchange exchange) {
+        String serviceName = exchange.getAttribute(CommonConstant.SERVICE_NAME);
+        if (serviceName == null) {
+            Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
+            if (route != null) {
+                serviceName = route.getUri().getHost();
+            }
+        }
+        return serviceName;
+    }
+
     public static String toJsonString(Object o) {
         try {
             return OBJECT_MAPPER.writeValueAsString(o);
@@ -1,36 +1,35 @@
 package com.github.hashjang.hoxton.api.gateway.filter;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.github.hashjang.hoxton.api.gateway.common.CommonConstant;
 import io.github.resilience4j.circuitbreaker.CircuitBreaker;
 import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
-import io.github.resilience4j.core.ConfigurationNotFoundException;
 import io.github.resilience4j.reactor.circuitbreaker.operator.CircuitBreakerOperator;
-import lombok.extern.log4j.Log4j2;
 import org.springframework.cloud.gateway.filter.GatewayFilterChain;
 import org.springframework.cloud.gateway.filter.GlobalFilter;
 import org.springframework.cloud.gateway.filter.ReactiveLoadBalancerClientFilter;
 import org.springframework.core.Ordered;
-import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.stereotype.Component;
 import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Mono;
 
 import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_REQUEST_URL_ATTR;
 
 /**
  * 实例级别的断路器
+ * 断路器的指标由 resilience4j 的 TaggedCircuitBreakerMetrics 注册到 Micrometer（resilience4j.circuitbreaker.*，name 为实例 id），这里不再每个请求打印
  */
-@Log4j2
 @Component
 public class InstanceCircuitBreakerFilter implements GlobalFilter, Ordered {
 
     private final CircuitBreakerRegistry circuitBreakerRegistry;
-    ObjectMapper objectMapper = new ObjectMapper();
-
+    /**
+     * 微服务名称 -> 实例 id（host:port）-> CircuitBreaker
+     * 和 InstanceLoadStatsRegistry 一样，实例下线不会删除，一个实例只有一个很小的对象
+     */
+    private final Map<String, Map<String, CircuitBreaker>> circuitBreakers = new ConcurrentHashMap<>();
 
     public InstanceCircuitBreakerFilter(CircuitBreakerRegistry circuitBreakerRegistry) {
         this.circuitBreakerRegistry = circuitBreakerRegistry;
@@ -39,25 +38,31 @@ public class InstanceCircuitBreakerFilter implements GlobalFilter, Ordered {
     @Override
     public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
         URI url = exchange.getAttribute(GATEWAY_REQUEST_URL_ATTR);
-        ServerHttpRequest request = exchange.getRequest();
-        String serviceName = request.getHeaders().getFirst(CommonConstant.SERVICE_NAME);
-        String instanceId = url.getHost() + ":" + url.getPort();
-        CircuitBreaker circuitBreaker;
-        try {
-            //使用实例id新建或者获取现有的CircuitBreaker,使用serviceName获取配置
-            circuitBreaker = circuitBreakerRegistry.circuitBreaker(instanceId, serviceName);
-        } catch (ConfigurationNotFoundException e) {
-            circuitBreaker = circuitBreakerRegistry.circuitBreaker(instanceId);
+        String serviceName = FilterUtil.getServiceName(exchange);
+        if (serviceName == null) {
+            serviceName = "";
         }
-
-        try {
-            log.info("try to send request to: {}: stats: {}", url, objectMapper.writeValueAsString(circuitBreaker.getMetrics()));
-        } catch (JsonProcessingException e) {
+        //负载均衡器重写的 url 的 authority 就是 host:port，URI 解析的时候已经算好了，不用每次拼接
+        String instanceId = url.getRawAuthority();
+        Map<String, CircuitBreaker> instances = circuitBreakers.get(serviceName);
+        if (instances == null) {
+            instances = circuitBreakers.computeIfAbsent(serviceName, k -> new ConcurrentHashMap<>());
+        }
+        CircuitBreaker circuitBreaker = instances.get(instanceId);
+        if (circuitBreaker == null) {
+            String configName = serviceName;
+            circuitBreaker = instances.computeIfAbsent(instanceId, k -> newCircuitBreaker(k, configName));
         }
-
         return chain.filter(exchange).transform(CircuitBreakerOperator.of(circuitBreaker));
     }
 
+    private CircuitBreaker newCircuitBreaker(String instanceId, String serviceName) {
+        //使用实例id新建或者获取现有的CircuitBreaker,有serviceName的配置就用它，没有就用默认配置
+        return circuitBreakerRegistry.getConfiguration(serviceName)
+                .map(config -> circuitBreakerRegistry.circuitBreaker(instanceId, config))
+                .orElseGet(() -> circuitBreakerRegistry.circuitBreaker(instanceId));
+    }
+
     @Override
     public int getOrder() {
         try {
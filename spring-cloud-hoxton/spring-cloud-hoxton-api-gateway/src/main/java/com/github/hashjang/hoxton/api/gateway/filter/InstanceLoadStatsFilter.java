@@ -0,0 +1,60 @@
+package com.github.hashjang.hoxton.api.gateway.filter;
+
+import com.github.hashjang.hoxton.api.gateway.config.InstanceLoadStats;
+import com.github.hashjang.hoxton.api.gateway.config.InstanceLoadStatsRegistry;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.cloud.gateway.filter.ReactiveLoadBalancerClientFilter;
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.net.URI;
+
+import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_REQUEST_URL_ATTR;
+
+/**
+ * 记录每个实例正在处理的请求数以及响应时间，供 PeakEwmaLoadBalancer 使用
+ */
+@Component
+public class InstanceLoadStatsFilter implements GlobalFilter, Ordered {
+    private final InstanceLoadStatsRegistry instanceLoadStatsRegistry;
+
+    public InstanceLoadStatsFilter(InstanceLoadStatsRegistry instanceLoadStatsRegistry) {
+        this.instanceLoadStatsRegistry = instanceLoadStatsRegistry;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+        URI url = exchange.getAttribute(GATEWAY_REQUEST_URL_ATTR);
+        InstanceLoadStats instanceLoadStats = instanceLoadStatsRegistry.get(url.getHost() + ":" + url.getPort());
+        return Mono.defer(() -> {
+            //重试的时候会重新订阅，每次订阅记录一次
+            instanceLoadStats.start();
+            long start = System.nanoTime();
+            return chain.filter(exchange).doFinally(signalType -> {
+                long rttNanos = System.nanoTime() - start;
+                //异常、超时取消以及非 2xx 的响应按照失败记录，否则快速失败的实例响应时间短反而会被选中更多
+                HttpStatus statusCode = exchange.getResponse().getStatusCode();
+                if (signalType == SignalType.ON_COMPLETE && statusCode != null && statusCode.is2xxSuccessful()) {
+                    instanceLoadStats.complete(rttNanos);
+                } else {
+                    instanceLoadStats.fail(rttNanos);
+                }
+            });
+        });
+    }
+
+    @Override
+    public int getOrder() {
+        try {
+            //和 InstanceCircuitBreakerFilter 一样，必须在负载均衡器选择实例并重写调用 url 之后
+            return (Integer) ReactiveLoadBalancerClientFilter.class.getDeclaredField("LOAD_BALANCER_CLIENT_FILTER_ORDER").get(null) + 1;
+        } catch (Exception e) {
+            return 10151;
+        }
+    }
+}
@@ -6,27 +6,21 @@ import org.springframework.cloud.gateway.filter.GlobalFilter;
 import org.springframework.cloud.gateway.route.Route;
 import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
 import org.springframework.core.Ordered;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
 import org.springframework.stereotype.Component;
 import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Mono;
 
+/**
+ * 记录微服务名称，放在 exchange 的 attribute 里面，通过 {@link FilterUtil#getServiceName(ServerWebExchange)} 读取
+ * 不放在请求头里面，这样不用复制请求头，客户端也不能通过请求头伪造
+ */
 @Component
 public class RecordServiceNameFilter implements GlobalFilter, Ordered {
     @Override
     public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
         Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
-        String host = route.getUri().getHost();
-        return chain.filter(exchange.mutate().request(new ServerHttpRequestDecorator(exchange.getRequest()) {
-            @Override
-            public HttpHeaders getHeaders() {
-                HttpHeaders httpHeaders = new HttpHeaders();
-                httpHeaders.putAll(exchange.getRequest().getHeaders());
-                httpHeaders.set(CommonConstant.SERVICE_NAME, host);
-                return httpHeaders;
-            }
-        }).build());
+        exchange.getAttributes().put(CommonConstant.SERVICE_NAME, route.getUri().getHost());
+        return chain.filter(exchange);
     }
 
     @Override
@@ -0,0 +1,83 @@
+package com.github.hashjang.hoxton.api.gateway.filter;
+
+import com.github.hashjang.hoxton.api.gateway.common.CommonConstant;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.cloud.gateway.filter.RouteToRequestUrlFilter;
+import org.springframework.cloud.gateway.support.TimeoutException;
+import org.springframework.core.Ordered;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * 网关给每个请求定一个截止时间，通过 {@link CommonConstant#REQUEST_TIMEOUT} 把剩余时间传给微服务，微服务再往下传
+ * 调用方自己带了这个请求头并且更短的话，用调用方的
+ * 在 RetryGatewayFilter 之后，每次重试都会重新订阅，所以每次尝试传的都是当时的剩余时间，并且这次尝试最多等到截止时间
+ * 剩下的时间不够再尝试一次的话直接返回 504，不再重试
+ * 每次尝试的剩余时间放在 exchange 属性里面，由 RequestDeadlineHeadersFilter 写到转发的请求头上，不需要为了改一个请求头复制请求头
+ */
+@Component
+public class RequestDeadlineFilter implements GlobalFilter, Ordered {
+    public static final String DEADLINE = "spring.cloud.gateway.deadline";
+    private static final String DEADLINE_NANOS_ATTR = RequestDeadlineFilter.class.getName() + ".deadlineNanos";
+    /**
+     * 这次尝试的剩余时间（毫秒）
+     */
+    public static final String REMAINING_MILLIS_ATTR = RequestDeadlineFilter.class.getName() + ".remainingMillis";
+    /**
+     * 剩余时间少于这个，连建立连接都不一定够
+     */
+    private static final long MIN_ATTEMPT_MILLIS = 20;
+
+    private final long defaultDeadlineMillis;
+
+    public RequestDeadlineFilter(Environment environment) {
+        this.defaultDeadlineMillis = environment.getProperty(DEADLINE, Duration.class, Duration.ofSeconds(3)).toMillis();
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+        return Mono.defer(() -> {
+            //第一次尝试的时候计算截止时间，之后的重试都用这个
+            long deadlineNanos = (Long) exchange.getAttributes().computeIfAbsent(DEADLINE_NANOS_ATTR, k -> {
+                long budget = defaultDeadlineMillis;
+                long requested = parseRemainingMillis(exchange.getRequest().getHeaders().getFirst(CommonConstant.REQUEST_TIMEOUT));
+                if (requested >= 0) {
+                    budget = Math.min(budget, requested);
+                }
+                return System.nanoTime() + budget * 1_000_000;
+            });
+            long remainingMillis = (deadlineNanos - System.nanoTime()) / 1_000_000;
+            if (remainingMillis < MIN_ATTEMPT_MILLIS) {
+                return Mono.error(new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT, "request deadline exceeded"));
+            }
+            exchange.getAttributes().put(REMAINING_MILLIS_ATTR, remainingMillis);
+            //chain.filter 在收到响应头的时候就结束了，这里相当于这次尝试的响应超时不超过剩余时间
+            return chain.filter(exchange).timeout(Duration.ofMillis(remainingMillis),
+                    Mono.defer(() -> Mono.error(new TimeoutException("Request deadline exceeded: " + remainingMillis + "ms"))));
+        });
+    }
+
+    private static long parseRemainingMillis(String header) {
+        if (header == null || header.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(header.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public int getOrder() {
+        //必须在 RetryGatewayFilter 之后，这样每次重试都会执行；在负载均衡之前，和调用 url 无关
+        return RouteToRequestUrlFilter.ROUTE_TO_URL_FILTER_ORDER + 1;
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.hashjang.hoxton.api.gateway.filter;
+
+import com.github.hashjang.hoxton.api.gateway.common.CommonConstant;
+import org.springframework.cloud.gateway.filter.headers.HttpHeadersFilter;
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+
+/**
+ * 把 RequestDeadlineFilter 算好的这次尝试的剩余时间写到转发给微服务的请求头上
+ * NettyRoutingFilter 转发的时候本来就会经过 HttpHeadersFilter 生成一份新的请求头，在这里设置不需要额外复制请求头
+ * 排在 RemoveHopByHopHeadersFilter（LOWEST_PRECEDENCE - 1）之后，拿到的是它新建的可修改的请求头
+ */
+@Component
+public class RequestDeadlineHeadersFilter implements HttpHeadersFilter, Ordered {
+    @Override
+    public HttpHeaders filter(HttpHeaders input, ServerWebExchange exchange) {
+        Long remainingMillis = exchange.getAttribute(RequestDeadlineFilter.REMAINING_MILLIS_ATTR);
+        if (remainingMillis != null) {
+            input.set(CommonConstant.REQUEST_TIMEOUT, String.valueOf(remainingMillis));
+        }
+        return input;
+    }
+
+    @Override
+    public int getOrder() {
+        return Ordered.LOWEST_PRECEDENCE;
+    }
+}
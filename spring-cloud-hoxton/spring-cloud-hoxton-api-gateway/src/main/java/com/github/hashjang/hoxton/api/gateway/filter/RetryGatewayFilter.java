@@ -1,18 +1,20 @@
 package com.github.hashjang.hoxton.api.gateway.filter;
 
-import com.github.hashjang.hoxton.api.gateway.common.CommonConstant;
 import com.github.hashjang.hoxton.api.gateway.config.ApiGatewayRetryConfig;
 import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cloud.gateway.event.RefreshRoutesEvent;
 import org.springframework.cloud.gateway.filter.GatewayFilter;
 import org.springframework.cloud.gateway.filter.GatewayFilterChain;
 import org.springframework.cloud.gateway.filter.GlobalFilter;
 import org.springframework.cloud.gateway.filter.RouteToRequestUrlFilter;
 import org.springframework.cloud.gateway.filter.factory.RetryGatewayFilterFactory;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
+import org.springframework.context.ApplicationListener;
 import org.springframework.core.Ordered;
 import org.springframework.http.HttpMethod;
-import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.stereotype.Component;
 import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Mono;
@@ -20,10 +22,20 @@ import reactor.core.publisher.Mono;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * 每个微服务每个 HttpMethod 的重试 GatewayFilter 在这个微服务第一次请求的时候生成，之后按照路由 uri 里面的微服务名称和 method 取
+ * 之前是每个请求按照请求头里面的微服务名称 + method 拼接 key 去 ConcurrentHashMap 里面取，请求头是客户端可以随便传的，map 会无限增长
+ * 现在微服务名称来自路由配置，个数和路由一样是有限的；路由刷新（RefreshRoutesEvent）的时候清空，去掉已经不存在的路由的微服务
+ * 不在刷新的时候通过 RouteLocator 预先生成：CachingRouteLocator 是异步刷新缓存的，收到事件的时候拿到的可能还是旧的路由
+ */
 @Component
-public class RetryGatewayFilter extends RetryGatewayFilterFactory implements GlobalFilter, Ordered {
+public class RetryGatewayFilter extends RetryGatewayFilterFactory implements GlobalFilter, Ordered, ApplicationListener<RefreshRoutesEvent> {
+    private static final HttpMethod[] METHODS = HttpMethod.values();
 
-    private final Map<String, GatewayFilter> gatewayFilterMap = new ConcurrentHashMap<>();
+    /**
+     * 微服务名称 -> 按照 HttpMethod.ordinal() 的 GatewayFilter，不重试的为 null
+     */
+    private final Map<String, GatewayFilter[]> gatewayFilters = new ConcurrentHashMap<>();
     @Autowired
     private ApiGatewayRetryConfig apiGatewayRetryConfig;
 
@@ -33,23 +45,48 @@ public class RetryGatewayFilter extends RetryGatewayFilterFactory implements Glo
         return RouteToRequestUrlFilter.ROUTE_TO_URL_FILTER_ORDER - 1;
     }
 
+    @Override
+    public void onApplicationEvent(RefreshRoutesEvent event) {
+        //刷新过程中用旧路由的请求可能又放进去，重试配置只和微服务名称有关，放进去的也是对的
+        gatewayFilters.clear();
+    }
+
     @Override
     public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
-        ServerHttpRequest request = exchange.getRequest();
-        //获取微服务名称
-        String serviceName = request.getHeaders().getFirst(CommonConstant.SERVICE_NAME);
+        Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
         HttpMethod method = exchange.getRequest().getMethod();
-        //生成 GatewayFilter,保存到 gatewayFilterMap
-        GatewayFilter gatewayFilter = gatewayFilterMap.computeIfAbsent(serviceName + ":" + method, k -> {
-            Map<String, RetryConfig> retryConfigMap = apiGatewayRetryConfig.getRetry();
-            //通过微服务名称，获取重试配置
-            RetryConfig retryConfig = retryConfigMap.containsKey(serviceName) ? retryConfigMap.get(serviceName) : apiGatewayRetryConfig.getDefault();
-            //重试次数为0，则不重试
-            if (retryConfig.getRetries() == 0) {
-                return null;
+        if (route == null || method == null) {
+            return chain.filter(exchange);
+        }
+        String serviceName = route.getUri().getHost();
+        GatewayFilter[] filters = serviceName != null ? gatewayFilters.get(serviceName) : null;
+        if (filters == null) {
+            //同一个微服务的多个路由共用；ConcurrentHashMap 不能放 null key，没有 host 的路由用默认配置，不保存
+            filters = serviceName != null ?
+                    gatewayFilters.computeIfAbsent(serviceName, this::buildGatewayFilters) : buildGatewayFilters(null);
+        }
+        GatewayFilter gatewayFilter = filters[method.ordinal()];
+        return gatewayFilter != null ? gatewayFilter.filter(exchange, chain) : chain.filter(exchange);
+    }
+
+    private GatewayFilter[] buildGatewayFilters(String serviceName) {
+        GatewayFilter[] filters = new GatewayFilter[METHODS.length];
+        Map<String, RetryConfig> retryConfigMap = apiGatewayRetryConfig.getRetry();
+        //通过微服务名称，获取重试配置
+        RetryConfig retryConfig = serviceName != null && retryConfigMap.containsKey(serviceName) ? retryConfigMap.get(serviceName) : apiGatewayRetryConfig.getDefault();
+        //重试次数为0，则不重试
+        if (retryConfig.getRetries() == 0) {
+            return filters;
+        }
+        GatewayFilter getFilter = this.apply(retryConfig);
+        GatewayFilter nonGetFilter = null;
+        for (HttpMethod method : METHODS) {
+            if (HttpMethod.GET.equals(method)) {
+                filters[method.ordinal()] = getFilter;
+                continue;
             }
-            //针对非GET请求，强制限制重试并且只能重试下面的异常b
-            if (!HttpMethod.GET.equals(method)) {
+            //针对非GET请求，强制限制重试并且只能重试下面的异常，所有非GET的方法共用一个
+            if (nonGetFilter == null) {
                 RetryConfig newConfig = new RetryConfig();
                 BeanUtils.copyProperties(retryConfig, newConfig);
                 //限制所有方法都可以重试，由于外层限制了不为GET，这里相当于不为GET的所有方法
@@ -62,10 +99,10 @@ public class RetryGatewayFilter extends RetryGatewayFilterFactory implements Glo
                         java.net.ConnectException.class,
                         //针对Resilience4j的异常
                         CallNotPermittedException.class);
-                retryConfig = newConfig;
+                nonGetFilter = this.apply(newConfig);
             }
-            return this.apply(retryConfig);
-        });
-        return gatewayFilter != null ? gatewayFilter.filter(exchange, chain) : chain.filter(exchange);
+            filters[method.ordinal()] = nonGetFilter;
+        }
+        return filters;
     }
-}
\ No newline at end of file
+}
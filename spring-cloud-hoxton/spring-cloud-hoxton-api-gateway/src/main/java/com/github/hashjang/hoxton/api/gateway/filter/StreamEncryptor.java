@@ -0,0 +1,139 @@
+package com.github.hashjang.hoxton.api.gateway.filter;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.PooledDataBuffer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * AES/CTR 流式加密：CTR 是流密码，密文和明文一样长，不需要凑齐一个块，所以每来一个 DataBuffer 就加密一个，不用等整个 body
+ * 输出的第一个 DataBuffer 是随机的 16 字节 IV，之后是密文，解密方用 key 和这个 IV 同样可以一段一段解密（CTR 模式下解密和加密是同一个操作）
+ * 每个 DataBuffer 从 bufferFactory 分配（Netty 下是池化的），加密完立刻释放输入的 DataBuffer，所以每个请求占用的内存和 body 大小无关
+ * 不用 Cipher.update(ByteBuffer, ByteBuffer)：池化的是堆外的 DataBuffer，JDK 每次调用都会在堆上分配临时数组，改成每个请求复用一份数组
+ * 请求体反过来用 {@link #decrypt} 解密，格式一样
+ */
+public class StreamEncryptor {
+    public static final String TRANSFORMATION = "AES/CTR/NoPadding";
+    public static final int IV_LENGTH = 16;
+
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    /**
+     * 用 key 的 SHA-256 作为 AES-256 的密钥
+     */
+    public static SecretKeySpec secretKey(String key) throws GeneralSecurityException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+        return new SecretKeySpec(digest, "AES");
+    }
+
+    public static Flux<DataBuffer> encrypt(Flux<? extends DataBuffer> body, DataBufferFactory bufferFactory, SecretKeySpec secretKey) {
+        return Flux.defer(() -> {
+            byte[] iv = new byte[IV_LENGTH];
+            SECURE_RANDOM.nextBytes(iv);
+            ChunkCipher cipher;
+            try {
+                cipher = new ChunkCipher(Cipher.ENCRYPT_MODE, secretKey, iv);
+            } catch (GeneralSecurityException e) {
+                return Flux.error(e);
+            }
+            return Flux.concat(
+                    Mono.fromSupplier(() -> bufferFactory.wrap(iv)),
+                    body.map(dataBuffer -> cipher.update(dataBuffer, bufferFactory))
+            );
+        }).doOnDiscard(PooledDataBuffer.class, DataBufferUtils::release);
+    }
+
+    /**
+     * 先读出开头的 16 字节 IV（可能分在多个 DataBuffer 里面），之后每来一个 DataBuffer 解密一个
+     */
+    public static Flux<DataBuffer> decrypt(Flux<? extends DataBuffer> body, DataBufferFactory bufferFactory, SecretKeySpec secretKey) {
+        return Flux.defer(() -> {
+            Decryption decryption = new Decryption(secretKey);
+            return body.<DataBuffer>handle((dataBuffer, sink) -> {
+                DataBuffer output = decryption.update(dataBuffer, bufferFactory);
+                if (output != null) {
+                    sink.next(output);
+                }
+            }).concatWith(Mono.defer(() -> decryption.cipher != null ? Mono.empty() :
+                    Mono.error(new IllegalStateException("body is shorter than iv"))));
+        }).doOnDiscard(PooledDataBuffer.class, DataBufferUtils::release);
+    }
+
+    private static class Decryption {
+        private final SecretKeySpec secretKey;
+        private final byte[] iv = new byte[IV_LENGTH];
+        private int ivLength;
+        private ChunkCipher cipher;
+
+        private Decryption(SecretKeySpec secretKey) {
+            this.secretKey = secretKey;
+        }
+
+        /**
+         * @return 输入的 DataBuffer 只有 IV 的时候返回 null
+         */
+        private DataBuffer update(DataBuffer input, DataBufferFactory bufferFactory) {
+            if (cipher == null) {
+                int length = Math.min(IV_LENGTH - ivLength, input.readableByteCount());
+                input.read(iv, ivLength, length);
+                ivLength += length;
+                if (ivLength == IV_LENGTH) {
+                    try {
+                        cipher = new ChunkCipher(Cipher.DECRYPT_MODE, secretKey, iv);
+                    } catch (GeneralSecurityException e) {
+                        DataBufferUtils.release(input);
+                        throw new IllegalStateException(e);
+                    }
+                }
+                //IV 没读完的时候输入一定已经读完了
+                if (input.readableByteCount() == 0) {
+                    DataBufferUtils.release(input);
+                    return null;
+                }
+            }
+            return cipher.update(input, bufferFactory);
+        }
+    }
+
+    private static class ChunkCipher {
+        private final Cipher cipher;
+        /**
+         * 按照最大的 DataBuffer 分配，一个请求只有一份；输入输出不能是同一个数组，否则 JDK 会先复制一遍输入
+         */
+        private byte[] input = new byte[0];
+        private byte[] output = new byte[0];
+
+        private ChunkCipher(int mode, SecretKeySpec secretKey, byte[] iv) throws GeneralSecurityException {
+            //Cipher 不是线程安全的，每个请求或者响应一个；Flux 的 map 与 handle 是串行的
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(mode, secretKey, new IvParameterSpec(iv));
+        }
+
+        private DataBuffer update(DataBuffer dataBuffer, DataBufferFactory bufferFactory) {
+            try {
+                int length = dataBuffer.readableByteCount();
+                if (input.length < length) {
+                    input = new byte[length];
+                    output = new byte[length];
+                }
+                dataBuffer.read(input, 0, length);
+                int written = cipher.update(input, 0, length, output, 0);
+                return bufferFactory.allocateBuffer(written).write(output, 0, written);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                DataBufferUtils.release(dataBuffer);
+            }
+        }
+    }
+}
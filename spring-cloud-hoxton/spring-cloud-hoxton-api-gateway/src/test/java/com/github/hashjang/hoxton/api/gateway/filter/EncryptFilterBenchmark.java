@@ -0,0 +1,149 @@
+package com.github.hashjang.hoxton.api.gateway.filter;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EncryptFilter 加密响应体的开销，body 从 1KB 到 10MB，上游的响应和 Netty 读到的一样按照 8KB 一段从池化的 DataBuffer 里面来
+ * BUFFER_JOIN 是之前的实现：buffer() 攒齐整个响应，join 之后转成 String 再 getBytes，整个加密；STREAM 是现在的 StreamEncryptor 一段一段加密
+ * 加 GC profiler 看每次加密在堆上分配的内存，STREAM 的输出也是池化的 DataBuffer，堆上只有每一段的包装对象和一份复用的数组
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class EncryptFilterBenchmark {
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final NettyDataBufferFactory BUFFER_FACTORY = new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+
+    @Param({"BUFFER_JOIN", "STREAM"})
+    private String mode;
+    @Param({"1024", "65536", "1048576", "10485760"})
+    private int bodySize;
+
+    private byte[] body;
+    private SecretKeySpec secretKey;
+
+    @Setup
+    public void setup() throws Exception {
+        body = body(bodySize);
+        secretKey = StreamEncryptor.secretKey("benchmark");
+    }
+
+    @Benchmark
+    public void encrypt(Blackhole blackhole) {
+        encrypt(mode, chunks(body), secretKey)
+                .doOnNext(dataBuffer -> {
+                    blackhole.consume(dataBuffer.readableByteCount());
+                    DataBufferUtils.release(dataBuffer);
+                })
+                .blockLast();
+    }
+
+    private static Flux<DataBuffer> encrypt(String mode, Flux<DataBuffer> upstream, SecretKeySpec secretKey) {
+        if ("BUFFER_JOIN".equals(mode)) {
+            return upstream.buffer().map(buffers -> {
+                DataBuffer joined = BUFFER_FACTORY.join(buffers);
+                try {
+                    String s = joined.toString(StandardCharsets.UTF_8);
+                    byte[] iv = new byte[StreamEncryptor.IV_LENGTH];
+                    ThreadLocalRandom.current().nextBytes(iv);
+                    Cipher cipher = Cipher.getInstance(StreamEncryptor.TRANSFORMATION);
+                    cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
+                    byte[] encrypted = cipher.doFinal(s.getBytes(StandardCharsets.UTF_8));
+                    byte[] result = Arrays.copyOf(iv, iv.length + encrypted.length);
+                    System.arraycopy(encrypted, 0, result, iv.length, encrypted.length);
+                    return BUFFER_FACTORY.wrap(result);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    DataBufferUtils.release(joined);
+                }
+            });
+        }
+        return StreamEncryptor.encrypt(upstream, BUFFER_FACTORY, secretKey);
+    }
+
+    /**
+     * 和 Netty 读取上游响应一样，每一段复制到一个新分配的池化 DataBuffer
+     */
+    private static Flux<DataBuffer> chunks(byte[] body) {
+        return Flux.range(0, (body.length + CHUNK_SIZE - 1) / CHUNK_SIZE).map(i -> {
+            int offset = i * CHUNK_SIZE;
+            int length = Math.min(CHUNK_SIZE, body.length - offset);
+            return BUFFER_FACTORY.allocateBuffer(length).write(body, offset, length);
+        });
+    }
+
+    /**
+     * ASCII 的 json 字符串，BUFFER_JOIN 转 String 之后长度不变
+     */
+    private static byte[] body(int size) {
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        body[0] = '[';
+        body[size - 1] = ']';
+        return body;
+    }
+
+    private static byte[] decrypt(byte[] encrypted, SecretKeySpec secretKey) throws Exception {
+        Cipher cipher = Cipher.getInstance(StreamEncryptor.TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(encrypted, 0, StreamEncryptor.IV_LENGTH));
+        return cipher.doFinal(encrypted, StreamEncryptor.IV_LENGTH, encrypted.length - StreamEncryptor.IV_LENGTH);
+    }
+
+    public static void main(String[] args) throws Exception {
+        //先确认两种实现加密之后都能解密出原来的 body
+        SecretKeySpec secretKey = StreamEncryptor.secretKey("benchmark");
+        for (String mode : new String[]{"BUFFER_JOIN", "STREAM"}) {
+            byte[] body = body(1048576);
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            encrypt(mode, chunks(body), secretKey).doOnNext(dataBuffer -> {
+                byte[] bytes = new byte[dataBuffer.readableByteCount()];
+                dataBuffer.read(bytes);
+                encrypted.write(bytes, 0, bytes.length);
+                DataBufferUtils.release(dataBuffer);
+            }).blockLast();
+            if (!Arrays.equals(body, decrypt(encrypted.toByteArray(), secretKey))) {
+                throw new IllegalStateException("different result for " + mode);
+            }
+        }
+        new Runner(new OptionsBuilder()
+                .include(EncryptFilterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,165 @@
+package com.github.hashjang.hoxton.api.gateway.filter;
+
+import com.github.hashjang.hoxton.api.gateway.common.CommonConstant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.cloud.gateway.filter.headers.HttpHeadersFilter;
+import org.springframework.cloud.gateway.filter.headers.RemoveHopByHopHeadersFilter;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 网关 GlobalFilter 链的开销：RecordServiceNameFilter + 读取请求头的过滤器 + RequestDeadlineFilter，最后和 NettyRoutingFilter 一样经过 HttpHeadersFilter 生成转发的请求头
+ * HEADER_COPY 是之前的 RecordServiceNameFilter：用 ServerHttpRequestDecorator 覆盖 getHeaders()，每次调用都复制一遍请求头再加上微服务名称
+ * MUTATE 是之前每次尝试通过 exchange.mutate() 设置剩余时间请求头（每次复制一遍请求头），HEADERS_FILTER 是现在由 RequestDeadlineHeadersFilter 写到转发的请求头上
+ * headerReads 模拟后面的过滤器（负载均衡、断路器、重试等）调用 getHeaders() 的次数
+ * attempts 模拟 RetryGatewayFilter 重试的次数，每次尝试都会重新执行 RequestDeadlineFilter 之后的过滤器
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class GatewayFilterChainBenchmark {
+    private static final int HEADER_COUNT = 20;
+    private static final String HEADER_READS_ATTR = "headerReads";
+
+    @Param({"HEADER_COPY", "MUTATE", "HEADERS_FILTER"})
+    private String mode;
+    @Param({"1", "5"})
+    private int headerReads;
+    @Param({"1", "3"})
+    private int attempts;
+
+    private List<GlobalFilter> filters;
+    private List<HttpHeadersFilter> headersFilters;
+    private Route route;
+
+    @Setup
+    public void setup() {
+        RequestDeadlineFilter requestDeadlineFilter = new RequestDeadlineFilter(new StandardEnvironment());
+        GlobalFilter recordServiceName = "HEADER_COPY".equals(mode) ? new HeaderCopyRecordServiceNameFilter() : new RecordServiceNameFilter();
+        GlobalFilter readHeaders = (exchange, chain) -> {
+            int length = 0;
+            for (int i = 0; i < headerReads; i++) {
+                length += exchange.getRequest().getHeaders().getFirst("X-Header-" + i).length();
+            }
+            exchange.getAttributes().put(HEADER_READS_ATTR, length);
+            return chain.filter(exchange);
+        };
+        if ("HEADERS_FILTER".equals(mode)) {
+            filters = List.of(recordServiceName, readHeaders, requestDeadlineFilter);
+            headersFilters = List.of(new RemoveHopByHopHeadersFilter(), new RequestDeadlineHeadersFilter());
+        } else {
+            GlobalFilter mutateHeader = (exchange, chain) -> {
+                Long remainingMillis = exchange.getAttribute(RequestDeadlineFilter.REMAINING_MILLIS_ATTR);
+                return chain.filter(exchange.mutate().request(builder -> builder.headers(httpHeaders ->
+                        httpHeaders.set(CommonConstant.REQUEST_TIMEOUT, String.valueOf(remainingMillis))
+                )).build());
+            };
+            filters = List.of(recordServiceName, readHeaders, requestDeadlineFilter, mutateHeader);
+            headersFilters = List.of(new RemoveHopByHopHeadersFilter());
+        }
+        route = Route.async().id("service-provider").uri("lb://service-provider").predicate(exchange -> true).build();
+    }
+
+    @Benchmark
+    public void filterChain(Blackhole blackhole) {
+        MockServerHttpRequest.BaseBuilder<?> builder = MockServerHttpRequest.get("http://gateway/service-provider/anything");
+        for (int i = 0; i < HEADER_COUNT; i++) {
+            builder.header("X-Header-" + i, "value" + i);
+        }
+        MockServerWebExchange exchange = MockServerWebExchange.from(builder);
+        exchange.getAttributes().put(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR, route);
+        for (int i = 0; i < attempts; i++) {
+            new Chain(filters, 0, forwarded -> {
+                //和 NettyRoutingFilter 一样生成转发的请求头
+                HttpHeaders headers = HttpHeadersFilter.filterRequest(headersFilters, forwarded);
+                blackhole.consume(headers.getFirst(CommonConstant.REQUEST_TIMEOUT));
+                blackhole.consume(forwarded.getAttribute(HEADER_READS_ATTR));
+            }).filter(exchange).block();
+        }
+    }
+
+    /**
+     * 之前的 RecordServiceNameFilter
+     */
+    private static class HeaderCopyRecordServiceNameFilter implements GlobalFilter {
+        @Override
+        public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+            Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
+            String host = route.getUri().getHost();
+            return chain.filter(exchange.mutate().request(new ServerHttpRequestDecorator(exchange.getRequest()) {
+                @Override
+                public HttpHeaders getHeaders() {
+                    HttpHeaders httpHeaders = new HttpHeaders();
+                    httpHeaders.putAll(exchange.getRequest().getHeaders());
+                    httpHeaders.set(CommonConstant.SERVICE_NAME, host);
+                    return httpHeaders;
+                }
+            }).build());
+        }
+    }
+
+    private interface Routing {
+        void route(ServerWebExchange exchange);
+    }
+
+    /**
+     * 和 FilteringWebHandler 里面的 DefaultGatewayFilterChain 一样按照顺序执行，最后转发
+     */
+    private static class Chain implements GatewayFilterChain {
+        private final List<GlobalFilter> filters;
+        private final int index;
+        private final Routing routing;
+
+        Chain(List<GlobalFilter> filters, int index, Routing routing) {
+            this.filters = filters;
+            this.index = index;
+            this.routing = routing;
+        }
+
+        @Override
+        public Mono<Void> filter(ServerWebExchange exchange) {
+            if (index < filters.size()) {
+                return filters.get(index).filter(exchange, new Chain(filters, index + 1, routing));
+            }
+            return Mono.fromRunnable(() -> routing.route(exchange));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(GatewayFilterChainBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
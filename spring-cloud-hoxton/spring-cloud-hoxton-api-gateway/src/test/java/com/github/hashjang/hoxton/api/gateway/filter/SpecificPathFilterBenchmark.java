@@ -0,0 +1,147 @@
+package com.github.hashjang.hoxton.api.gateway.filter;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.CollectionUtils;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AbstractSpecificPathFilter 判断请求是否要经过这个 filter 的开销，10000 个不同的路径（路径里面有 id）
+ * ANT_PATH_CACHE 是之前按照 method + path 缓存 AntPathMatcher 结果的实现，PATH_PATTERN 是现在启动时编译好的 PathPattern
+ * main 方法先统计 10000 个路径之后之前的缓存有多少个 key，再跑 JMH 统计吞吐量与每次判断分配的内存
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class SpecificPathFilterBenchmark {
+    private static final int PATH_COUNT = 10_000;
+    private static final Map<String, List<HttpMethod>> PATHS = Map.of(
+            "/service-provider/test-simple", List.of(HttpMethod.POST),
+            "/service-provider/orders/{id}/detail", List.of(HttpMethod.GET),
+            "/service-provider/users/**", List.of(),
+            "/service-consumer/*/status", List.of(HttpMethod.GET)
+    );
+
+    @Param({"ANT_PATH_CACHE", "PATH_PATTERN"})
+    private String mode;
+
+    private AbstractSpecificPathFilter filter;
+    private ServerWebExchange[] exchanges;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int index;
+    }
+
+    @Setup
+    public void setup() {
+        filter = "ANT_PATH_CACHE".equals(mode) ? new AntPathCacheFilter() : new PathPatternFilter();
+        filter.compilePaths();
+        exchanges = exchanges();
+    }
+
+    @Benchmark
+    public boolean shouldBeFiltered(Cursor cursor) {
+        ServerWebExchange exchange = exchanges[cursor.index];
+        cursor.index = (cursor.index + 1) % PATH_COUNT;
+        return filter.shouldBeFiltered(exchange);
+    }
+
+    /**
+     * 一半是匹配的订单详情，一半是不匹配的其他路径
+     */
+    private static ServerWebExchange[] exchanges() {
+        ServerWebExchange[] exchanges = new ServerWebExchange[PATH_COUNT];
+        for (int i = 0; i < PATH_COUNT; i++) {
+            String path = i % 2 == 0 ? "/service-provider/orders/" + i + "/detail" : "/service-provider/orders/" + i + "/items";
+            exchanges[i] = MockServerWebExchange.from(MockServerHttpRequest.get(path));
+        }
+        return exchanges;
+    }
+
+    private static class PathPatternFilter extends AbstractSpecificPathFilter {
+        @Override
+        protected Mono<Void> filter0(ServerWebExchange exchange, GatewayFilterChain chain) {
+            return chain.filter(exchange);
+        }
+
+        @Override
+        protected Map<String, List<HttpMethod>> getPaths() {
+            return PATHS;
+        }
+
+        @Override
+        public int getOrder() {
+            return 0;
+        }
+    }
+
+    /**
+     * 之前的实现：没有上限的缓存，每个新路径遍历一遍所有的 pattern
+     */
+    private static class AntPathCacheFilter extends PathPatternFilter {
+        private final AntPathMatcher matcher = new AntPathMatcher();
+        private final LoadingCache<String, Boolean> filterCache = Caffeine.newBuilder().build(key -> {
+            String[] split = key.split(",");
+            HttpMethod httpMethod = HttpMethod.valueOf(split[0]);
+            for (Map.Entry<String, List<HttpMethod>> entry : PATHS.entrySet()) {
+                if (matcher.match(entry.getKey(), split[1])) {
+                    if (CollectionUtils.isEmpty(entry.getValue()) || entry.getValue().contains(httpMethod)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        });
+
+        @Override
+        protected boolean shouldBeFiltered(ServerWebExchange exchange) {
+            return filterCache.get(exchange.getRequest().getMethod() + "," + exchange.getRequest().getPath().value());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        AntPathCacheFilter antPathCacheFilter = new AntPathCacheFilter();
+        PathPatternFilter pathPatternFilter = new PathPatternFilter();
+        pathPatternFilter.compilePaths();
+        for (ServerWebExchange exchange : exchanges()) {
+            if (antPathCacheFilter.shouldBeFiltered(exchange) != pathPatternFilter.shouldBeFiltered(exchange)) {
+                throw new IllegalStateException("different result for " + exchange.getRequest().getPath());
+            }
+        }
+        System.out.printf("ANT_PATH_CACHE cache size after %d paths: %d%n", PATH_COUNT, antPathCacheFilter.filterCache.estimatedSize());
+        new Runner(new OptionsBuilder()
+                .include(SpecificPathFilterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
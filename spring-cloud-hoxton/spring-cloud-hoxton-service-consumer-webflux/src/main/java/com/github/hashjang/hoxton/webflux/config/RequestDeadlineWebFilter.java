@@ -0,0 +1,41 @@
+package com.github.hashjang.hoxton.webflux.config;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+/**
+ * 调用方（网关）通过请求头告诉我们还剩多少毫秒，这里换算成本地的截止时间（System.nanoTime()）放到 Reactor 的 Context 里面
+ * WebClient 的 DeadlineFilter 从 Context 里面读取，继续往下传
+ */
+@Component
+public class RequestDeadlineWebFilter implements WebFilter {
+    public static final String HEADER = "X-Request-Timeout";
+    public static final String CONTEXT_KEY = RequestDeadlineWebFilter.class.getName() + ".deadlineNanos";
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        long remainingMillis = parseRemainingMillis(exchange.getRequest().getHeaders().getFirst(HEADER));
+        if (remainingMillis < 0) {
+            return chain.filter(exchange);
+        }
+        long deadlineNanos = System.nanoTime() + remainingMillis * 1_000_000;
+        return chain.filter(exchange).subscriberContext(context -> context.put(CONTEXT_KEY, deadlineNanos));
+    }
+
+    /**
+     * @return 请求头没有或者格式不对的时候返回 -1
+     */
+    static long parseRemainingMillis(String header) {
+        if (header == null || header.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(header.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
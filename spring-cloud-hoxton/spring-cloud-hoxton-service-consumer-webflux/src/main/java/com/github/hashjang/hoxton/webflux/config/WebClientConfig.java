@@ -53,6 +53,8 @@ public class WebClientConfig {
                 .clientConnector(new ReactorClientHttpConnector(httpClient))
                 //Retry在负载均衡前
                 .filter(new RetryFilter(SERVICE_PROVIDER))
+                //在Retry之后，每次重试都传当时的剩余时间
+                .filter(new DeadlineFilter())
                 //负载均衡器，改写url
                 .filter(lbFunction)
                 //实例级别的断路器需要在负载均衡获取真正地址之后
@@ -72,6 +74,10 @@ public class WebClientConfig {
         @Override
         public Mono<ClientResponse> filter(ClientRequest clientRequest, ExchangeFunction exchangeFunction) {
             return exchangeFunction.exchange(clientRequest).retryWhen(Retry.onlyIf(retryContext -> {
+                //已经过了调用方的截止时间，重试也没用
+                if (retryContext.exception() instanceof DeadlineExceededException) {
+                    return false;
+                }
                 //get请求一定重试
                 return clientRequest.method().equals(HttpMethod.GET)
                         //connect Timeout 是一种 IOException
@@ -82,6 +88,40 @@ public class WebClientConfig {
         }
     }
 
+    /**
+     * 有截止时间的时候（RequestDeadlineWebFilter 放在 Context 里面），通过请求头把剩余时间传给被调用方，并且这次尝试最多等到截止时间
+     * 剩余时间不够再尝试一次的时候直接失败，不再请求
+     */
+    private static class DeadlineFilter implements ExchangeFilterFunction {
+        //剩余时间少于这个，连建立连接都不一定够
+        private static final long MIN_ATTEMPT_MILLIS = 20;
+
+        @Override
+        public Mono<ClientResponse> filter(ClientRequest clientRequest, ExchangeFunction exchangeFunction) {
+            return Mono.subscriberContext().flatMap(context -> {
+                if (!context.hasKey(RequestDeadlineWebFilter.CONTEXT_KEY)) {
+                    return exchangeFunction.exchange(clientRequest);
+                }
+                long deadlineNanos = context.get(RequestDeadlineWebFilter.CONTEXT_KEY);
+                long remainingMillis = (deadlineNanos - System.nanoTime()) / 1_000_000;
+                if (remainingMillis < MIN_ATTEMPT_MILLIS) {
+                    return Mono.error(new DeadlineExceededException(clientRequest));
+                }
+                ClientRequest request = ClientRequest.from(clientRequest)
+                        .headers(httpHeaders -> httpHeaders.set(RequestDeadlineWebFilter.HEADER, String.valueOf(remainingMillis)))
+                        .build();
+                return exchangeFunction.exchange(request).timeout(Duration.ofMillis(remainingMillis),
+                        Mono.defer(() -> Mono.error(new DeadlineExceededException(clientRequest))));
+            });
+        }
+    }
+
+    private static class DeadlineExceededException extends RuntimeException {
+        private DeadlineExceededException(ClientRequest clientRequest) {
+            super("request deadline exceeded: " + clientRequest.method() + " " + clientRequest.url(), null, false, false);
+        }
+    }
+
     private static class InstanceCircuitBreakerFilter implements ExchangeFilterFunction {
         private final String serviceName;
         private final CircuitBreakerRegistry circuitBreakerRegistry;
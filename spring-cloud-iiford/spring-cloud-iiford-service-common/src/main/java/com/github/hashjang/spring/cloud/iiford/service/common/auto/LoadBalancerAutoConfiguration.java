@@ -1,10 +1,34 @@
 package com.github.hashjang.spring.cloud.iiford.service.common.auto;
 
 import com.github.hashjang.spring.cloud.iiford.service.common.config.DefaultLoadBalancerConfiguration;
+import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.InstanceLoadStatsRegistry;
+import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.OpenCircuitBreakerInstances;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
 import org.springframework.cloud.loadbalancer.annotation.LoadBalancerClients;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import java.time.Duration;
 
 @Configuration(proxyBeanMethods = false)
 @LoadBalancerClients(defaultConfiguration = DefaultLoadBalancerConfiguration.class)
 public class LoadBalancerAutoConfiguration {
+    /**
+     * 所有微服务共享，放在父 context 里面，Feign 调用记录，每个微服务的 LoadBalancer 读取
+     */
+    @Bean
+    public InstanceLoadStatsRegistry instanceLoadStatsRegistry(Environment environment) {
+        return new InstanceLoadStatsRegistry(environment.getProperty(
+                DefaultLoadBalancerConfiguration.PEAK_EWMA_DECAY_TIME, Duration.class, Duration.ofSeconds(10)
+        ));
+    }
+
+    /**
+     * 所有微服务共享，只需要监听一次断路器事件
+     */
+    @Bean
+    public OpenCircuitBreakerInstances openCircuitBreakerInstances(CircuitBreakerRegistry circuitBreakerRegistry) {
+        return new OpenCircuitBreakerInstances(circuitBreakerRegistry);
+    }
 }
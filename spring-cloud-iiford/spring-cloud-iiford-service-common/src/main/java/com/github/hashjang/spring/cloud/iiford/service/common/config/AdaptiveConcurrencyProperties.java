@@ -0,0 +1,53 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 每个实例的自适应并发限制配置，key 为 contextId，和 resilience4j 配置一样，default 为默认配置，没有单独配置的 contextId 使用 default 配置
+ * 在 Bulkhead 外面再套一层，Bulkhead 的大小作为上限兜底，默认关闭
+ * feign.adaptive-concurrency.configs.default.enabled=true
+ * feign.adaptive-concurrency.configs.service-provider2.max-limit=100
+ */
+@Data
+@ConfigurationProperties(prefix = "feign.adaptive-concurrency")
+public class AdaptiveConcurrencyProperties {
+    public static final String DEFAULT = "default";
+
+    private Map<String, Config> configs = new HashMap<>();
+
+    public Config getConfig(String contextId) {
+        Config config = configs.get(contextId);
+        if (config == null) {
+            config = configs.getOrDefault(DEFAULT, new Config());
+        }
+        return config;
+    }
+
+    @Data
+    public static class Config {
+        private boolean enabled = false;
+        private int initialLimit = 20;
+        private int minLimit = 2;
+        private int maxLimit = 200;
+        /**
+         * 当前延迟是长期平均延迟的多少倍以内不算排队，越大越不敏感
+         */
+        private double rttTolerance = 1.5;
+        /**
+         * 每次调整的平滑系数，越大调整越快
+         */
+        private double smoothing = 0.2;
+        /**
+         * 长期平均延迟的 EWMA 窗口（调用次数）
+         */
+        private int longWindow = 600;
+        /**
+         * 请求超时或者 IO 异常的时候，限制乘以这个比例
+         */
+        private double backoffRatio = 0.9;
+    }
+}
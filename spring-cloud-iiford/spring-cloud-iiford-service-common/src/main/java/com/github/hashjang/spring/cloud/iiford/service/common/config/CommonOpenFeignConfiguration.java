@@ -1,17 +1,24 @@
 package com.github.hashjang.spring.cloud.iiford.service.common.config;
 
 import brave.Tracer;
+import com.github.hashjang.spring.cloud.iiford.service.common.feign.AdaptiveConcurrencyLimitRegistry;
 import com.github.hashjang.spring.cloud.iiford.service.common.feign.ApacheHttpClient;
+import com.github.hashjang.spring.cloud.iiford.service.common.feign.CoalescingFeignClient;
+import com.github.hashjang.spring.cloud.iiford.service.common.feign.DeadlineRequestInterceptor;
 import com.github.hashjang.spring.cloud.iiford.service.common.feign.FeignBlockingLoadBalancerClientDelegate;
+import com.github.hashjang.spring.cloud.iiford.service.common.feign.FeignConnectionPools;
+import com.github.hashjang.spring.cloud.iiford.service.common.feign.FeignTransport;
+import com.github.hashjang.spring.cloud.iiford.service.common.feign.HedgingFeignClient;
+import com.github.hashjang.spring.cloud.iiford.service.common.feign.JdkHttpClient;
 import com.github.hashjang.spring.cloud.iiford.service.common.feign.Resilience4jFeignClient;
+import com.github.hashjang.spring.cloud.iiford.service.common.feign.RetryBudgetRegistry;
+import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.InstanceLoadStatsRegistry;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
 import io.github.resilience4j.bulkhead.ThreadPoolBulkheadRegistry;
 import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
-import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.cloud.client.loadbalancer.LoadBalancerClient;
 import org.springframework.cloud.client.loadbalancer.LoadBalancerProperties;
 import org.springframework.cloud.loadbalancer.blocking.client.BlockingLoadBalancerClient;
@@ -22,63 +29,112 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 
-import java.util.concurrent.TimeUnit;
-
 @Configuration(proxyBeanMethods = false)
+@EnableConfigurationProperties({FeignExecutionProperties.class, FeignConnectionPoolProperties.class, RetryBudgetProperties.class, FeignHedgingProperties.class, AdaptiveConcurrencyProperties.class})
 public class CommonOpenFeignConfiguration {
+    /**
+     * 每个 contextId 一个连接池，配置见 FeignConnectionPoolProperties
+     */
     @Bean
-    public HttpClient getHttpClient() {
-        // 长连接保持5分钟
-        PoolingHttpClientConnectionManager pollingConnectionManager = new PoolingHttpClientConnectionManager(5, TimeUnit.MINUTES);
-        // 总连接数
-        pollingConnectionManager.setMaxTotal(1000);
-        // 同路由的并发数
-        pollingConnectionManager.setDefaultMaxPerRoute(1000);
+    public FeignConnectionPools feignConnectionPools(
+            FeignConnectionPoolProperties feignConnectionPoolProperties,
+            ObjectProvider<MeterRegistry> meterRegistry
+    ) {
+        return new FeignConnectionPools(feignConnectionPoolProperties, meterRegistry.getIfAvailable());
+    }
 
-        HttpClientBuilder httpClientBuilder = HttpClients.custom();
-        httpClientBuilder.setConnectionManager(pollingConnectionManager);
-        // 保持长连接配置，需要在头添加Keep-Alive
-        httpClientBuilder.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy());
-        return httpClientBuilder.build();
+    /**
+     * 每个 contextId 一个重试预算，配置见 RetryBudgetProperties
+     */
+    @Bean
+    public RetryBudgetRegistry retryBudgetRegistry(
+            RetryBudgetProperties retryBudgetProperties,
+            ObjectProvider<MeterRegistry> meterRegistry
+    ) {
+        return new RetryBudgetRegistry(retryBudgetProperties, meterRegistry.getIfAvailable());
     }
 
+    /**
+     * 每个 contextId + 实例一个自适应并发限制，配置见 AdaptiveConcurrencyProperties
+     */
     @Bean
-    public ApacheHttpClient apacheHttpClient(HttpClient httpClient) {
-        return new ApacheHttpClient(httpClient);
+    public AdaptiveConcurrencyLimitRegistry adaptiveConcurrencyLimitRegistry(
+            AdaptiveConcurrencyProperties adaptiveConcurrencyProperties,
+            ObjectProvider<MeterRegistry> meterRegistry
+    ) {
+        return new AdaptiveConcurrencyLimitRegistry(adaptiveConcurrencyProperties, meterRegistry.getIfAvailable());
+    }
+
+    /**
+     * 把调用方传过来的截止时间继续往下传
+     */
+    @Bean
+    public DeadlineRequestInterceptor deadlineRequestInterceptor() {
+        return new DeadlineRequestInterceptor();
+    }
+
+    @Bean
+    public ApacheHttpClient apacheHttpClient(FeignConnectionPools feignConnectionPools) {
+        return new ApacheHttpClient(feignConnectionPools);
     }
 
     /**
      *
-     * @param apacheHttpClient
+     * @param apacheHttpClient feign.execution.transport 为 APACHE（默认）的时候使用，为 JDK 的时候使用 JdkHttpClient
      * @param loadBalancerClientProvider 为何使用 ObjectProvider 请参考 FeignBlockingLoadBalancerClientDelegate 的注释
-     * @param threadPoolBulkheadRegistry
+     * @param threadPoolBulkheadRegistry THREAD_POOL 模式使用
+     * @param bulkheadRegistry SEMAPHORE 与 VIRTUAL_THREAD 模式使用
      * @param circuitBreakerRegistry
      * @param tracer
+     * @param feignExecutionProperties 每个微服务的执行方式
+     * @param meterRegistry 调用监控
+     * @param instanceLoadStatsRegistry 实例负载统计，供 PeakEwmaLoadBalancer 使用
+     * @param adaptiveConcurrencyLimitRegistry 实例维度的自适应并发限制，在 Bulkhead 外面
      * @param properties
      * @param loadBalancerClientFactory
-     * @return FeignBlockingLoadBalancerClientDelegate 为何使用这个不直接用 FeignBlockingLoadBalancerClient 请参考 FeignBlockingLoadBalancerClientDelegate 的注释
+     * @param feignHedgingProperties 对冲请求配置，默认关闭
+     * @param retryBudgetRegistry 对冲请求也消耗重试预算
+     * @return FeignBlockingLoadBalancerClientDelegate 外面包一层 HedgingFeignClient，每个对冲请求都单独负载均衡；
+     * 最外面是 CoalescingFeignClient，有 CoalescedRequest 注解的相同请求合并之后再对冲
+     * 为何使用 FeignBlockingLoadBalancerClientDelegate 不直接用 FeignBlockingLoadBalancerClient 请参考 FeignBlockingLoadBalancerClientDelegate 的注释
      */
     @Bean
     @Primary
-    public FeignBlockingLoadBalancerClientDelegate feignBlockingLoadBalancerCircuitBreakableClient(
+    public CoalescingFeignClient feignBlockingLoadBalancerCircuitBreakableClient(
             ApacheHttpClient apacheHttpClient,
             ObjectProvider<LoadBalancerClient> loadBalancerClientProvider,
             ThreadPoolBulkheadRegistry threadPoolBulkheadRegistry,
+            BulkheadRegistry bulkheadRegistry,
             CircuitBreakerRegistry circuitBreakerRegistry,
             Tracer tracer,
+            FeignExecutionProperties feignExecutionProperties,
+            MeterRegistry meterRegistry,
+            InstanceLoadStatsRegistry instanceLoadStatsRegistry,
+            AdaptiveConcurrencyLimitRegistry adaptiveConcurrencyLimitRegistry,
             LoadBalancerProperties properties,
-            LoadBalancerClientFactory loadBalancerClientFactory
+            LoadBalancerClientFactory loadBalancerClientFactory,
+            FeignHedgingProperties feignHedgingProperties,
+            RetryBudgetRegistry retryBudgetRegistry
     ) {
-        return new FeignBlockingLoadBalancerClientDelegate(
+        FeignBlockingLoadBalancerClientDelegate feignBlockingLoadBalancerClientDelegate = new FeignBlockingLoadBalancerClientDelegate(
                 new Resilience4jFeignClient(
-                        apacheHttpClient,
+                        feignExecutionProperties.getTransport() == FeignTransport.JDK ? new JdkHttpClient() : apacheHttpClient,
                         threadPoolBulkheadRegistry,
+                        bulkheadRegistry,
                         circuitBreakerRegistry,
-                        tracer
+                        tracer,
+                        feignExecutionProperties,
+                        meterRegistry,
+                        instanceLoadStatsRegistry,
+                        adaptiveConcurrencyLimitRegistry
                 ),
                 loadBalancerClientProvider,
                 properties,
                 loadBalancerClientFactory
         );
+        return new CoalescingFeignClient(
+                new HedgingFeignClient(feignBlockingLoadBalancerClientDelegate, feignHedgingProperties, retryBudgetRegistry, tracer, meterRegistry),
+                meterRegistry
+        );
     }
 }
@@ -1,8 +1,16 @@
 package com.github.hashjang.spring.cloud.iiford.service.common.config;
 
 import brave.Tracer;
+import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.CircuitBreakerAwareServiceInstanceListSupplier;
+import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.EurekaEventServiceInstanceListSupplier;
+import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.InstanceLoadStatsRegistry;
+import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.OpenCircuitBreakerInstances;
+import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.PeakEwmaLoadBalancer;
+import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.PositionStrategy;
 import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.RoundRobinWithRequestSeparatedPositionLoadBalancer;
 import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.SameZoneOnlyServiceInstanceListSupplier;
+import com.netflix.discovery.EurekaClient;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.actuate.cache.CachesEndpoint;
@@ -28,6 +36,10 @@ import java.util.Map;
 
 @Configuration(proxyBeanMethods = false)
 public class DefaultLoadBalancerConfiguration {
+    public static final String POSITION_STRATEGY = "spring.cloud.loadbalancer.position-strategy";
+    public static final String PEAK_EWMA_ENABLED = "spring.cloud.loadbalancer.peak-ewma.enabled";
+    public static final String PEAK_EWMA_DECAY_TIME = "spring.cloud.loadbalancer.peak-ewma.decay-time";
+
     @Autowired
     private ConfigurableApplicationContext context;
     @Autowired(required = false)
@@ -51,35 +63,63 @@ public class DefaultLoadBalancerConfiguration {
             DiscoveryClient discoveryClient,
             Environment env,
             ConfigurableApplicationContext context,
-            LoadBalancerZoneConfig zoneConfig
+            LoadBalancerZoneConfig zoneConfig,
+            OpenCircuitBreakerInstances openCircuitBreakerInstances
     ) {
         ObjectProvider<LoadBalancerCacheManager> cacheManagerProvider = context
                 .getBeanProvider(LoadBalancerCacheManager.class);
-        return  //开启服务实例缓存
-                new CachingServiceInstanceListSupplier(
-                        //只能返回同一个 zone 的服务实例
-                        new SameZoneOnlyServiceInstanceListSupplier(
-                                //启用通过 discoveryClient 的服务发现
-                                new DiscoveryClientServiceInstanceListSupplier(
-                                        discoveryClient, env
-                                ),
-                                zoneConfig
-                        )
-                        , cacheManagerProvider.getIfAvailable()
-                );
+        EurekaClient eurekaClient = context.getBeanProvider(EurekaClient.class).getIfAvailable();
+        ServiceInstanceListSupplier instanceListSupplier;
+        if (eurekaClient != null) {
+            //Eureka Client 本地缓存刷新的时候才更新实例列表，不用按照 ttl 轮询
+            instanceListSupplier = new EurekaEventServiceInstanceListSupplier(
+                    env.getProperty(LoadBalancerClientFactory.PROPERTY_NAME), discoveryClient, eurekaClient
+            );
+        } else {
+            //开启服务实例缓存
+            instanceListSupplier = new CachingServiceInstanceListSupplier(
+                    //启用通过 discoveryClient 的服务发现
+                    new DiscoveryClientServiceInstanceListSupplier(
+                            discoveryClient, env
+                    ),
+                    cacheManagerProvider.getIfAvailable()
+            );
+        }
+        //过滤掉断路器打开的实例，放在最外层，断路器状态变化立刻生效
+        return new CircuitBreakerAwareServiceInstanceListSupplier(
+                //只能返回同一个 zone 的服务实例，实例列表没变的时候直接返回上次过滤的结果
+                new SameZoneOnlyServiceInstanceListSupplier(
+                        instanceListSupplier,
+                        zoneConfig,
+                        context.getBeanProvider(MeterRegistry.class).getIfAvailable()
+                ),
+                openCircuitBreakerInstances
+        );
     }
 
     @Bean
     public ReactorLoadBalancer<ServiceInstance> reactorServiceInstanceLoadBalancer(
             Environment environment,
             ServiceInstanceListSupplier serviceInstanceListSupplier,
-            Tracer tracer
+            Tracer tracer,
+            InstanceLoadStatsRegistry instanceLoadStatsRegistry
     ) {
         String name = environment.getProperty(LoadBalancerClientFactory.PROPERTY_NAME);
+        if (environment.getProperty(PEAK_EWMA_ENABLED, Boolean.class, false)) {
+            return new PeakEwmaLoadBalancer(
+                    serviceInstanceListSupplier,
+                    name,
+                    instanceLoadStatsRegistry
+            );
+        }
+        PositionStrategy positionStrategy = environment.getProperty(
+                POSITION_STRATEGY, PositionStrategy.class, PositionStrategy.TRACE_CACHE
+        );
         return new RoundRobinWithRequestSeparatedPositionLoadBalancer(
                 serviceInstanceListSupplier,
                 name,
-                tracer
+                tracer,
+                positionStrategy
         );
     }
 }
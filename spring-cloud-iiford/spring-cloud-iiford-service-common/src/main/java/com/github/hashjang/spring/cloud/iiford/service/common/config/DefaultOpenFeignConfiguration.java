@@ -2,6 +2,8 @@ package com.github.hashjang.spring.cloud.iiford.service.common.config;
 
 import com.github.hashjang.spring.cloud.iiford.service.common.feign.DefaultErrorDecoder;
 import com.github.hashjang.spring.cloud.iiford.service.common.feign.FeignDecoratorBuilderInterceptor;
+import com.github.hashjang.spring.cloud.iiford.service.common.feign.RetryAttemptFeignDecorator;
+import com.github.hashjang.spring.cloud.iiford.service.common.feign.RetryBudgetRegistry;
 import feign.Feign;
 import feign.codec.ErrorDecoder;
 import io.github.resilience4j.core.ConfigurationNotFoundException;
@@ -28,10 +30,16 @@ public class DefaultOpenFeignConfiguration {
     @Bean
     public Feign.Builder resilience4jFeignBuilder(
             List<FeignDecoratorBuilderInterceptor> feignDecoratorBuilderInterceptors,
-            FeignDecorators.Builder builder
+            FeignDecorators.Builder builder,
+            Environment environment,
+            RetryBudgetRegistry retryBudgetRegistry
     ) {
         feignDecoratorBuilderInterceptors.forEach(feignDecoratorBuilderInterceptor -> feignDecoratorBuilderInterceptor.intercept(builder));
-        return Resilience4jFeign.builder(builder.build());
+        //记录重试次数，负载均衡器的 TRACE_HASH 策略需要，同时按照 contextId 限制重试预算
+        return Resilience4jFeign.builder(new RetryAttemptFeignDecorator(
+                builder.build(),
+                retryBudgetRegistry.getRetryBudget(environment.getProperty("feign.client.name"))
+        ));
     }
 
     @Bean
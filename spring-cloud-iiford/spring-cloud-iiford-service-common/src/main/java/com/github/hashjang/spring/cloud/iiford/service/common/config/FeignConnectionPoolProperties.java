@@ -0,0 +1,63 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 每个微服务（contextId）一个独立的 HTTP 连接池，一个微服务出问题占满连接不会影响调用其他微服务
+ * key 为 contextId，和 resilience4j 配置一样，default 为默认配置，没有单独配置的 contextId 使用 default 配置
+ * feign.connection-pool.configs.default.max-total=200
+ * feign.connection-pool.configs.service-provider2.max-per-route=20
+ */
+@Data
+@ConfigurationProperties(prefix = "feign.connection-pool")
+public class FeignConnectionPoolProperties {
+    public static final String DEFAULT = "default";
+
+    private Map<String, Pool> configs = new HashMap<>();
+    /**
+     * 后台清理过期以及空闲连接的间隔
+     */
+    private Duration evictionInterval = Duration.ofSeconds(5);
+    /**
+     * 空闲超过这个时间的连接会被关闭
+     */
+    private Duration idleTimeout = Duration.ofSeconds(30);
+
+    public Pool getPool(String contextId) {
+        Pool pool = configs.get(contextId);
+        if (pool == null) {
+            pool = configs.getOrDefault(DEFAULT, new Pool());
+        }
+        return pool;
+    }
+
+    @Data
+    public static class Pool {
+        /**
+         * 这个微服务的总连接数
+         */
+        private int maxTotal = 200;
+        /**
+         * 这个微服务每个实例（host:port）的连接数
+         */
+        private int maxPerRoute = 50;
+        /**
+         * 长连接最长保持时间
+         */
+        private Duration timeToLive = Duration.ofMinutes(5);
+        /**
+         * 连接空闲超过这个时间，再次使用之前先检查连接是否可用，避免拿到已经被服务端关闭的连接
+         */
+        private Duration validateAfterInactivity = Duration.ofSeconds(2);
+        /**
+         * 连接池满的时候等待空闲连接的最长时间，超过抛出 ConnectionPoolTimeoutException（请求没有发出去，可以重试）
+         * 不配置的话会一直等待，连接池被慢实例占满的时候调用线程全部卡住
+         */
+        private Duration connectionRequestTimeout = Duration.ofSeconds(1);
+    }
+}
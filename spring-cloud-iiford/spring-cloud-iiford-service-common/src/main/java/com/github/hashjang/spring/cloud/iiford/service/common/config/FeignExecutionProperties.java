@@ -0,0 +1,39 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.config;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.feign.FeignExecutionMode;
+import com.github.hashjang.spring.cloud.iiford.service.common.feign.FeignTransport;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resilience4jFeignClient 执行方式配置，key 为 contextId，和 resilience4j 配置一样，default 为默认配置
+ * feign.execution.mode.default=THREAD_POOL
+ * feign.execution.mode.service-provider2=SEMAPHORE
+ * feign.execution.transport=JDK
+ */
+@Data
+@ConfigurationProperties(prefix = "feign.execution")
+public class FeignExecutionProperties {
+    public static final String DEFAULT = "default";
+
+    private Map<String, FeignExecutionMode> mode = new HashMap<>();
+    /**
+     * 实际发送请求使用的 HTTP 客户端，所有微服务共用
+     */
+    private FeignTransport transport = FeignTransport.APACHE;
+    /**
+     * Resilience4jFeignClient 开启 debug 日志的时候，多少比例的调用打印详情，1 为全部打印
+     */
+    private double debugLogSampleRate = 0.01;
+
+    public FeignExecutionMode getMode(String contextId) {
+        FeignExecutionMode feignExecutionMode = mode.get(contextId);
+        if (feignExecutionMode == null) {
+            feignExecutionMode = mode.getOrDefault(DEFAULT, FeignExecutionMode.THREAD_POOL);
+        }
+        return feignExecutionMode;
+    }
+}
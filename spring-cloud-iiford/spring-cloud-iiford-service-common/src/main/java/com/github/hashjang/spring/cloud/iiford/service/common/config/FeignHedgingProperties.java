@@ -0,0 +1,56 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 对冲请求配置，key 为 contextId，和 resilience4j 配置一样，default 为默认配置，没有单独配置的 contextId 使用 default 配置
+ * 只对可以重试的请求（GET 或者有 RetryableMethod 注解）生效，默认关闭
+ * feign.hedging.configs.default.enabled=false
+ * feign.hedging.configs.service-provider2.enabled=true
+ * feign.hedging.configs.service-provider2.percentile=0.95
+ */
+@Data
+@ConfigurationProperties(prefix = "feign.hedging")
+public class FeignHedgingProperties {
+    public static final String DEFAULT = "default";
+
+    /**
+     * 发送请求的线程池最大线程数，线程池满了的时候不对冲，直接在调用线程上面发送
+     */
+    private int maxThreads = 200;
+    private Map<String, Config> configs = new HashMap<>();
+
+    public Config getConfig(String contextId) {
+        Config config = configs.get(contextId);
+        if (config == null) {
+            config = configs.getOrDefault(DEFAULT, new Config());
+        }
+        return config;
+    }
+
+    @Data
+    public static class Config {
+        private boolean enabled = false;
+        /**
+         * 第一个请求超过这个方法最近延迟的多少分位还没有返回，就发送对冲请求
+         */
+        private double percentile = 0.95;
+        /**
+         * 对冲延迟最小值，防止延迟很低的方法几乎每次都对冲
+         */
+        private Duration minDelay = Duration.ofMillis(10);
+        /**
+         * 统计最近多少次调用的延迟
+         */
+        private int windowSize = 128;
+        /**
+         * 统计的调用次数少于这个的时候不对冲
+         */
+        private int minSamples = 20;
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 重试预算配置，key 为 contextId，和 resilience4j 配置一样，default 为默认配置，没有单独配置的 contextId 使用 default 配置
+ * feign.retry-budget.configs.default.deposit-ratio=0.2
+ * feign.retry-budget.configs.service-provider2.enabled=false
+ */
+@Data
+@ConfigurationProperties(prefix = "feign.retry-budget")
+public class RetryBudgetProperties {
+    public static final String DEFAULT = "default";
+
+    private Map<String, Config> configs = new HashMap<>();
+
+    public Config getConfig(String contextId) {
+        Config config = configs.get(contextId);
+        if (config == null) {
+            config = configs.getOrDefault(DEFAULT, new Config());
+        }
+        return config;
+    }
+
+    @Data
+    public static class Config {
+        private boolean enabled = true;
+        /**
+         * 每次成功调用存入多少个令牌，每次重试消耗一个，0.2 即重试最多为成功调用的 20%
+         */
+        private double depositRatio = 0.2;
+        /**
+         * 最多存多少个令牌，也是初始的令牌数，调用量很小的时候也可以重试这么多次
+         */
+        private int maxTokens = 10;
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.config.AdaptiveConcurrencyProperties;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 某个实例的自适应并发限制，Gradient 算法（参考 Netflix concurrency-limits 的 Gradient2Limit）
+ * 长期平均延迟（EWMA）与当前延迟的比值作为梯度：实例开始排队，当前延迟变大，梯度小于 1，限制减小；延迟恢复，限制加上 sqrt(limit) 慢慢增加
+ * 请求超时或者 IO 异常的时候，认为实例已经过载，限制按照 backoffRatio 直接减小
+ * 只有并发用到了一半以上才增加限制，防止调用量小的时候限制涨到没有意义
+ */
+public class AdaptiveConcurrencyLimit {
+    private final int minLimit;
+    private final int maxLimit;
+    private final double rttTolerance;
+    private final double smoothing;
+    private final double longDecay;
+    private final double backoffRatio;
+    private final AtomicInteger inflight = new AtomicInteger();
+    //浮点数保存，每次调整变化可能不到 1
+    private double estimatedLimit;
+    private volatile int limit;
+    private double longRttNanos;
+
+    public AdaptiveConcurrencyLimit(AdaptiveConcurrencyProperties.Config config) {
+        this.minLimit = config.getMinLimit();
+        this.maxLimit = config.getMaxLimit();
+        this.rttTolerance = config.getRttTolerance();
+        this.smoothing = config.getSmoothing();
+        this.longDecay = 2.0 / (config.getLongWindow() + 1);
+        this.backoffRatio = config.getBackoffRatio();
+        this.estimatedLimit = Math.max(minLimit, Math.min(maxLimit, config.getInitialLimit()));
+        this.limit = (int) estimatedLimit;
+    }
+
+    /**
+     * @return 超过限制的时候返回 false，获取成功之后必须调用 onSuccess、onDropped 或者 onIgnore 其中一个
+     */
+    public boolean tryAcquire() {
+        int current;
+        do {
+            current = inflight.get();
+            if (current >= limit) {
+                return false;
+            }
+        } while (!inflight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * 收到响应，不管响应码是什么，都是一次延迟采样
+     */
+    public void onSuccess(long rttNanos) {
+        int currentInflight = inflight.getAndDecrement();
+        //每个实例一个锁，只是几次浮点运算
+        synchronized (this) {
+            if (longRttNanos == 0) {
+                longRttNanos = rttNanos;
+            } else {
+                longRttNanos = longRttNanos * (1 - longDecay) + rttNanos * longDecay;
+            }
+            //长期延迟比当前延迟大很多，说明之前的过载已经恢复，加快长期延迟的恢复
+            if (longRttNanos / rttNanos > 2) {
+                longRttNanos *= 0.95;
+            }
+            if (currentInflight < estimatedLimit / 2) {
+                return;
+            }
+            double gradient = Math.max(0.5, Math.min(1.0, rttTolerance * longRttNanos / rttNanos));
+            double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            update(estimatedLimit * (1 - smoothing) + newLimit * smoothing);
+        }
+    }
+
+    /**
+     * 请求超时或者 IO 异常
+     */
+    public void onDropped() {
+        inflight.decrementAndGet();
+        synchronized (this) {
+            update(estimatedLimit * backoffRatio);
+        }
+    }
+
+    /**
+     * 请求没有发到实例（例如断路器打开，Bulkhead 满了），不影响限制
+     */
+    public void onIgnore() {
+        inflight.decrementAndGet();
+    }
+
+    private void update(double newLimit) {
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        limit = (int) estimatedLimit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+}
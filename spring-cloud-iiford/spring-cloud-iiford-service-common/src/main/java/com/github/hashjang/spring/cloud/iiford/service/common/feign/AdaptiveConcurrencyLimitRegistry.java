@@ -0,0 +1,47 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.config.AdaptiveConcurrencyProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 每个 contextId + 实例一个 AdaptiveConcurrencyLimit，和 Bulkhead 一样同一个实例的所有方法共用
+ */
+public class AdaptiveConcurrencyLimitRegistry {
+    public static final String LIMIT = "feign.instance.concurrency.limit";
+    public static final String INFLIGHT = "feign.instance.concurrency.inflight";
+
+    private final AdaptiveConcurrencyProperties properties;
+    //可以为 null
+    private final MeterRegistry meterRegistry;
+    private final Map<String, AdaptiveConcurrencyLimit> limits = new ConcurrentHashMap<>();
+
+    public AdaptiveConcurrencyLimitRegistry(AdaptiveConcurrencyProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * @param instance host:port
+     * @return 没有启用的时候返回 null
+     */
+    public AdaptiveConcurrencyLimit getLimit(String contextId, String instance) {
+        AdaptiveConcurrencyProperties.Config config = properties.getConfig(contextId);
+        if (!config.isEnabled()) {
+            return null;
+        }
+        return limits.computeIfAbsent(contextId + ":" + instance, k -> {
+            AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(config);
+            if (meterRegistry != null) {
+                Tags tags = Tags.of("contextId", contextId, "instance", instance);
+                Gauge.builder(LIMIT, limit, AdaptiveConcurrencyLimit::getLimit).tags(tags).register(meterRegistry);
+                Gauge.builder(INFLIGHT, limit, AdaptiveConcurrencyLimit::getInflight).tags(tags).register(meterRegistry);
+            }
+            return limit;
+        });
+    }
+}
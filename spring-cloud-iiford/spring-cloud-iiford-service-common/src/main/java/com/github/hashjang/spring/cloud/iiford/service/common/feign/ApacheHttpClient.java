@@ -12,16 +12,18 @@ import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.methods.RequestBuilder;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -34,52 +36,102 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 import static feign.Util.UTF_8;
 
 /**
- * 和 feign.httpclient.ApacheHttpClient 一模一样，但是不是 final 的，用于单元测试
+ * 和 feign.httpclient.ApacheHttpClient 基本一样，但是不是 final 的，用于单元测试
+ * 请求失败的时候抛出带有失败阶段的 PhasedIOException
+ * 请求 body 直接包装 feign 编码好的字节数组，不再拷贝；响应 body 直接是连接上的流，关闭的时候剩余内容少就读完复用连接，多就直接关闭连接
  *
  * @see https://github.com/OpenFeign/feign/blob/master/httpclient/src/main/java/feign/httpclient/ApacheHttpClient.java
  * @see feign.httpclient.ApacheHttpClient
  */
 public class ApacheHttpClient implements Client {
     private static final String ACCEPT_HEADER_NAME = "Accept";
-
-    private final HttpClient client;
+    /**
+     * 没有 body 的请求共用的空 entity，ByteArrayEntity 是可重复读并且不可变的，可以共用
+     */
+    private static final HttpEntity EMPTY_ENTITY = new ByteArrayEntity(new byte[0]);
+    /**
+     * 关闭响应的时候，剩余的 body 在这个大小以内会读完，这样连接可以放回连接池复用
+     * 超过这个大小（例如 50MB 的下载只读了一部分）直接关闭连接，不为了复用连接读完剩下的内容
+     */
+    static final int DRAIN_LIMIT = 64 * 1024;
+    private static final int DRAIN_BUFFER_SIZE = 4096;
+
+    //根据请求选择使用的 HttpClient，按照 contextId 划分连接池的时候每个微服务一个
+    private final Function<Request, HttpClient> clientSelector;
 
     public ApacheHttpClient() {
-        this(HttpClientBuilder.create().build());
+        this(HttpClientBuilder.create().setRequestExecutor(new PhaseRecordingRequestExecutor()).build());
     }
 
     public ApacheHttpClient(HttpClient client) {
-        this.client = client;
+        this.clientSelector = request -> client;
+    }
+
+    public ApacheHttpClient(FeignConnectionPools connectionPools) {
+        this.clientSelector = connectionPools::getHttpClient;
     }
 
     @Override
     public Response execute(Request request, Request.Options options) throws IOException {
+        HttpClient client = clientSelector.apply(request);
         HttpUriRequest httpUriRequest;
         try {
-            httpUriRequest = toHttpUriRequest(request, options);
+            httpUriRequest = toHttpUriRequest(request, options, client);
         } catch (URISyntaxException e) {
             throw new IOException("URL '" + request.url() + "' couldn't be parsed into a URI", e);
         }
-        HttpResponse httpResponse = client.execute(httpUriRequest);
+        HttpClientContext context = HttpClientContext.create();
+        HedgeCancellation cancellation = HedgeCancellation.current();
+        if (cancellation != null) {
+            //对冲输了的时候中止请求：等待连接池的直接返回，已经发出去的关闭连接，阻塞读马上抛出异常
+            cancellation.onCancel(httpUriRequest::abort);
+        }
+        HttpResponse httpResponse;
+        try {
+            httpResponse = client.execute(httpUriRequest, context);
+        } catch (IOException e) {
+            throw new PhasedIOException(getFailurePhase(e, context), request, e);
+        }
         return toFeignResponse(httpResponse, request);
     }
 
+    /**
+     * HttpClient 使用 PhaseRecordingRequestExecutor 的时候优先使用记录的阶段
+     * 记录的阶段说明请求至少发送过一次（HttpClient 内部可能重试过），即使最后是连接失败也按照已经发送处理
+     */
+    static FailurePhase getFailurePhase(IOException e, HttpContext context) {
+        Object phase = context.getAttribute(PhaseRecordingRequestExecutor.FAILURE_PHASE);
+        if (phase instanceof FailurePhase) {
+            return (FailurePhase) phase;
+        }
+        return FailurePhase.classify(e);
+    }
+
     HttpUriRequest toHttpUriRequest(Request request, Request.Options options)
             throws URISyntaxException {
+        return toHttpUriRequest(request, options, clientSelector.apply(request));
+    }
+
+    private HttpUriRequest toHttpUriRequest(Request request, Request.Options options, HttpClient client)
+            throws URISyntaxException {
         RequestBuilder requestBuilder = RequestBuilder.create(request.httpMethod().name());
 
         // per request timeouts
-        RequestConfig requestConfig =
-                (client instanceof Configurable ? RequestConfig.copy(((Configurable) client).getConfig())
-                        : RequestConfig.custom())
+        RequestConfig defaultConfig = client instanceof Configurable ? ((Configurable) client).getConfig() : null;
+        RequestConfig.Builder requestConfigBuilder =
+                (defaultConfig != null ? RequestConfig.copy(defaultConfig) : RequestConfig.custom())
                         .setConnectTimeout(options.connectTimeoutMillis())
-                        .setSocketTimeout(options.readTimeoutMillis())
-                        .build();
-        requestBuilder.setConfig(requestConfig);
+                        .setSocketTimeout(options.readTimeoutMillis());
+        //等待连接池的超时使用连接池的配置（feign.connection-pool），没有配置的时候不超过连接超时，不会一直等下去
+        if (defaultConfig == null || defaultConfig.getConnectionRequestTimeout() < 0) {
+            requestConfigBuilder.setConnectionRequestTimeout(options.connectTimeoutMillis());
+        }
+        requestBuilder.setConfig(requestConfigBuilder.build());
 
         URI uri = new URIBuilder(request.url()).build();
 
@@ -117,18 +169,12 @@ public class ApacheHttpClient implements Client {
 
         // request body
         if (request.body() != null) {
-            HttpEntity entity = null;
-            if (request.charset() != null) {
-                ContentType contentType = getContentType(request);
-                String content = new String(request.body(), request.charset());
-                entity = new StringEntity(content, contentType);
-            } else {
-                entity = new ByteArrayEntity(request.body());
-            }
-
-            requestBuilder.setEntity(entity);
+            //直接包装 feign 编码好的字节数组，不再先 new String 再 StringEntity 编码一遍，也就不会有额外的两份拷贝
+            //没有 Content-Type 的时候也不会再按照 ISO-8859-1 重新编码导致乱码
+            ContentType contentType = request.charset() != null ? getContentType(request) : null;
+            requestBuilder.setEntity(new ByteArrayEntity(request.body(), contentType));
         } else {
-            requestBuilder.setEntity(new ByteArrayEntity(new byte[0]));
+            requestBuilder.setEntity(EMPTY_ENTITY);
         }
 
         return requestBuilder.build();
@@ -216,8 +262,39 @@ public class ApacheHttpClient implements Client {
 
             @Override
             public void close() throws IOException {
-                EntityUtils.consume(entity);
+                if (!(httpResponse instanceof Closeable)) {
+                    EntityUtils.consume(entity);
+                    return;
+                }
+                try {
+                    if (drain(entity.getContent())) {
+                        return;
+                    }
+                } catch (IOException e) {
+                    //流已经被关闭了之类的，下面直接关闭，连接已经释放的话关闭什么也不做
+                }
+                ((Closeable) httpResponse).close();
             }
         };
     }
+
+    /**
+     * 读完剩余的 body，剩余内容超过 DRAIN_LIMIT 返回 false
+     * 读到结尾的时候 HttpClient 会把连接放回连接池
+     */
+    static boolean drain(InputStream inputStream) throws IOException {
+        if (inputStream == null || inputStream.read() == -1) {
+            return true;
+        }
+        byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+        long drained = 1;
+        while (drained <= DRAIN_LIMIT) {
+            int read = inputStream.read(buffer);
+            if (read == -1) {
+                return true;
+            }
+            drained += read;
+        }
+        return false;
+    }
 }
@@ -0,0 +1,21 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 标注这个 feign 方法或者 feign 类里面的所有 GET 方法，同时发出的相同请求合并成一个，参考 CoalescingFeignClient
+ * 适合热点配置、用户信息这种同一时刻很多请求查同一个东西并且响应不大的接口
+ */
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface CoalescedRequest {
+    /**
+     * 除了方法与 url 之外，哪些请求头不同的请求不能合并，例如带用户身份的请求头
+     */
+    String[] headers() default {};
+}
@@ -0,0 +1,254 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.misc.RequestDeadline;
+import feign.Client;
+import feign.MethodMetadata;
+import feign.Request;
+import feign.Response;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cloud.openfeign.FeignClient;
+import org.springframework.http.HttpStatus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 请求合并：有 CoalescedRequest 注解的 GET 请求，方法、url（包括参数）以及注解指定的请求头都相同的时候，同一时刻只发出一个
+ * 第一个请求发出去，之后相同的请求等第一个请求的结果；第一个请求把响应 body 全部读出来，每个请求拿到一个单独的 Response，各自读取、关闭互不影响
+ * 在最外层，包在 HedgingFeignClient 外面，合并之后的请求照常对冲、负载均衡、断路
+ */
+public class CoalescingFeignClient implements Client, DisposableBean {
+    public static final String COALESCED = "feign.coalescing.requests";
+
+    private final Client delegate;
+    //可以为 null，为 null 的时候不统计
+    private final MeterRegistry meterRegistry;
+    //MethodMetadata 没有重写 equals 和 hashCode，一个 Feign 方法对应一个 MethodMetadata 对象
+    private final Map<MethodMetadata, MethodCoalescing> methodCoalescings = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<BufferedResponse>> inflight = new ConcurrentHashMap<>();
+
+    public CoalescingFeignClient(Client delegate, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public Response execute(Request request, Request.Options options) throws IOException {
+        MethodCoalescing methodCoalescing = getMethodCoalescing(request);
+        if (methodCoalescing == null) {
+            return delegate.execute(request, options);
+        }
+        String key = methodCoalescing.key(request);
+        CompletableFuture<BufferedResponse> future = new CompletableFuture<>();
+        CompletableFuture<BufferedResponse> existing = inflight.putIfAbsent(key, future);
+        if (existing != null) {
+            methodCoalescing.count(methodCoalescing.follower);
+            return await(existing, request, options).toResponse(request);
+        }
+        methodCoalescing.count(methodCoalescing.leader);
+        try {
+            BufferedResponse bufferedResponse;
+            try (Response response = delegate.execute(request, options)) {
+                bufferedResponse = BufferedResponse.of(response);
+            }
+            future.complete(bufferedResponse);
+            return bufferedResponse.toResponse(request);
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            //结果出来之后再来的请求重新发，不会拿到旧的结果
+            inflight.remove(key, future);
+        }
+    }
+
+    /**
+     * 最多等连接加读取超时，有截止时间的时候不超过剩余时间；第一个请求自己也受这些超时限制，正常不会等这么久
+     */
+    private static BufferedResponse await(CompletableFuture<BufferedResponse> future, Request request, Request.Options options) throws IOException {
+        long waitMillis = options.connectTimeoutMillis() + options.readTimeoutMillis();
+        long remainingMillis = RequestDeadline.remainingMillis();
+        if (remainingMillis >= 0) {
+            waitMillis = Math.min(waitMillis, Math.max(1, remainingMillis));
+        }
+        try {
+            return future.get(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("coalesced request timed out: " + request.url());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return 不需要合并的时候返回 null
+     */
+    private MethodCoalescing getMethodCoalescing(Request request) {
+        if (request.httpMethod() != Request.HttpMethod.GET
+                || request.requestTemplate() == null || request.requestTemplate().methodMetadata() == null) {
+            return null;
+        }
+        MethodMetadata methodMetadata = request.requestTemplate().methodMetadata();
+        MethodCoalescing methodCoalescing = methodCoalescings.get(methodMetadata);
+        if (methodCoalescing == null) {
+            methodCoalescing = methodCoalescings.computeIfAbsent(methodMetadata, this::createMethodCoalescing);
+        }
+        return methodCoalescing.enabled ? methodCoalescing : null;
+    }
+
+    private MethodCoalescing createMethodCoalescing(MethodMetadata methodMetadata) {
+        Method method = methodMetadata.method();
+        CoalescedRequest annotation = method.getAnnotation(CoalescedRequest.class);
+        if (annotation == null) {
+            annotation = method.getDeclaringClass().getAnnotation(CoalescedRequest.class);
+        }
+        if (annotation == null) {
+            return MethodCoalescing.DISABLED;
+        }
+        FeignClient feignClient = method.getDeclaringClass().getAnnotation(FeignClient.class);
+        String contextId = feignClient == null ? "" : feignClient.contextId();
+        return new MethodCoalescing(annotation.headers(), meterRegistry, contextId, methodMetadata.configKey());
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (delegate instanceof DisposableBean) {
+            ((DisposableBean) delegate).destroy();
+        }
+    }
+
+    /**
+     * 读取到内存里面的响应，每个请求用它生成一个单独的 Response
+     */
+    private static class BufferedResponse {
+        private final int status;
+        private final String reason;
+        private final Map<String, Collection<String>> headers;
+        //没有 body 的时候为 null；只读，每个 Response 各自通过新的 ByteArrayInputStream 读取
+        private final byte[] body;
+
+        private BufferedResponse(int status, String reason, Map<String, Collection<String>> headers, byte[] body) {
+            this.status = status;
+            this.reason = reason;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * 只有 200 的响应读取 body：其他响应码 Resilience4jFeignClient 已经关闭了响应（断路器打开等 58x 本来就没有 body），
+         * 只共用响应码、reason 与 header，交给 ErrorDecoder 处理
+         */
+        static BufferedResponse of(Response response) throws IOException {
+            byte[] body = null;
+            if (response.status() == HttpStatus.OK.value() && response.body() != null) {
+                try (InputStream inputStream = response.body().asInputStream()) {
+                    body = inputStream.readAllBytes();
+                }
+            }
+            return new BufferedResponse(response.status(), response.reason(), response.headers(), body);
+        }
+
+        Response toResponse(Request request) {
+            return Response.builder()
+                    .status(status)
+                    .reason(reason)
+                    .headers(headers)
+                    .request(request)
+                    .body(body)
+                    .build();
+        }
+    }
+
+    private static class MethodCoalescing {
+        static final MethodCoalescing DISABLED = new MethodCoalescing();
+
+        private final boolean enabled;
+        private final String[] headers;
+        //meterRegistry 为 null 的时候为 null
+        private final Counter leader;
+        private final Counter follower;
+
+        private MethodCoalescing() {
+            this.enabled = false;
+            this.headers = null;
+            this.leader = null;
+            this.follower = null;
+        }
+
+        MethodCoalescing(String[] headers, MeterRegistry meterRegistry, String contextId, String configKey) {
+            this.enabled = true;
+            this.headers = headers;
+            if (meterRegistry != null) {
+                Tags tags = Tags.of("contextId", contextId, "method", configKey);
+                this.leader = Counter.builder(COALESCED).tags(tags).tag("result", "leader").register(meterRegistry);
+                this.follower = Counter.builder(COALESCED).tags(tags).tag("result", "follower").register(meterRegistry);
+            } else {
+                this.leader = null;
+                this.follower = null;
+            }
+        }
+
+        /**
+         * 负载均衡之前的 url，例如 http://service-provider/test?id=1，已经包括了参数
+         */
+        String key(Request request) {
+            if (headers.length == 0) {
+                return request.url();
+            }
+            StringBuilder key = new StringBuilder(request.url());
+            for (String header : headers) {
+                key.append('\n').append(header).append(':');
+                Collection<String> values = getHeader(request.headers(), header);
+                if (values != null) {
+                    key.append(String.join(",", values));
+                }
+            }
+            return key.toString();
+        }
+
+        private static Collection<String> getHeader(Map<String, Collection<String>> requestHeaders, String name) {
+            Collection<String> values = requestHeaders.get(name);
+            if (values != null) {
+                return values;
+            }
+            for (Map.Entry<String, Collection<String>> entry : requestHeaders.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(name)) {
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+
+        void count(Counter counter) {
+            if (counter != null) {
+                counter.increment();
+            }
+        }
+    }
+}
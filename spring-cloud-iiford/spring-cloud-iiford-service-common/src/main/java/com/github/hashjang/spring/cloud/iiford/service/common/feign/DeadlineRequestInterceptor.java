@@ -0,0 +1,22 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.misc.RequestDeadline;
+import feign.RequestInterceptor;
+import feign.RequestTemplate;
+
+/**
+ * 当前线程有截止时间的时候，把剩余时间通过请求头传给被调用方
+ * 每次尝试（包括重试）都会重新执行，所以重试的时候传的是重试时的剩余时间
+ * Resilience4jFeignClient 再根据这个请求头把这次尝试的超时时间限制在剩余时间以内
+ */
+public class DeadlineRequestInterceptor implements RequestInterceptor {
+    @Override
+    public void apply(RequestTemplate template) {
+        long remainingMillis = RequestDeadline.remainingMillis();
+        if (remainingMillis < 0) {
+            return;
+        }
+        template.removeHeader(RequestDeadline.HEADER);
+        template.header(RequestDeadline.HEADER, String.valueOf(remainingMillis));
+    }
+}
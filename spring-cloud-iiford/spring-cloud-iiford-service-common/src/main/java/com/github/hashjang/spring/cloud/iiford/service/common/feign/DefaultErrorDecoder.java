@@ -11,8 +11,10 @@ public class DefaultErrorDecoder implements ErrorDecoder {
     @Override
     public Exception decode(String methodKey, Response response) {
         boolean queryRequest = OpenfeignUtil.isRetryableRequest(response.request());
-        //对于查询请求重试，即抛出可重试异常
-        if (queryRequest || response.status() == SpecialHttpStatus.CIRCUIT_BREAKER_ON.getValue()) {
+        //对于查询请求重试，即抛出可重试异常；断路器打开或者超过并发限制的请求没有发出去，也可以重试
+        if (queryRequest
+                || response.status() == SpecialHttpStatus.CIRCUIT_BREAKER_ON.getValue()
+                || response.status() == SpecialHttpStatus.CONCURRENCY_LIMITED.getValue()) {
             throw new RetryableException(response.status(), response.reason(), response.request().httpMethod(), null, response.request());
         } else {
             throw errorStatus(methodKey, response);
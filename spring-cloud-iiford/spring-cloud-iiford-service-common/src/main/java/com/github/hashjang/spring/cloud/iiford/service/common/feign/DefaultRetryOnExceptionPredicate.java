@@ -1,45 +1,56 @@
 package com.github.hashjang.spring.cloud.iiford.service.common.feign;
 
+import com.github.hashjang.spring.cloud.iiford.service.common.misc.RequestDeadline;
 import feign.RetryableException;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
 import java.util.function.Predicate;
 
 @Slf4j
 public class DefaultRetryOnExceptionPredicate implements Predicate<Throwable> {
+    /**
+     * 最多向下查找多少层 cause，防止 cause 循环引用
+     */
+    private static final int MAX_CAUSE_DEPTH = 10;
+
     @Override
     public boolean test(Throwable throwable) {
-        boolean shouldRetry = false;
-        if (throwable instanceof RetryableException) {
-            RetryableException e = (RetryableException) throwable;
-            /**
-             * 需要验证，这个 e 究竟是我们的 ErrorDecoder 生成的，还是调用 如果直接调用以下这个
-             * @see feign.FeignException#errorExecuting
-             * 方法封装的 e
-             * 如果是调用 errorExecuting 封装的 e，那么会有 cause，目前 feign 只有一个地方调用了这个方法，即：
-             * @see feign.SynchronousMethodHandler#executeAndDecode
-             * 在 IOException 的时候会调用 errorExecuting 封装异常
-             * 对于 IOException，一般有 connect 异常和 read 异常
-             * 对于 connect 异常，由于请求还没有发送过去，所以所有的 connect 异常，我们都可以直接重试，不管是不是查询请求
-             * 对于 read 异常，由于请求已经发出，对于非查询请求，我们是不能重试的
-             * 所以，这里我们需要检查究竟是不是 read 异常，通过 cause 来确认，但是目前没有能区分两种异常的 Exception，他们可能共用一个 Exception 但是 message 不一样
-             * 因此，我们采用检查 cause 的方式确认是否是 read异常
-             */
-            Throwable cause = e.getCause();
-            if (cause != null) {
-                boolean containsRead = cause.getMessage().toLowerCase().contains("read");
-                if (containsRead) {
-                    log.info("{}-{} exception contains read, which indicates the request has been sent", e.getMessage(), cause.getMessage());
-                    //如果是 read 异常，只有是 query 请求才可以重试
-                    shouldRetry = OpenfeignUtil.isRetryableRequest(e.request());
-                } else {
-                    shouldRetry = true;
+        //重试预算用完了，见 RetryAttemptFeignDecorator；或者调用方剩下的时间已经不够再试一次了
+        boolean shouldRetry = !RetryAttemptContext.isRetryBudgetExhausted()
+                && !RequestDeadline.isTooLateToRetry()
+                && shouldRetry(throwable);
+        log.info("{} should retry: {}", throwable.getLocalizedMessage(), shouldRetry);
+        return shouldRetry;
+    }
+
+    /**
+     * 对于 IO 异常，根据失败阶段判断请求是否已经发出：
+     * 对于 connect 之类请求还没有发送过去的异常，不管是不是查询请求，我们都可以直接重试
+     * 对于 read 之类请求已经发出的异常，只有查询请求才可以重试
+     * 失败阶段由 ApacheHttpClient 与 JdkHttpClient 封装在 PhasedIOException 中，经过 Resilience4jFeignClient 的时候会被 ResponseWrapperException 包装，
+     * 经过 feign.SynchronousMethodHandler 的时候会被 RetryableException（feign.FeignException#errorExecuting）包装，所以需要沿着 cause 查找
+     * 对于没有 cause 的 RetryableException，是我们的 DefaultErrorDecoder 生成的，已经判断过是查询请求或者断路器打开，可以重试
+     */
+    static boolean shouldRetry(Throwable throwable) {
+        RetryableException retryableException = null;
+        Throwable current = throwable;
+        for (int i = 0; current != null && i < MAX_CAUSE_DEPTH; i++, current = current.getCause()) {
+            if (current instanceof PhasedIOException) {
+                PhasedIOException e = (PhasedIOException) current;
+                return !e.getPhase().isRequestSent() || OpenfeignUtil.isRetryableRequest(e.getRequest());
+            }
+            if (current instanceof IOException) {
+                //不是 ApacheHttpClient 与 JdkHttpClient 抛出的，只能根据异常类型判断，请求只能从 RetryableException 中获取
+                if (!FailurePhase.classify(current).isRequestSent()) {
+                    return true;
                 }
-            } else {
-                shouldRetry = true;
+                return retryableException != null && OpenfeignUtil.isRetryableRequest(retryableException.request());
+            }
+            if (current instanceof RetryableException && retryableException == null) {
+                retryableException = (RetryableException) current;
             }
         }
-        log.info("{} should retry: {}", throwable.getLocalizedMessage(), shouldRetry);
-        return shouldRetry;
+        return retryableException != null;
     }
 }
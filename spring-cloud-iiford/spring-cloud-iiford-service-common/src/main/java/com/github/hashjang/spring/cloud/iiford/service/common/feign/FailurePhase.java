@@ -0,0 +1,86 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+import javax.net.ssl.SSLHandshakeException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+
+/**
+ * 调用失败发生在哪个阶段，用于判断请求是否已经发到了服务端
+ * 请求没有发出去的失败，不管什么请求都可以直接重试；请求可能已经发出去了的失败，只有查询请求可以重试
+ */
+public enum FailurePhase {
+    /**
+     * 从连接池获取连接超时
+     */
+    POOL_ACQUIRE(false),
+    /**
+     * 建立连接失败，包括域名解析
+     */
+    CONNECT(false),
+    /**
+     * TLS 握手失败
+     */
+    TLS(false),
+    /**
+     * 发送请求的时候失败，服务端可能已经收到了部分或者全部请求
+     */
+    WRITE(true),
+    /**
+     * 请求已经发送完，读取响应的时候失败
+     */
+    READ(true),
+    /**
+     * 无法判断，按照请求已经发出处理
+     */
+    UNKNOWN(true),
+    ;
+
+    private final boolean requestSent;
+
+    FailurePhase(boolean requestSent) {
+        this.requestSent = requestSent;
+    }
+
+    /**
+     * @return 请求是否可能已经发到了服务端
+     */
+    public boolean isRequestSent() {
+        return requestSent;
+    }
+
+    /**
+     * 没有记录阶段的时候，根据异常类型判断
+     */
+    public static FailurePhase classify(Throwable throwable) {
+        //ConnectionPoolTimeoutException 是 ConnectTimeoutException 的子类，需要先判断
+        if (throwable instanceof ConnectionPoolTimeoutException) {
+            return POOL_ACQUIRE;
+        }
+        if (throwable instanceof ConnectTimeoutException
+                || throwable instanceof HttpConnectTimeoutException
+                || throwable instanceof ConnectException
+                || throwable instanceof NoRouteToHostException
+                || throwable instanceof UnknownHostException) {
+            return CONNECT;
+        }
+        //只有握手失败能确定请求没有发出去，其他 SSLException 可能发生在读写响应的时候，按照 UNKNOWN 处理
+        if (throwable instanceof SSLHandshakeException) {
+            return TLS;
+        }
+        //Apache 连接建立之后的 socket 超时以及 JDK 的请求超时都是在等待响应
+        if (throwable instanceof NoHttpResponseException
+                || throwable instanceof SocketTimeoutException
+                || throwable instanceof HttpTimeoutException) {
+            return READ;
+        }
+        return UNKNOWN;
+    }
+}
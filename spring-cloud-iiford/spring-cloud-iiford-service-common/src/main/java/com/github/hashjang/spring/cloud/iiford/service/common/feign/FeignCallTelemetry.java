@@ -0,0 +1,86 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.ThreadPoolBulkhead;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 某个 Feign 方法在某个实例上面调用的监控，和 FeignInstanceHandle 一起创建并缓存
+ * 所有的 Meter 在创建的时候注册好，调用的时候只是记录，不再查找 registry，也不会序列化任何东西
+ * 指标的 tag 为 contextId，instance（host:port），method（Feign 的 configKey，例如 ServiceProviderClient#test()）
+ */
+public class FeignCallTelemetry {
+    public static final String CALL = "feign.instance.call";
+    public static final String REJECTED = "feign.instance.call.rejected";
+    public static final String BULKHEAD_REMAINING = "feign.instance.bulkhead.remaining";
+    public static final String CIRCUIT_BREAKER_STATE = "feign.instance.circuit.breaker.state";
+    public static final String CIRCUIT_BREAKER_FAILURE_RATE = "feign.instance.circuit.breaker.failure.rate";
+
+    private final Timer success;
+    private final Timer failure;
+    //断路器打开，请求没有发出去
+    private final Counter circuitBreakerOpen;
+    //Bulkhead 满了，请求没有发出去
+    private final Counter bulkheadFull;
+    //超过自适应并发限制，请求没有发出去
+    private final Counter concurrencyLimited;
+
+    public FeignCallTelemetry(
+            MeterRegistry meterRegistry,
+            String contextId,
+            String instance,
+            String method,
+            ThreadPoolBulkhead threadPoolBulkhead,
+            Bulkhead bulkhead,
+            CircuitBreaker circuitBreaker
+    ) {
+        Tags instanceTags = Tags.of("contextId", contextId, "instance", instance);
+        Tags methodTags = instanceTags.and("method", method);
+        this.success = Timer.builder(CALL).tags(methodTags).tag("outcome", "success").register(meterRegistry);
+        this.failure = Timer.builder(CALL).tags(methodTags).tag("outcome", "failure").register(meterRegistry);
+        this.circuitBreakerOpen = Counter.builder(REJECTED).tags(methodTags).tag("reason", "circuit_breaker_open").register(meterRegistry);
+        this.bulkheadFull = Counter.builder(REJECTED).tags(methodTags).tag("reason", "bulkhead_full").register(meterRegistry);
+        this.concurrencyLimited = Counter.builder(REJECTED).tags(methodTags).tag("reason", "concurrency_limited").register(meterRegistry);
+        //Bulkhead 是实例维度的，同一个实例的所有方法共享，所以不带 method tag
+        //线程池模式下为剩余的队列容量，信号量模式下为剩余的并发数
+        if (threadPoolBulkhead != null) {
+            Gauge.builder(BULKHEAD_REMAINING, threadPoolBulkhead, b -> b.getMetrics().getRemainingQueueCapacity())
+                    .tags(instanceTags).tag("type", "thread_pool").register(meterRegistry);
+        } else {
+            Gauge.builder(BULKHEAD_REMAINING, bulkhead, b -> b.getMetrics().getAvailableConcurrentCalls())
+                    .tags(instanceTags).tag("type", "semaphore").register(meterRegistry);
+        }
+        //状态使用 CircuitBreaker.State 的 order：0 CLOSED，1 OPEN，2 HALF_OPEN ...
+        Gauge.builder(CIRCUIT_BREAKER_STATE, circuitBreaker, c -> c.getState().getOrder())
+                .tags(methodTags).register(meterRegistry);
+        Gauge.builder(CIRCUIT_BREAKER_FAILURE_RATE, circuitBreaker, c -> c.getMetrics().getFailureRate())
+                .tags(methodTags).register(meterRegistry);
+    }
+
+    public void recordSuccess(long nanos) {
+        success.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordFailure(long nanos) {
+        failure.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordCircuitBreakerOpen() {
+        circuitBreakerOpen.increment();
+    }
+
+    public void recordBulkheadFull() {
+        bulkheadFull.increment();
+    }
+
+    public void recordConcurrencyLimited() {
+        concurrencyLimited.increment();
+    }
+}
@@ -0,0 +1,190 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.config.FeignConnectionPoolProperties;
+import feign.MethodMetadata;
+import feign.Request;
+import feign.RequestTemplate;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.log4j.Log4j2;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cloud.openfeign.FeignClient;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按照 contextId 划分的 HTTP 连接池，每个 contextId 第一次调用的时候按照 FeignConnectionPoolProperties 创建
+ * 一个后台线程定时关闭所有连接池中过期以及空闲的连接，同时给新出现的 route（host:port）注册连接池监控
+ */
+@Log4j2
+public class FeignConnectionPools implements DisposableBean {
+    public static final String LEASED = "feign.connection.pool.leased";
+    public static final String PENDING = "feign.connection.pool.pending";
+    public static final String AVAILABLE = "feign.connection.pool.available";
+
+    private final FeignConnectionPoolProperties properties;
+    //可以为 null，为 null 的时候不监控
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+    //MethodMetadata 没有重写 equals 和 hashCode，一个 Feign 方法对应一个 MethodMetadata 对象
+    private final Map<MethodMetadata, Pool> methodPools = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "feign-connection-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public FeignConnectionPools(FeignConnectionPoolProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+        long interval = properties.getEvictionInterval().toMillis();
+        evictor.scheduleWithFixedDelay(this::evict, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 根据请求的 Feign 方法所在的 FeignClient 的 contextId 获取连接池，没有 contextId 的使用 default
+     */
+    public HttpClient getHttpClient(Request request) {
+        RequestTemplate requestTemplate = request.requestTemplate();
+        MethodMetadata methodMetadata = requestTemplate != null ? requestTemplate.methodMetadata() : null;
+        if (methodMetadata == null) {
+            return getHttpClient(FeignConnectionPoolProperties.DEFAULT);
+        }
+        Pool pool = methodPools.get(methodMetadata);
+        if (pool == null) {
+            pool = methodPools.computeIfAbsent(methodMetadata, m -> getPool(getContextId(m)));
+        }
+        return pool.httpClient;
+    }
+
+    public HttpClient getHttpClient(String contextId) {
+        return getPool(contextId).httpClient;
+    }
+
+    private Pool getPool(String contextId) {
+        Pool pool = pools.get(contextId);
+        if (pool == null) {
+            pool = pools.computeIfAbsent(contextId, this::createPool);
+        }
+        return pool;
+    }
+
+    private static String getContextId(MethodMetadata methodMetadata) {
+        FeignClient annotation = methodMetadata.method() != null ?
+                methodMetadata.method().getDeclaringClass().getAnnotation(FeignClient.class) : null;
+        if (annotation == null || annotation.contextId().isEmpty()) {
+            return FeignConnectionPoolProperties.DEFAULT;
+        }
+        return annotation.contextId();
+    }
+
+    private Pool createPool(String contextId) {
+        FeignConnectionPoolProperties.Pool config = properties.getPool(contextId);
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                config.getTimeToLive().toMillis(), TimeUnit.MILLISECONDS
+        );
+        connectionManager.setMaxTotal(config.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(config.getMaxPerRoute());
+        connectionManager.setValidateAfterInactivity((int) config.getValidateAfterInactivity().toMillis());
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                //ApacheHttpClient 每个请求的 RequestConfig 从这里复制，所以等待连接池的超时在这里配置
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout((int) config.getConnectionRequestTimeout().toMillis())
+                        .build())
+                // 保持长连接配置，需要在头添加Keep-Alive
+                .setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy())
+                //记录失败发生在发送请求还是读取响应的时候
+                .setRequestExecutor(new PhaseRecordingRequestExecutor())
+                .build();
+        log.info("create connection pool for {}: {}", contextId, config);
+        return new Pool(contextId, connectionManager, httpClient);
+    }
+
+    void evict() {
+        long idleTimeout = properties.getIdleTimeout().toMillis();
+        for (Pool pool : pools.values()) {
+            try {
+                pool.connectionManager.closeExpiredConnections();
+                pool.connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+                registerRouteGauges(pool);
+            } catch (Throwable e) {
+                log.warn("evict connections of {} failed: {}", pool.contextId, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * route 在第一次调用某个实例的时候才出现，所以在定时任务中检查并注册
+     * route 的连接全部被关闭之后 HttpClient 会把它从 getRoutes() 里面去掉，这时候删除它的指标，实例一直变化的时候指标不会越来越多
+     */
+    private void registerRouteGauges(Pool pool) {
+        if (meterRegistry == null) {
+            return;
+        }
+        Set<HttpRoute> routes = pool.connectionManager.getRoutes();
+        for (HttpRoute route : routes) {
+            if (!pool.routeGauges.containsKey(route)) {
+                PoolingHttpClientConnectionManager connectionManager = pool.connectionManager;
+                Tags tags = Tags.of("contextId", pool.contextId, "route", route.getTargetHost().toHostString());
+                pool.routeGauges.put(route, List.of(
+                        Gauge.builder(LEASED, connectionManager, c -> c.getStats(route).getLeased()).tags(tags).register(meterRegistry),
+                        Gauge.builder(PENDING, connectionManager, c -> c.getStats(route).getPending()).tags(tags).register(meterRegistry),
+                        Gauge.builder(AVAILABLE, connectionManager, c -> c.getStats(route).getAvailable()).tags(tags).register(meterRegistry)
+                ));
+            }
+        }
+        Iterator<Map.Entry<HttpRoute, List<Meter>>> iterator = pool.routeGauges.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<HttpRoute, List<Meter>> entry = iterator.next();
+            if (!routes.contains(entry.getKey())) {
+                entry.getValue().forEach(meterRegistry::remove);
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        evictor.shutdownNow();
+        for (Pool pool : pools.values()) {
+            try {
+                pool.httpClient.close();
+            } catch (IOException e) {
+                log.warn("close connection pool of {} failed: {}", pool.contextId, e.getMessage());
+            }
+        }
+    }
+
+    private static final class Pool {
+        private final String contextId;
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private final CloseableHttpClient httpClient;
+        //只有 evictor 线程访问
+        private final Map<HttpRoute, List<Meter>> routeGauges = new HashMap<>();
+
+        private Pool(String contextId, PoolingHttpClientConnectionManager connectionManager, CloseableHttpClient httpClient) {
+            this.contextId = contextId;
+            this.connectionManager = connectionManager;
+            this.httpClient = httpClient;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+/**
+ * Resilience4jFeignClient 调用实例的执行方式，按照 contextId 配置
+ */
+public enum FeignExecutionMode {
+    /**
+     * 每个实例一个 ThreadPoolBulkhead 线程池，调用线程阻塞等待线程池执行完成
+     * 一个请求占用两个线程，但是调用线程与实际发送请求的线程隔离
+     */
+    THREAD_POOL,
+    /**
+     * 每个实例一个信号量 Bulkhead 限制并发，直接在调用线程发送请求，没有线程切换
+     */
+    SEMAPHORE,
+    /**
+     * 每次调用一个虚拟线程，并发同样由信号量 Bulkhead 限制，只有 JDK 21 及以上才支持
+     * 不支持的时候退化为 SEMAPHORE
+     */
+    VIRTUAL_THREAD,
+    ;
+}
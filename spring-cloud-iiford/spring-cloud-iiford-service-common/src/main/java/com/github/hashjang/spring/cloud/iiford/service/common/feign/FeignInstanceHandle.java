@@ -0,0 +1,36 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.InstanceLoadStats;
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.ThreadPoolBulkhead;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 某个 Feign 方法在某个实例上面调用需要用到的 resilience4j 组件以及监控
+ * Bulkhead 是实例维度的（同一个实例的所有方法共享），断路器是实例 + 方法维度的
+ */
+@Getter
+@AllArgsConstructor
+public class FeignInstanceHandle {
+    private final FeignExecutionMode executionMode;
+    /**
+     * 只有 THREAD_POOL 模式才有
+     */
+    private final ThreadPoolBulkhead threadPoolBulkhead;
+    /**
+     * 只有 SEMAPHORE 与 VIRTUAL_THREAD 模式才有
+     */
+    private final Bulkhead bulkhead;
+    private final CircuitBreaker circuitBreaker;
+    private final FeignCallTelemetry telemetry;
+    /**
+     * 实例维度的负载统计，供 PeakEwmaLoadBalancer 使用
+     */
+    private final InstanceLoadStats loadStats;
+    /**
+     * 实例维度的自适应并发限制，在 Bulkhead 外面，没有启用的时候为 null
+     */
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+}
@@ -0,0 +1,62 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import feign.MethodMetadata;
+import org.springframework.cloud.openfeign.FeignClient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个 Feign 方法（MethodMetadata）对应一个描述，只在第一次调用的时候创建
+ * 之后的调用不再反射读取 @FeignClient 注解，也不再每次调用 Method.toGenericString()
+ * 同时这个方法在每个实例（host:port）上面对应的 resilience4j 组件也缓存在这里，调用的时候只需要根据 host:port 查找
+ */
+public class FeignMethodDescriptor {
+    /**
+     * 一个方法最多缓存多少个实例的组件，实例不断上下线的时候，超过这个数量按照最近最少使用淘汰
+     */
+    private static final int MAX_INSTANCES = 1024;
+
+    private final String contextId;
+    private final String methodId;
+    //例如 ServiceProviderClient#test()，比 methodId 短，作为监控的 tag
+    private final String configKey;
+    //实例下线之后，一段时间没有访问就淘汰，淘汰的只是缓存，registry 里面的组件还在，重新上线会拿到同一个
+    private final Cache<String, FeignInstanceHandle> instanceHandles = Caffeine.newBuilder()
+            .maximumSize(MAX_INSTANCES)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+
+    public FeignMethodDescriptor(MethodMetadata methodMetadata) {
+        FeignClient annotation = methodMetadata.method().getDeclaringClass().getAnnotation(FeignClient.class);
+        //和 Retry 保持一致，使用 contextId，而不是微服务名称
+        this.contextId = annotation.contextId();
+        this.methodId = methodMetadata.method().toGenericString();
+        this.configKey = methodMetadata.configKey();
+    }
+
+    public String getContextId() {
+        return contextId;
+    }
+
+    public String getMethodId() {
+        return methodId;
+    }
+
+    public String getConfigKey() {
+        return configKey;
+    }
+
+    /**
+     * @param hostAndPort 通过 {@link OpenfeignUtil#getHostAndPort(String)} 获取
+     * @return 没有缓存则返回 null
+     */
+    public FeignInstanceHandle getInstanceHandle(String hostAndPort) {
+        return instanceHandles.getIfPresent(hostAndPort);
+    }
+
+    public void putInstanceHandle(String hostAndPort, FeignInstanceHandle instanceHandle) {
+        instanceHandles.put(hostAndPort, instanceHandle);
+    }
+}
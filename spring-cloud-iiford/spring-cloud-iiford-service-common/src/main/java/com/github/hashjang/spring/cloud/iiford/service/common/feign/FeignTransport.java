@@ -0,0 +1,17 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+/**
+ * Resilience4jFeignClient 实际发送请求使用的 HTTP 客户端
+ */
+public enum FeignTransport {
+    /**
+     * Apache HttpClient 4，阻塞 IO，HTTP/1.1，一个进行中的请求占用一个连接，连接池见 FeignConnectionPools
+     */
+    APACHE,
+    /**
+     * JDK 11 的 java.net.http.HttpClient，NIO 实现，优先使用 HTTP/2（明文为 h2c 升级），同一个实例的并发请求复用一个连接
+     * 服务端不支持 HTTP/2 的时候退化为 HTTP/1.1
+     */
+    JDK,
+    ;
+}
@@ -0,0 +1,68 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+/**
+ * 对冲调用中一个请求的取消句柄，由 HedgingFeignClient 为每个请求创建，通过 ThreadLocal 带到下面的 Client
+ * Resilience4jFeignClient 把它带到实际执行的线程（线程池 Bulkhead 或者虚拟线程），ApacheHttpClient 与 JdkHttpClient 在发送之前注册中止请求的方法
+ * 输了的请求取消的时候直接中止 HTTP 请求，而不是中断线程：阻塞读不响应中断，并且中断会被当成实例的问题计入断路器
+ */
+public class HedgeCancellation {
+    private static final ThreadLocal<HedgeCancellation> CURRENT = new ThreadLocal<>();
+
+    private volatile boolean cancelled;
+    private Runnable abort;
+
+    /**
+     * @return 当前线程的请求不是对冲调用的时候返回 null
+     */
+    public static HedgeCancellation current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return 之前的值，用于 {@link #restore(HedgeCancellation)}
+     */
+    public static HedgeCancellation set(HedgeCancellation cancellation) {
+        HedgeCancellation previous = CURRENT.get();
+        CURRENT.set(cancellation);
+        return previous;
+    }
+
+    public static void restore(HedgeCancellation previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * 注册中止请求的方法，已经取消了的话直接执行
+     */
+    public void onCancel(Runnable abort) {
+        synchronized (this) {
+            if (!cancelled) {
+                this.abort = abort;
+                return;
+            }
+        }
+        abort.run();
+    }
+
+    public void cancel() {
+        Runnable abort;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            abort = this.abort;
+        }
+        if (abort != null) {
+            abort.run();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,357 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import brave.Span;
+import brave.Tracer;
+import com.github.hashjang.spring.cloud.iiford.service.common.config.FeignHedgingProperties;
+import feign.Client;
+import feign.MethodMetadata;
+import feign.Request;
+import feign.Response;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cloud.openfeign.FeignClient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 对冲请求：可以重试的请求（GET 或者有 RetryableMethod 注解）第一次发出之后，超过这个方法最近延迟的 p95（可配置）还没有返回，
+ * 就再发一个请求，由负载均衡器选择另一个实例，哪个先返回用哪个，另一个取消
+ * 包在 FeignBlockingLoadBalancerClientDelegate 外面，每个请求都单独经过负载均衡；在 RetryAttemptFeignDecorator 里面，对冲是一次尝试内部的事情
+ * 对冲请求在线程池里面发出，尝试次数与已经尝试过的实例通过 RetryAttemptContext 带过去，所以对冲请求不会选到同一个实例
+ * 对冲请求也算一次重试，开启了重试预算的时候需要取到令牌，下游整体变慢的时候不会让请求量翻倍
+ * 输了的请求通过 HedgeCancellation 取消：ApacheHttpClient 中止 HttpUriRequest（关闭连接），JdkHttpClient 取消 sendAsync 返回的 CompletableFuture，
+ * 占用的 Bulkhead 线程以及连接马上释放；Resilience4jFeignClient 看到请求是被取消的，释放断路器许可，不算实例的失败
+ */
+public class HedgingFeignClient implements Client, DisposableBean {
+    public static final String HEDGES = "feign.hedging.requests";
+
+    private final Client delegate;
+    private final FeignHedgingProperties properties;
+    private final RetryBudgetRegistry retryBudgetRegistry;
+    private final Tracer tracer;
+    //可以为 null，为 null 的时候不统计
+    private final MeterRegistry meterRegistry;
+    private final ThreadPoolExecutor executor;
+    //MethodMetadata 没有重写 equals 和 hashCode，一个 Feign 方法对应一个 MethodMetadata 对象
+    private final Map<MethodMetadata, MethodHedging> methodHedgings = new ConcurrentHashMap<>();
+
+    public HedgingFeignClient(
+            Client delegate,
+            FeignHedgingProperties properties,
+            RetryBudgetRegistry retryBudgetRegistry,
+            Tracer tracer,
+            MeterRegistry meterRegistry
+    ) {
+        this.delegate = delegate;
+        this.properties = properties;
+        this.retryBudgetRegistry = retryBudgetRegistry;
+        this.tracer = tracer;
+        this.meterRegistry = meterRegistry;
+        AtomicInteger threadIndex = new AtomicInteger();
+        //不排队，线程池满了直接在调用线程上面发送
+        this.executor = new ThreadPoolExecutor(0, properties.getMaxThreads(), 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "feign-hedging-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public Response execute(Request request, Request.Options options) throws IOException {
+        MethodHedging methodHedging = getMethodHedging(request);
+        if (methodHedging == null) {
+            return delegate.execute(request, options);
+        }
+        long delayNanos = methodHedging.getDelayNanos();
+        if (delayNanos < 0) {
+            //样本不够，先统计
+            long start = System.nanoTime();
+            Response response = delegate.execute(request, options);
+            methodHedging.tracker.record(System.nanoTime() - start);
+            return response;
+        }
+        return executeHedged(request, options, methodHedging, delayNanos);
+    }
+
+    private Response executeHedged(Request request, Request.Options options, MethodHedging methodHedging, long delayNanos) throws IOException {
+        //在调用线程获取 span 以及重试上下文
+        Span span = tracer.currentSpan();
+        int attempt = RetryAttemptContext.current();
+        int startOffset = RetryAttemptContext.startOffset();
+        List<String> callerTriedInstances = RetryAttemptContext.triedInstances();
+        List<String> triedInstances = Collections.synchronizedList(new ArrayList<>(4));
+        if (callerTriedInstances != null) {
+            triedInstances.addAll(callerTriedInstances);
+        }
+        HedgedCall call = new HedgedCall();
+        long start = System.nanoTime();
+        try {
+            submit(call, 0, request, options, span, attempt, startOffset, triedInstances);
+        } catch (RejectedExecutionException e) {
+            //线程池满了，不对冲
+            return delegate.execute(request, options);
+        }
+        boolean hedged = false;
+        long hedgeStart = 0;
+        try {
+            Response response;
+            try {
+                response = call.result.get(delayNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                RetryBudget retryBudget = methodHedging.retryBudget;
+                if (retryBudget != null && !retryBudget.tryAcquire()) {
+                    methodHedging.count(methodHedging.budgetExhausted);
+                } else {
+                    hedgeStart = System.nanoTime();
+                    hedged = submitHedge(call, request, options, span, attempt + 1, startOffset, triedInstances);
+                }
+                response = call.result.get();
+            }
+            long now = System.nanoTime();
+            if (call.winner == 0) {
+                methodHedging.tracker.record(now - start);
+                if (hedged) {
+                    methodHedging.count(methodHedging.primaryWon);
+                }
+            } else {
+                //第一个请求被取消了，它的延迟至少是这么长
+                methodHedging.tracker.record(now - start);
+                methodHedging.tracker.record(now - hedgeStart);
+                methodHedging.count(methodHedging.hedgeWon);
+            }
+            return response;
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } finally {
+            //取消还没有返回的请求，已经返回了的取消什么也不做
+            call.cancelLosers();
+            if (hedged) {
+                //之后的重试继续往后选，并且排除对冲请求用过的实例
+                RetryAttemptContext.advance(attempt + 1, triedInstances);
+            }
+        }
+    }
+
+    /**
+     * @return 对冲请求有没有发出去
+     */
+    private boolean submitHedge(HedgedCall call, Request request, Request.Options options, Span span, int attempt, int startOffset, List<String> triedInstances) {
+        if (!call.launch()) {
+            return false;
+        }
+        try {
+            executor.execute(() -> attempt(call, 1, request, options, span, attempt, startOffset, triedInstances));
+            return true;
+        } catch (RejectedExecutionException e) {
+            //线程池满了，不对冲，继续等第一个请求
+            call.cancelLaunch();
+            return false;
+        }
+    }
+
+    private void submit(HedgedCall call, int index, Request request, Request.Options options, Span span, int attempt, int startOffset, List<String> triedInstances) {
+        call.launch();
+        try {
+            executor.execute(() -> attempt(call, index, request, options, span, attempt, startOffset, triedInstances));
+        } catch (RejectedExecutionException e) {
+            call.cancelLaunch();
+            throw e;
+        }
+    }
+
+    private void attempt(HedgedCall call, int index, Request request, Request.Options options, Span span, int attempt, int startOffset, List<String> triedInstances) {
+        RetryAttemptContext.attach(attempt, startOffset, triedInstances);
+        HedgeCancellation previous = HedgeCancellation.set(call.cancellations[index]);
+        try (Tracer.SpanInScope cleared = tracer.withSpanInScope(span)) {
+            call.complete(index, delegate.execute(request, options));
+        } catch (Throwable e) {
+            call.fail(e);
+        } finally {
+            HedgeCancellation.restore(previous);
+            RetryAttemptContext.detach();
+        }
+    }
+
+    private static IOException rethrow(Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * @return 不需要对冲的时候返回 null
+     */
+    private MethodHedging getMethodHedging(Request request) {
+        if (request.requestTemplate() == null || request.requestTemplate().methodMetadata() == null) {
+            return null;
+        }
+        MethodMetadata methodMetadata = request.requestTemplate().methodMetadata();
+        MethodHedging methodHedging = methodHedgings.get(methodMetadata);
+        if (methodHedging == null) {
+            methodHedging = methodHedgings.computeIfAbsent(methodMetadata, k -> createMethodHedging(request, k));
+        }
+        return methodHedging.enabled ? methodHedging : null;
+    }
+
+    private MethodHedging createMethodHedging(Request request, MethodMetadata methodMetadata) {
+        FeignClient annotation = methodMetadata.method().getDeclaringClass().getAnnotation(FeignClient.class);
+        if (annotation == null || !OpenfeignUtil.isRetryableRequest(request)) {
+            return MethodHedging.DISABLED;
+        }
+        String contextId = annotation.contextId();
+        FeignHedgingProperties.Config config = properties.getConfig(contextId);
+        if (!config.isEnabled()) {
+            return MethodHedging.DISABLED;
+        }
+        return new MethodHedging(config, retryBudgetRegistry.getRetryBudget(contextId), meterRegistry, contextId, methodMetadata.configKey());
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 一次对冲调用，第一个成功返回的响应作为结果，都失败的时候最后一个异常作为结果
+     */
+    private static class HedgedCall {
+        private final CompletableFuture<Response> result = new CompletableFuture<>();
+        //第一个请求与对冲请求各自的取消句柄
+        private final HedgeCancellation[] cancellations = {new HedgeCancellation(), new HedgeCancellation()};
+        private int running;
+        private Throwable failure;
+        private volatile int winner = -1;
+
+        /**
+         * @return 已经有结果的时候返回 false，不用再发请求
+         */
+        synchronized boolean launch() {
+            if (result.isDone()) {
+                return false;
+            }
+            running++;
+            return true;
+        }
+
+        synchronized void cancelLaunch() {
+            running--;
+            //对冲请求没有发出去之前，第一个请求已经失败了
+            if (running == 0 && failure != null) {
+                result.completeExceptionally(failure);
+            }
+        }
+
+        void complete(int index, Response response) {
+            synchronized (this) {
+                running--;
+                if (!result.isDone()) {
+                    winner = index;
+                    result.complete(response);
+                    return;
+                }
+            }
+            //输了的响应需要关闭，否则连接不会回收
+            response.close();
+        }
+
+        synchronized void fail(Throwable e) {
+            running--;
+            failure = e;
+            if (running == 0) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * 取消除了胜出的请求之外的请求，胜出的请求的响应还要给调用方读
+         */
+        void cancelLosers() {
+            for (int i = 0; i < cancellations.length; i++) {
+                if (i != winner) {
+                    cancellations[i].cancel();
+                }
+            }
+        }
+    }
+
+    private static class MethodHedging {
+        static final MethodHedging DISABLED = new MethodHedging();
+
+        private final boolean enabled;
+        private final long minDelayNanos;
+        private final LatencyPercentileTracker tracker;
+        //没有开启重试预算的时候为 null
+        private final RetryBudget retryBudget;
+        //meterRegistry 为 null 的时候为 null
+        private final Counter primaryWon;
+        private final Counter hedgeWon;
+        private final Counter budgetExhausted;
+
+        private MethodHedging() {
+            this.enabled = false;
+            this.minDelayNanos = 0;
+            this.tracker = null;
+            this.retryBudget = null;
+            this.primaryWon = null;
+            this.hedgeWon = null;
+            this.budgetExhausted = null;
+        }
+
+        MethodHedging(FeignHedgingProperties.Config config, RetryBudget retryBudget, MeterRegistry meterRegistry, String contextId, String configKey) {
+            this.enabled = true;
+            this.minDelayNanos = config.getMinDelay().toNanos();
+            this.tracker = new LatencyPercentileTracker(config.getWindowSize(), config.getPercentile(), config.getMinSamples());
+            this.retryBudget = retryBudget;
+            if (meterRegistry != null) {
+                Tags tags = Tags.of("contextId", contextId, "method", configKey);
+                this.primaryWon = Counter.builder(HEDGES).tags(tags).tag("result", "primary_won").register(meterRegistry);
+                this.hedgeWon = Counter.builder(HEDGES).tags(tags).tag("result", "hedge_won").register(meterRegistry);
+                this.budgetExhausted = Counter.builder(HEDGES).tags(tags).tag("result", "budget_exhausted").register(meterRegistry);
+            } else {
+                this.primaryWon = null;
+                this.hedgeWon = null;
+                this.budgetExhausted = null;
+            }
+        }
+
+        /**
+         * @return 样本不够的时候返回 -1
+         */
+        long getDelayNanos() {
+            long percentileNanos = tracker.getPercentileNanos();
+            return percentileNanos < 0 ? -1 : Math.max(percentileNanos, minDelayNanos);
+        }
+
+        void count(Counter counter) {
+            if (counter != null) {
+                counter.increment();
+            }
+        }
+    }
+}
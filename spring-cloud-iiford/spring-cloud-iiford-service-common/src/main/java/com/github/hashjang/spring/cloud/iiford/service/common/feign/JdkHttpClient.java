@@ -0,0 +1,251 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import feign.Client;
+import feign.Request;
+import feign.Response;
+import feign.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import static feign.Util.UTF_8;
+
+/**
+ * 基于 JDK 11 java.net.http.HttpClient 的 Feign Client，可以代替 ApacheHttpClient 放在 Resilience4jFeignClient 下面
+ * HTTP/2 的时候同一个实例的所有并发请求复用一个连接（多路复用），不再一个进行中的请求占一个连接
+ * 响应 body 直接是连接上的流，和 ApacheHttpClient 一样不会先读到内存
+ * 明文的 HTTP/2 需要第一个请求完成 h2c 升级，升级完成之前同一个实例的并发请求会各自建立 HTTP/1.1 连接
+ * 连接超时是 HttpClient 级别的，所以每个不同的连接超时对应一个 HttpClient，读取超时是请求级别的
+ */
+public class JdkHttpClient implements Client {
+    private static final String ACCEPT_HEADER_NAME = "Accept";
+    /**
+     * java.net.http.HttpClient 不允许设置的 header，由 HttpClient 自己设置
+     */
+    private static final Set<String> DISALLOWED_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        DISALLOWED_HEADERS.addAll(List.of("Connection", "Content-Length", "Expect", "Host", "Upgrade"));
+    }
+
+    /**
+     * HttpClient 默认的 executor 是不限大小的线程池，并发高的时候会创建很多线程
+     * 这里所有的 HttpClient 共用一个固定大小的线程池，只用来分发响应，调用线程自己阻塞等待结果
+     */
+    private static final Executor EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread thread = new Thread(r, "feign-jdk-http-client");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * JDK 16 之前取消 sendAsync 返回的 CompletableFuture 不会中止请求（JDK-8245462），连接或者 HTTP/2 stream 一直占着直到响应回来
+     */
+    private static final boolean CANCEL_ABORTS_EXCHANGE = Runtime.version().feature() >= 16;
+
+    private final HttpClient.Version version;
+    private final Map<Long, HttpClient> clients = new ConcurrentHashMap<>();
+
+    public JdkHttpClient() {
+        this(HttpClient.Version.HTTP_2);
+    }
+
+    public JdkHttpClient(HttpClient.Version version) {
+        this.version = version;
+    }
+
+    @Override
+    public Response execute(Request request, Request.Options options) throws IOException {
+        HttpClient client = getClient(options);
+        HedgeCancellation cancellation = HedgeCancellation.current();
+        if (cancellation == null) {
+            return send(client, request, options);
+        }
+        //对冲调用用 sendAsync 发送，输了的时候调用线程马上返回，请求由 abort 中止
+        CompletableFuture<HttpResponse<InputStream>> future = client.sendAsync(toHttpRequest(request, options), HttpResponse.BodyHandlers.ofInputStream());
+        //调用线程等的是这个，取消它不影响 future 之后拿到响应
+        CompletableFuture<HttpResponse<InputStream>> waiting = future.thenApply(Function.identity());
+        cancellation.onCancel(() -> {
+            waiting.cancel(true);
+            abort(future);
+        });
+        HttpResponse<InputStream> httpResponse;
+        try {
+            httpResponse = waiting.get();
+        } catch (InterruptedException e) {
+            waiting.cancel(true);
+            abort(future);
+            throw interrupted(e);
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("hedged request cancelled");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw new PhasedIOException(FailurePhase.classify(e.getCause()), request, (IOException) e.getCause());
+            }
+            throw new IOException(e.getCause());
+        }
+        return toFeignResponse(httpResponse, request);
+    }
+
+    /**
+     * JDK 16 及以上取消 future 就会中止请求
+     * 之前的版本只能等响应头回来之后关闭 body：HTTP/1.1 关闭连接，HTTP/2 重置 stream，不用等整个 body 读完；响应头回来之前服务端还是会继续处理
+     */
+    private static void abort(CompletableFuture<HttpResponse<InputStream>> future) {
+        if (CANCEL_ABORTS_EXCHANGE) {
+            future.cancel(true);
+            return;
+        }
+        future.thenAccept(httpResponse -> {
+            try {
+                httpResponse.body().close();
+            } catch (IOException e) {
+                //ignore
+            }
+        });
+    }
+
+    private Response send(HttpClient client, Request request, Request.Options options) throws IOException {
+        HttpResponse<InputStream> httpResponse;
+        try {
+            httpResponse = client.send(toHttpRequest(request, options), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            throw interrupted(e);
+        } catch (IOException e) {
+            //JDK HttpClient 无法区分发送与读取，只能根据异常类型判断
+            throw new PhasedIOException(FailurePhase.classify(e), request, e);
+        }
+        return toFeignResponse(httpResponse, request);
+    }
+
+    private static InterruptedIOException interrupted(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        InterruptedIOException interruptedIOException = new InterruptedIOException(e.getMessage());
+        interruptedIOException.initCause(e);
+        return interruptedIOException;
+    }
+
+    private HttpClient getClient(Request.Options options) {
+        long connectTimeoutMillis = options.connectTimeoutMillis();
+        HttpClient client = clients.get(connectTimeoutMillis);
+        if (client == null) {
+            client = clients.computeIfAbsent(connectTimeoutMillis, timeout -> {
+                HttpClient.Builder builder = HttpClient.newBuilder()
+                        .version(version)
+                        //和 ApacheHttpClient 一样，重定向由 Feign 处理
+                        .followRedirects(HttpClient.Redirect.NEVER)
+                        .executor(EXECUTOR);
+                //Feign 的超时为 0 表示不超时，HttpClient 不允许设置为 0，不设置就是不超时
+                if (timeout > 0) {
+                    builder.connectTimeout(Duration.ofMillis(timeout));
+                }
+                return builder.build();
+            });
+        }
+        return client;
+    }
+
+    HttpRequest toHttpRequest(Request request, Request.Options options) throws IOException {
+        URI uri;
+        try {
+            uri = URI.create(request.url());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("URL '" + request.url() + "' couldn't be parsed into a URI", e);
+        }
+        HttpRequest.Builder builder = HttpRequest.newBuilder().uri(uri);
+        if (options.readTimeoutMillis() > 0) {
+            builder.timeout(Duration.ofMillis(options.readTimeoutMillis()));
+        }
+        boolean hasAcceptHeader = false;
+        for (Map.Entry<String, Collection<String>> headerEntry : request.headers().entrySet()) {
+            String headerName = headerEntry.getKey();
+            if (DISALLOWED_HEADERS.contains(headerName)) {
+                continue;
+            }
+            if (headerName.equalsIgnoreCase(ACCEPT_HEADER_NAME)) {
+                hasAcceptHeader = true;
+            }
+            for (String headerValue : headerEntry.getValue()) {
+                builder.header(headerName, headerValue);
+            }
+        }
+        // some servers choke on the default accept string, so we'll set it to anything
+        if (!hasAcceptHeader) {
+            builder.header(ACCEPT_HEADER_NAME, "*/*");
+        }
+        //直接发送 feign 编码好的字节数组，不拷贝
+        byte[] body = request.body();
+        HttpRequest.BodyPublisher bodyPublisher = body != null && body.length > 0 ?
+                HttpRequest.BodyPublishers.ofByteArray(body) : HttpRequest.BodyPublishers.noBody();
+        return builder.method(request.httpMethod().name(), bodyPublisher).build();
+    }
+
+    private Response toFeignResponse(HttpResponse<InputStream> httpResponse, Request request) {
+        //HTTP/2 的 header 都是小写，这里和 Feign 一样不区分大小写
+        Map<String, Collection<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.putAll(httpResponse.headers().map());
+        long contentLength = httpResponse.headers().firstValueAsLong("Content-Length").orElse(-1);
+        InputStream inputStream = httpResponse.body();
+        return Response.builder()
+                .status(httpResponse.statusCode())
+                .headers(headers)
+                .request(request)
+                .body(new Response.Body() {
+                    @Override
+                    public Integer length() {
+                        return contentLength >= 0 && contentLength <= Integer.MAX_VALUE ? (int) contentLength : null;
+                    }
+
+                    @Override
+                    public boolean isRepeatable() {
+                        return false;
+                    }
+
+                    @Override
+                    public InputStream asInputStream() {
+                        return inputStream;
+                    }
+
+                    @SuppressWarnings("deprecation")
+                    @Override
+                    public Reader asReader() {
+                        return new InputStreamReader(inputStream, UTF_8);
+                    }
+
+                    @Override
+                    public Reader asReader(Charset charset) {
+                        Util.checkNotNull(charset, "charset should not be null");
+                        return new InputStreamReader(inputStream, charset);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        inputStream.close();
+                    }
+                })
+                .build();
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 某个 Feign 方法最近 windowSize 次调用的延迟，环形数组保存，用于计算对冲延迟
+ * 不是每次调用都排序计算分位数，记录了 windowSize / 8 次之后才重新计算一次
+ * 并发写同一个位置的时候可能丢掉一个样本，只是统计用，不影响结果
+ */
+public class LatencyPercentileTracker {
+    private final long[] samples;
+    private final double percentile;
+    private final int minSamples;
+    private final int recomputeInterval;
+    private final AtomicLong count = new AtomicLong();
+    //上次计算分位数的时候的 count，以及计算结果，样本不够的时候为 -1
+    private volatile long computedAt = -1;
+    private volatile long percentileNanos = -1;
+
+    public LatencyPercentileTracker(int windowSize, double percentile, int minSamples) {
+        this.samples = new long[windowSize];
+        this.percentile = percentile;
+        this.minSamples = Math.min(minSamples, windowSize);
+        this.recomputeInterval = Math.max(1, windowSize / 8);
+    }
+
+    public void record(long nanos) {
+        long index = count.getAndIncrement();
+        samples[(int) (index % samples.length)] = nanos;
+    }
+
+    /**
+     * @return 最近调用延迟的 percentile 分位数，样本不够的时候返回 -1
+     */
+    public long getPercentileNanos() {
+        long current = count.get();
+        if (current < minSamples) {
+            return -1;
+        }
+        if (computedAt < 0 || current - computedAt >= recomputeInterval) {
+            //并发的时候可能多个线程都重新计算，结果差不多，谁最后写入都没关系
+            long[] copy = Arrays.copyOf(samples, (int) Math.min(current, samples.length));
+            Arrays.sort(copy);
+            int index = (int) Math.ceil(percentile * copy.length) - 1;
+            percentileNanos = copy[Math.max(0, Math.min(index, copy.length - 1))];
+            computedAt = current;
+        }
+        return percentileNanos;
+    }
+}
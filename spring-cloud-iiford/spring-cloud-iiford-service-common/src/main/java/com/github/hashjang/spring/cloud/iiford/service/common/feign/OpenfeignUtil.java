@@ -1,9 +1,12 @@
 package com.github.hashjang.spring.cloud.iiford.service.common.feign;
 
+import com.github.hashjang.spring.cloud.iiford.service.common.misc.RequestDeadline;
 import feign.Request;
 
 import java.lang.reflect.Method;
+import java.util.Collection;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 public class OpenfeignUtil {
     /**
@@ -17,6 +20,10 @@ public class OpenfeignUtil {
         if (Objects.equals(httpMethod, Request.HttpMethod.GET)) {
             return true;
         }
+        //不是通过 Feign 接口方法发出的请求，无法判断，按照不可重试处理
+        if (request.requestTemplate() == null || request.requestTemplate().methodMetadata() == null) {
+            return false;
+        }
         Method method = request.requestTemplate().methodMetadata().method();
         RetryableMethod annotation = method.getAnnotation(RetryableMethod.class);
         if (annotation == null) {
@@ -25,4 +32,52 @@ public class OpenfeignUtil {
         //如果类上面或者方法上面有注解，则为查询类型的请求，是可以重试的
         return annotation != null;
     }
+
+    /**
+     * 根据 DeadlineRequestInterceptor 设置的剩余时间请求头，把读取超时限制在剩余时间以内
+     * 连接超时保持配置的值不变：JdkHttpClient 每个不同的连接超时对应一个 HttpClient，跟着剩余时间变化的话会不停地创建 HttpClient
+     * 剩余时间为 0 的时候也至少给 1ms，Feign 的超时为 0 表示不超时
+     * @return 没有截止时间或者配置的超时已经更短的时候，返回原来的 options
+     */
+    public static Request.Options limitByDeadline(Request request, Request.Options options) {
+        Collection<String> values = request.headers().get(RequestDeadline.HEADER);
+        if (values == null || values.isEmpty()) {
+            return options;
+        }
+        long remainingMillis = RequestDeadline.parseRemainingMillis(values.iterator().next());
+        if (remainingMillis < 0) {
+            return options;
+        }
+        long limit = Math.max(1, remainingMillis);
+        //读取超时为 0 是不超时，也要限制
+        if (options.readTimeoutMillis() != 0 && options.readTimeoutMillis() <= limit) {
+            return options;
+        }
+        return new Request.Options(
+                options.connectTimeoutMillis(), TimeUnit.MILLISECONDS,
+                limit, TimeUnit.MILLISECONDS,
+                options.isFollowRedirects()
+        );
+    }
+
+    /**
+     * 从负载均衡之后的 url 中取出 host:port 部分，不通过 new URL 解析
+     * 例如 http://127.0.0.1:8080/test?a=b 返回 127.0.0.1:8080
+     * @param url
+     * @return
+     */
+    public static String getHostAndPort(String url) {
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = start;
+        int length = url.length();
+        while (end < length) {
+            char c = url.charAt(end);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            end++;
+        }
+        return url.substring(start, end);
+    }
 }
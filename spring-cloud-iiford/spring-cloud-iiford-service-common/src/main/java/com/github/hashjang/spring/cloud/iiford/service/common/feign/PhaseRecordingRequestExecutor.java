@@ -0,0 +1,38 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
+
+/**
+ * 在 HttpContext 中记录 IOException 发生在发送请求还是读取响应的时候
+ * 只记录不封装异常，否则会影响 HttpClient 内部的重试判断
+ */
+public class PhaseRecordingRequestExecutor extends HttpRequestExecutor {
+    public static final String FAILURE_PHASE = PhaseRecordingRequestExecutor.class.getName() + ".failurePhase";
+
+    @Override
+    protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context) throws IOException, HttpException {
+        try {
+            return super.doSendRequest(request, conn, context);
+        } catch (IOException e) {
+            context.setAttribute(FAILURE_PHASE, FailurePhase.WRITE);
+            throw e;
+        }
+    }
+
+    @Override
+    protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context) throws HttpException, IOException {
+        try {
+            return super.doReceiveResponse(request, conn, context);
+        } catch (IOException e) {
+            context.setAttribute(FAILURE_PHASE, FailurePhase.READ);
+            throw e;
+        }
+    }
+}
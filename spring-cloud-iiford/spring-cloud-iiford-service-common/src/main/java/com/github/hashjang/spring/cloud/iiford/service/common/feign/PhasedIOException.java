@@ -0,0 +1,22 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import feign.Request;
+import lombok.Getter;
+
+import java.io.IOException;
+
+/**
+ * 带有失败阶段的 IOException，由 ApacheHttpClient 与 JdkHttpClient 在捕获到 IOException 的时候封装
+ * DefaultRetryOnExceptionPredicate 根据阶段判断是否可以重试，不再根据异常 message 判断
+ */
+@Getter
+public class PhasedIOException extends IOException {
+    private final FailurePhase phase;
+    private final Request request;
+
+    public PhasedIOException(FailurePhase phase, Request request, IOException cause) {
+        super(phase + ": " + cause.getMessage(), cause);
+        this.phase = phase;
+        this.request = request;
+    }
+}
@@ -2,127 +2,378 @@ package com.github.hashjang.spring.cloud.iiford.service.common.feign;
 
 import brave.Span;
 import brave.Tracer;
-import com.alibaba.fastjson.JSON;
+import com.github.hashjang.spring.cloud.iiford.service.common.config.FeignExecutionProperties;
+import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.InstanceLoadStats;
+import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.InstanceLoadStatsRegistry;
 import com.github.hashjang.spring.cloud.iiford.service.common.misc.ResponseWrapperException;
 import com.github.hashjang.spring.cloud.iiford.service.common.misc.SpecialHttpStatus;
 import feign.Client;
+import feign.MethodMetadata;
 import feign.Request;
 import feign.Response;
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
 import io.github.resilience4j.bulkhead.ThreadPoolBulkhead;
 import io.github.resilience4j.bulkhead.ThreadPoolBulkheadRegistry;
 import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 import io.github.resilience4j.circuitbreaker.CircuitBreaker;
 import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
 import io.github.resilience4j.core.ConfigurationNotFoundException;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.vavr.control.Try;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.cloud.openfeign.FeignClient;
 import org.springframework.http.HttpStatus;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 @Slf4j
 public class Resilience4jFeignClient implements Client {
     private final ThreadPoolBulkheadRegistry threadPoolBulkheadRegistry;
+    private final BulkheadRegistry bulkheadRegistry;
     private final CircuitBreakerRegistry circuitBreakerRegistry;
     private final Tracer tracer;
-    private ApacheHttpClient apacheHttpClient;
+    private final FeignExecutionProperties feignExecutionProperties;
+    private final MeterRegistry meterRegistry;
+    private final InstanceLoadStatsRegistry instanceLoadStatsRegistry;
+    //为 null 的时候不做自适应并发限制
+    private final AdaptiveConcurrencyLimitRegistry adaptiveConcurrencyLimitRegistry;
+    //实际发送请求的 Client，ApacheHttpClient 或者 JdkHttpClient
+    private final Client client;
+    //MethodMetadata 没有重写 equals 和 hashCode，一个 Feign 方法对应一个 MethodMetadata 对象
+    private final Map<MethodMetadata, FeignMethodDescriptor> methodDescriptors = new ConcurrentHashMap<>();
 
 
     public Resilience4jFeignClient(
-            ApacheHttpClient apacheHttpClient,
+            Client client,
             ThreadPoolBulkheadRegistry threadPoolBulkheadRegistry,
+            BulkheadRegistry bulkheadRegistry,
             CircuitBreakerRegistry circuitBreakerRegistry,
-            Tracer tracer
+            Tracer tracer,
+            FeignExecutionProperties feignExecutionProperties,
+            MeterRegistry meterRegistry,
+            InstanceLoadStatsRegistry instanceLoadStatsRegistry
     ) {
-        this.apacheHttpClient = apacheHttpClient;
+        this(client, threadPoolBulkheadRegistry, bulkheadRegistry, circuitBreakerRegistry, tracer,
+                feignExecutionProperties, meterRegistry, instanceLoadStatsRegistry, null);
+    }
+
+    public Resilience4jFeignClient(
+            Client client,
+            ThreadPoolBulkheadRegistry threadPoolBulkheadRegistry,
+            BulkheadRegistry bulkheadRegistry,
+            CircuitBreakerRegistry circuitBreakerRegistry,
+            Tracer tracer,
+            FeignExecutionProperties feignExecutionProperties,
+            MeterRegistry meterRegistry,
+            InstanceLoadStatsRegistry instanceLoadStatsRegistry,
+            AdaptiveConcurrencyLimitRegistry adaptiveConcurrencyLimitRegistry
+    ) {
+        this.client = client;
         this.threadPoolBulkheadRegistry = threadPoolBulkheadRegistry;
+        this.bulkheadRegistry = bulkheadRegistry;
         this.circuitBreakerRegistry = circuitBreakerRegistry;
         this.tracer = tracer;
+        this.feignExecutionProperties = feignExecutionProperties;
+        this.meterRegistry = meterRegistry;
+        this.instanceLoadStatsRegistry = instanceLoadStatsRegistry;
+        this.adaptiveConcurrencyLimitRegistry = adaptiveConcurrencyLimitRegistry;
     }
 
     @Override
     public Response execute(Request request, Request.Options options) throws IOException {
-        FeignClient annotation = request.requestTemplate().methodMetadata().method().getDeclaringClass().getAnnotation(FeignClient.class);
-        //和 Retry 保持一致，使用 contextId，而不是微服务名称
-        String contextId = annotation.contextId();
-        //获取实例唯一id
-        String serviceInstanceId = getServiceInstanceId(contextId, request);
-        //获取实例+方法唯一id
-        String serviceInstanceMethodId = getServiceInstanceMethodId(request);
+        FeignInstanceHandle instanceHandle = getInstanceHandle(request);
+        CircuitBreaker circuitBreaker = instanceHandle.getCircuitBreaker();
+        //这次尝试的超时不超过调用方剩下的时间
+        Request.Options attemptOptions = OpenfeignUtil.limitByDeadline(request, options);
+        //保持traceId
+        Span span = tracer.currentSpan();
+        //对冲调用的取消句柄，需要带到实际执行的线程
+        HedgeCancellation cancellation = HedgeCancellation.current();
+        Supplier<Response> supplier = decorateCircuitBreaker(circuitBreaker, cancellation, () -> {
+            InstanceLoadStats loadStats = instanceHandle.getLoadStats();
+            loadStats.start();
+            long start = System.nanoTime();
+            HedgeCancellation previous = HedgeCancellation.set(cancellation);
+            try (Tracer.SpanInScope cleared = tracer.withSpanInScope(span)) {
+                Response execute = null;
+                try {
+                    execute = client.execute(request, attemptOptions);
+                } finally {
+                    //异常以及非 200 的响应按照失败记录，否则快速失败的实例响应时间短反而会被选中更多
+                    //对冲输了被取消的请求不是实例的问题，它的延迟至少是这么长
+                    if (execute != null && execute.status() == HttpStatus.OK.value() || isCancelled(cancellation)) {
+                        loadStats.complete(System.nanoTime() - start);
+                    } else {
+                        loadStats.fail(System.nanoTime() - start);
+                    }
+                }
+                if (execute.status() != HttpStatus.OK.value()) {
+                    //需要关闭，否则返回码不为200抛异常连接不会回收导致连接池耗尽
+                    execute.close();
+                    //虽然有返回响应，但是算失败了，需要抛出异常让断路器感知到
+                    //但是最后返回，只返回 execute 这个 Response
+                    throw new ResponseWrapperException(execute.toString(), execute);
+                }
+                return execute;
+            } catch (ResponseWrapperException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new ResponseWrapperException(e.getMessage(), e);
+            } finally {
+                HedgeCancellation.restore(previous);
+            }
+        });
 
-        ThreadPoolBulkhead threadPoolBulkhead;
-        CircuitBreaker circuitBreaker;
-        try {
-            //每个实例一个线程池
-            threadPoolBulkhead = threadPoolBulkheadRegistry.bulkhead(serviceInstanceId, contextId);
-        } catch (ConfigurationNotFoundException e) {
-            threadPoolBulkhead = threadPoolBulkheadRegistry.bulkhead(serviceInstanceId);
+        FeignCallTelemetry telemetry = instanceHandle.getTelemetry();
+        AdaptiveConcurrencyLimit concurrencyLimit = instanceHandle.getConcurrencyLimit();
+        if (concurrencyLimit != null && !concurrencyLimit.tryAcquire()) {
+            //直接返回，和断路器打开一样走 DefaultErrorDecoder 重试到其他实例
+            telemetry.recordConcurrencyLimited();
+            return Response.builder()
+                    .request(request)
+                    .status(SpecialHttpStatus.CONCURRENCY_LIMITED.getValue())
+                    .reason("concurrency limit " + concurrencyLimit.getLimit() + " reached")
+                    .requestTemplate(request.requestTemplate()).build();
         }
+        long start = System.nanoTime();
+        Response response;
         try {
-            //每个服务实例具体方法一个resilience4j熔断记录器，在服务实例具体方法维度做熔断，所有这个服务的实例具体方法共享这个服务的resilience4j熔断配置
-            circuitBreaker = circuitBreakerRegistry.circuitBreaker(serviceInstanceMethodId, contextId);
-        } catch (ConfigurationNotFoundException e) {
-            circuitBreaker = circuitBreakerRegistry.circuitBreaker(serviceInstanceMethodId);
+            switch (instanceHandle.getExecutionMode()) {
+                case SEMAPHORE:
+                    response = executeInCurrentThread(instanceHandle.getBulkhead(), supplier, request);
+                    break;
+                case VIRTUAL_THREAD:
+                    response = executeInVirtualThread(instanceHandle.getBulkhead(), supplier, request);
+                    break;
+                default:
+                    response = executeInThreadPool(instanceHandle.getThreadPoolBulkhead(), supplier, request);
+            }
+        } catch (BulkheadFullException e) {
+            if (concurrencyLimit != null) {
+                concurrencyLimit.onIgnore();
+            }
+            telemetry.recordBulkheadFull();
+            throw e;
+        } catch (RuntimeException e) {
+            if (isCancelled(cancellation)) {
+                //对冲输了被取消，不是实例的问题，不计入并发限制以及失败统计
+                if (concurrencyLimit != null) {
+                    concurrencyLimit.onIgnore();
+                }
+                throw e;
+            }
+            if (concurrencyLimit != null) {
+                concurrencyLimit.onDropped();
+            }
+            telemetry.recordFailure(System.nanoTime() - start);
+            logSampled(request, instanceHandle, -1, System.nanoTime() - start);
+            throw e;
         }
-        //保持traceId
-        Span span = tracer.currentSpan();
-        ThreadPoolBulkhead finalThreadPoolBulkhead = threadPoolBulkhead;
-        CircuitBreaker finalCircuitBreaker = circuitBreaker;
-        Supplier<CompletionStage<Response>> completionStageSupplier = ThreadPoolBulkhead.decorateSupplier(threadPoolBulkhead,
-                CircuitBreaker.decorateSupplier(circuitBreaker, () -> {
-                    try (Tracer.SpanInScope cleared = tracer.withSpanInScope(span)) {
-                        log.info("call url: {} -> {}, ThreadPoolStats: {}, CircuitBreakStats: {}",
-                                request.httpMethod(),
-                                request.url(),
-                                JSON.toJSONString(finalThreadPoolBulkhead.getMetrics()),
-                                JSON.toJSONString(finalCircuitBreaker.getMetrics())
-                        );
-                        Response execute = apacheHttpClient.execute(request, options);
-                        log.info("response: {} - {}", execute.status(), execute.reason());
-                        if (execute.status() != HttpStatus.OK.value()) {
-                            //需要关闭，否则返回码不为200抛异常连接不会回收导致连接池耗尽
-                            execute.close();
-                            //虽然有返回响应，但是算失败了，需要抛出异常让断路器感知到
-                            //但是最后返回，只返回 execute 这个 Response
-                            throw new ResponseWrapperException(execute.toString(), execute);
-                        }
-                        return execute;
-                    } catch (ResponseWrapperException e) {
-                        throw e;
-                    } catch (Exception e) {
-                        throw new ResponseWrapperException(e.getMessage(), e);
-                    }
-                })
+        long nanos = System.nanoTime() - start;
+        if (concurrencyLimit != null) {
+            //断路器打开请求没有发出去，其他响应码都是实例返回的，都算一次延迟采样
+            if (response.status() == SpecialHttpStatus.CIRCUIT_BREAKER_ON.getValue()) {
+                concurrencyLimit.onIgnore();
+            } else {
+                concurrencyLimit.onSuccess(nanos);
+            }
+        }
+        if (response.status() == HttpStatus.OK.value()) {
+            telemetry.recordSuccess(nanos);
+        } else if (response.status() == SpecialHttpStatus.CIRCUIT_BREAKER_ON.getValue()) {
+            telemetry.recordCircuitBreakerOpen();
+        } else {
+            telemetry.recordFailure(nanos);
+        }
+        logSampled(request, instanceHandle, response.status(), nanos);
+        return response;
+    }
+
+    /**
+     * 和 CircuitBreaker.decorateSupplier 一样，但是对冲输了被取消的请求只释放许可，不记录为失败
+     */
+    private static Supplier<Response> decorateCircuitBreaker(CircuitBreaker circuitBreaker, HedgeCancellation cancellation, Supplier<Response> supplier) {
+        return () -> {
+            circuitBreaker.acquirePermission();
+            long start = System.nanoTime();
+            try {
+                Response response = supplier.get();
+                circuitBreaker.onResult(System.nanoTime() - start, TimeUnit.NANOSECONDS, response);
+                return response;
+            } catch (Exception e) {
+                if (isCancelled(cancellation)) {
+                    circuitBreaker.releasePermission();
+                } else {
+                    circuitBreaker.onError(System.nanoTime() - start, TimeUnit.NANOSECONDS, e);
+                }
+                throw e;
+            }
+        };
+    }
+
+    private static boolean isCancelled(HedgeCancellation cancellation) {
+        return cancellation != null && cancellation.isCancelled();
+    }
+
+    /**
+     * 按照 feign.execution.debug-log-sample-rate 采样打印调用详情，只有 debug 开启并且被采样到才会读取各种统计
+     */
+    private void logSampled(Request request, FeignInstanceHandle instanceHandle, int status, long nanos) {
+        if (!log.isDebugEnabled()) {
+            return;
+        }
+        double sampleRate = feignExecutionProperties.getDebugLogSampleRate();
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        CircuitBreaker circuitBreaker = instanceHandle.getCircuitBreaker();
+        log.debug("call url: {} -> {}, status: {}, cost: {}ms, mode: {}, bulkhead remaining: {}, circuit breaker: {}, failure rate: {}",
+                request.httpMethod(),
+                request.url(),
+                status,
+                TimeUnit.NANOSECONDS.toMillis(nanos),
+                instanceHandle.getExecutionMode(),
+                instanceHandle.getThreadPoolBulkhead() != null ?
+                        instanceHandle.getThreadPoolBulkhead().getMetrics().getRemainingQueueCapacity() :
+                        instanceHandle.getBulkhead().getMetrics().getAvailableConcurrentCalls(),
+                circuitBreaker.getState(),
+                circuitBreaker.getMetrics().getFailureRate()
         );
+    }
 
+    private Response executeInThreadPool(ThreadPoolBulkhead threadPoolBulkhead, Supplier<Response> supplier, Request request) {
+        Supplier<CompletionStage<Response>> completionStageSupplier = ThreadPoolBulkhead.decorateSupplier(threadPoolBulkhead, supplier);
         try {
             return Try.ofSupplier(completionStageSupplier).get().toCompletableFuture().join();
         } catch (CompletionException e) {
             //内部抛出的所有异常都被封装了一层 CompletionException，所以这里需要取出里面的 Exception
-            Throwable cause = e.getCause();
-            //如果是我们抛出的 ResponseWrapperException，检查是否是因为 Response 不为 200 需要抛出的，这种情况需要返回对应的 Response
-            //这样就可以走 Feign 的机制，防止某些 Feign 的机制失效例如 ErrorDecoder 等
-            if (cause instanceof ResponseWrapperException) {
-                ResponseWrapperException responseWrapperException = (ResponseWrapperException) cause;
-                if (responseWrapperException.getResponse() != null) {
-                    return (Response) responseWrapperException.getResponse();
-                }
+            return handleFailure(e.getCause(), request);
+        }
+    }
+
+    private Response executeInCurrentThread(Bulkhead bulkhead, Supplier<Response> supplier, Request request) {
+        //和线程池满了一样，获取不到许可直接抛出 BulkheadFullException
+        bulkhead.acquirePermission();
+        try {
+            return supplier.get();
+        } catch (RuntimeException e) {
+            return handleFailure(e, request);
+        } finally {
+            bulkhead.onComplete();
+        }
+    }
+
+    private Response executeInVirtualThread(Bulkhead bulkhead, Supplier<Response> supplier, Request request) {
+        bulkhead.acquirePermission();
+        try {
+            return CompletableFuture.supplyAsync(supplier, VirtualThreads.executor()).join();
+        } catch (CompletionException e) {
+            return handleFailure(e.getCause(), request);
+        } finally {
+            bulkhead.onComplete();
+        }
+    }
+
+    private Response handleFailure(Throwable cause, Request request) {
+        //如果是我们抛出的 ResponseWrapperException，检查是否是因为 Response 不为 200 需要抛出的，这种情况需要返回对应的 Response
+        //这样就可以走 Feign 的机制，防止某些 Feign 的机制失效例如 ErrorDecoder 等
+        if (cause instanceof ResponseWrapperException) {
+            ResponseWrapperException responseWrapperException = (ResponseWrapperException) cause;
+            if (responseWrapperException.getResponse() != null) {
+                return (Response) responseWrapperException.getResponse();
             }
-            if (cause instanceof CallNotPermittedException) {
-                return Response.builder()
-                        .request(request)
-                        .status(SpecialHttpStatus.CIRCUIT_BREAKER_ON.getValue())
-                        .reason(cause.getLocalizedMessage())
-                        .requestTemplate(request.requestTemplate()).build();
+        }
+        if (cause instanceof CallNotPermittedException) {
+            return Response.builder()
+                    .request(request)
+                    .status(SpecialHttpStatus.CIRCUIT_BREAKER_ON.getValue())
+                    .reason(cause.getLocalizedMessage())
+                    .requestTemplate(request.requestTemplate()).build();
+        }
+        throw new ResponseWrapperException(cause.getMessage(), cause);
+    }
+
+    /**
+     * 获取这次调用的方法在这个实例上面的 Bulkhead 与断路器
+     * 只有第一次调用某个方法或者第一次调用某个实例的时候，才会反射读取注解，解析 URL 以及拼接 id 去 registry 里面获取
+     */
+    FeignInstanceHandle getInstanceHandle(Request request) throws MalformedURLException {
+        FeignMethodDescriptor methodDescriptor = getMethodDescriptor(request.requestTemplate().methodMetadata());
+        String hostAndPort = OpenfeignUtil.getHostAndPort(request.url());
+        FeignInstanceHandle instanceHandle = methodDescriptor.getInstanceHandle(hostAndPort);
+        if (instanceHandle == null) {
+            instanceHandle = createInstanceHandle(methodDescriptor, hostAndPort, request);
+            methodDescriptor.putInstanceHandle(hostAndPort, instanceHandle);
+        }
+        return instanceHandle;
+    }
+
+    private FeignMethodDescriptor getMethodDescriptor(MethodMetadata methodMetadata) {
+        FeignMethodDescriptor methodDescriptor = methodDescriptors.get(methodMetadata);
+        if (methodDescriptor == null) {
+            methodDescriptor = methodDescriptors.computeIfAbsent(methodMetadata, FeignMethodDescriptor::new);
+        }
+        return methodDescriptor;
+    }
+
+    private FeignInstanceHandle createInstanceHandle(FeignMethodDescriptor methodDescriptor, String hostAndPort, Request request) throws MalformedURLException {
+        String contextId = methodDescriptor.getContextId();
+        //获取实例唯一id
+        String serviceInstanceId = getServiceInstanceId(contextId, request);
+        //获取实例+方法唯一id
+        String serviceInstanceMethodId = getServiceInstanceMethodId(methodDescriptor, request);
+
+        FeignExecutionMode executionMode = feignExecutionProperties.getMode(contextId);
+        if (executionMode == FeignExecutionMode.VIRTUAL_THREAD && !VirtualThreads.isSupported()) {
+            log.warn("{} is configured with {}, but current jdk does not support virtual thread, fallback to {}",
+                    contextId, FeignExecutionMode.VIRTUAL_THREAD, FeignExecutionMode.SEMAPHORE);
+            executionMode = FeignExecutionMode.SEMAPHORE;
+        }
+        ThreadPoolBulkhead threadPoolBulkhead = null;
+        Bulkhead bulkhead = null;
+        CircuitBreaker circuitBreaker;
+        if (executionMode == FeignExecutionMode.THREAD_POOL) {
+            try {
+                //每个实例一个线程池
+                threadPoolBulkhead = threadPoolBulkheadRegistry.bulkhead(serviceInstanceId, contextId);
+            } catch (ConfigurationNotFoundException e) {
+                threadPoolBulkhead = threadPoolBulkheadRegistry.bulkhead(serviceInstanceId);
+            }
+        } else {
+            try {
+                //每个实例一个信号量，限制对于这个实例的并发
+                bulkhead = bulkheadRegistry.bulkhead(serviceInstanceId, contextId);
+            } catch (ConfigurationNotFoundException e) {
+                bulkhead = bulkheadRegistry.bulkhead(serviceInstanceId);
             }
-            throw new ResponseWrapperException(cause.getMessage(), cause);
         }
+        try {
+            //每个服务实例具体方法一个resilience4j熔断记录器，在服务实例具体方法维度做熔断，所有这个服务的实例具体方法共享这个服务的resilience4j熔断配置
+            circuitBreaker = circuitBreakerRegistry.circuitBreaker(serviceInstanceMethodId, contextId);
+        } catch (ConfigurationNotFoundException e) {
+            circuitBreaker = circuitBreakerRegistry.circuitBreaker(serviceInstanceMethodId);
+        }
+        AdaptiveConcurrencyLimit concurrencyLimit = adaptiveConcurrencyLimitRegistry != null ?
+                adaptiveConcurrencyLimitRegistry.getLimit(contextId, hostAndPort) : null;
+        FeignCallTelemetry telemetry = new FeignCallTelemetry(
+                meterRegistry, contextId, hostAndPort, methodDescriptor.getConfigKey(),
+                threadPoolBulkhead, bulkhead, circuitBreaker
+        );
+        return new FeignInstanceHandle(
+                executionMode, threadPoolBulkhead, bulkhead, circuitBreaker, telemetry,
+                instanceLoadStatsRegistry.get(hostAndPort), concurrencyLimit
+        );
     }
 
     private String getServiceInstanceId(String contextId, Request request) throws MalformedURLException {
@@ -130,10 +381,9 @@ public class Resilience4jFeignClient implements Client {
         return contextId + ":" + url.getHost() + ":" + url.getPort();
     }
 
-    private String getServiceInstanceMethodId(Request request) throws MalformedURLException {
+    private String getServiceInstanceMethodId(FeignMethodDescriptor methodDescriptor, Request request) throws MalformedURLException {
         URL url = new URL(request.url());
         //通过微服务名称 + 实例 + 方法的方式，获取唯一id
-        String methodName = request.requestTemplate().methodMetadata().method().toGenericString();
-        return url.getHost() + ":" + url.getPort() + ":" + methodName;
+        return url.getHost() + ":" + url.getPort() + ":" + methodDescriptor.getMethodId();
     }
 }
@@ -0,0 +1,185 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 当前线程正在执行的 Feign 调用是第几次尝试（0 为第一次，之后每次重试 +1），以及已经尝试过的实例
+ * 由 RetryAttemptFeignDecorator 在 resilience4j Retry 里面设置，Feign 调用在调用线程上面重试，负载均衡选择实例也在调用线程上面，所以用 ThreadLocal 传递
+ * 负载均衡器可以根据每次调用随机的起始位置 + 尝试次数计算实例位置，或者排除已经尝试过的实例，不用为每个 trace 保存状态
+ */
+public class RetryAttemptContext {
+    //没有在 Feign 调用中的时候为 NONE
+    private static final int NONE = -1;
+    private static final ThreadLocal<RetryAttemptContext> CONTEXT = ThreadLocal.withInitial(RetryAttemptContext::new);
+
+    private int attempt = NONE;
+    //每次 Feign 调用开始的时候随机，同一个 trace 里面多次调用同一个微服务也会分散到不同的实例
+    private int startOffset;
+    //每个线程一个，每次 Feign 调用开始的时候清空，不会每次调用都创建
+    private final List<String> ownTriedInstances = new ArrayList<>(4);
+    //一般就是 ownTriedInstances，对冲请求的线程上面是主请求与对冲请求共用的列表
+    private List<String> triedInstances = ownTriedInstances;
+    //上一次尝试失败的异常，重试预算用完的时候抛出
+    private Throwable lastFailure;
+    //重试预算已经用完，DefaultRetryOnExceptionPredicate 不再重试
+    private boolean retryBudgetExhausted;
+
+    /**
+     * 开始一次 Feign 调用（包含所有重试）
+     * @return 外层 Feign 调用的状态，用于 {@link #end(Previous)} 恢复，Feign 调用嵌套（例如 fallback 里面又调用 Feign）结束之后恢复外层的尝试次数以及尝试过的实例；
+     * 没有嵌套的时候返回 null，不分配对象
+     */
+    static Previous begin() {
+        RetryAttemptContext context = CONTEXT.get();
+        Previous previous = null;
+        if (context.attempt == NONE) {
+            context.triedInstances = context.ownTriedInstances;
+            context.triedInstances.clear();
+        } else {
+            previous = new Previous(context);
+            //外层的列表还要用，嵌套调用用一个新的
+            context.triedInstances = new ArrayList<>(4);
+        }
+        context.attempt = NONE;
+        context.startOffset = ThreadLocalRandom.current().nextInt();
+        context.lastFailure = null;
+        context.retryBudgetExhausted = false;
+        return previous;
+    }
+
+    /**
+     * 每次实际调用（包括重试）之前调用
+     * @return 这次是第几次尝试
+     */
+    static int nextAttempt() {
+        return ++CONTEXT.get().attempt;
+    }
+
+    static void end(Previous previous) {
+        RetryAttemptContext context = CONTEXT.get();
+        if (previous == null) {
+            context.attempt = NONE;
+            context.triedInstances = context.ownTriedInstances;
+            context.triedInstances.clear();
+            context.lastFailure = null;
+            context.retryBudgetExhausted = false;
+        } else {
+            previous.restore(context);
+        }
+    }
+
+    /**
+     * 对冲请求在其他线程上面发出，把调用线程的尝试次数带过去，负载均衡器才能选到不同的实例
+     * @param triedInstances 主请求与对冲请求共用，需要是线程安全的
+     */
+    static void attach(int attempt, int startOffset, List<String> triedInstances) {
+        RetryAttemptContext context = CONTEXT.get();
+        context.attempt = attempt;
+        context.startOffset = startOffset;
+        context.triedInstances = triedInstances;
+    }
+
+    /**
+     * 对冲请求的线程执行完之后调用，线程池里面的线程之后还会执行别的请求
+     */
+    static void detach() {
+        RetryAttemptContext context = CONTEXT.get();
+        context.attempt = NONE;
+        context.triedInstances = context.ownTriedInstances;
+    }
+
+    /**
+     * 对冲请求结束之后在调用线程上面调用，之后的重试继续往后选，并且排除对冲请求已经尝试过的实例
+     */
+    static void advance(int attempt, List<String> triedInstances) {
+        RetryAttemptContext context = CONTEXT.get();
+        if (context.attempt == NONE) {
+            return;
+        }
+        context.attempt = Math.max(context.attempt, attempt);
+        //Collections.synchronizedList 遍历需要自己加锁
+        synchronized (triedInstances) {
+            for (String triedInstance : triedInstances) {
+                if (!context.triedInstances.contains(triedInstance)) {
+                    context.triedInstances.add(triedInstance);
+                }
+            }
+        }
+    }
+
+    static void setLastFailure(Throwable lastFailure) {
+        CONTEXT.get().lastFailure = lastFailure;
+    }
+
+    /**
+     * 标记重试预算已经用完
+     * @return 上一次尝试失败的异常，这样调用方拿到的和重试次数用完的时候一样
+     */
+    static Throwable retryBudgetExhausted() {
+        RetryAttemptContext context = CONTEXT.get();
+        context.retryBudgetExhausted = true;
+        return context.lastFailure != null ? context.lastFailure : new RetryBudgetExhaustedException();
+    }
+
+    /**
+     * @return 当前 Feign 调用的重试预算是否已经用完
+     */
+    public static boolean isRetryBudgetExhausted() {
+        return CONTEXT.get().retryBudgetExhausted;
+    }
+
+    /**
+     * @return 当前是第几次尝试，不在 Feign 调用中的时候返回 0
+     */
+    public static int current() {
+        int attempt = CONTEXT.get().attempt;
+        return attempt == NONE ? 0 : attempt;
+    }
+
+    /**
+     * @return 这次 Feign 调用随机的起始位置，负载均衡器用它加上尝试次数计算实例位置；不在 Feign 调用中的时候每次随机
+     */
+    public static int startOffset() {
+        RetryAttemptContext context = CONTEXT.get();
+        return context.attempt == NONE ? ThreadLocalRandom.current().nextInt() : context.startOffset;
+    }
+
+    /**
+     * 这次 Feign 调用已经尝试过的实例（host:port），负载均衡器选择实例之后加入
+     * 需要在调用线程获取，获取之后可以在其他线程使用（调用线程会等待负载均衡结果）
+     * @return 不在 Feign 调用中的时候返回 null
+     */
+    public static List<String> triedInstances() {
+        RetryAttemptContext context = CONTEXT.get();
+        return context.attempt == NONE ? null : context.triedInstances;
+    }
+
+    /**
+     * 嵌套 Feign 调用开始之前外层调用的状态
+     */
+    static final class Previous {
+        private final int attempt;
+        private final int startOffset;
+        private final List<String> triedInstances;
+        private final Throwable lastFailure;
+        private final boolean retryBudgetExhausted;
+
+        private Previous(RetryAttemptContext context) {
+            this.attempt = context.attempt;
+            this.startOffset = context.startOffset;
+            this.triedInstances = context.triedInstances;
+            this.lastFailure = context.lastFailure;
+            this.retryBudgetExhausted = context.retryBudgetExhausted;
+        }
+
+        private void restore(RetryAttemptContext context) {
+            context.attempt = attempt;
+            context.startOffset = startOffset;
+            context.triedInstances = triedInstances;
+            context.lastFailure = lastFailure;
+            context.retryBudgetExhausted = retryBudgetExhausted;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import feign.InvocationHandlerFactory;
+import feign.Target;
+import io.github.resilience4j.feign.FeignDecorator;
+import io.github.resilience4j.feign.FeignDecorators;
+import io.vavr.CheckedFunction1;
+
+import java.lang.reflect.Method;
+
+/**
+ * 包装 FeignDecorators，在 Retry 外层开始计数，在 Retry 里面每次实际调用的时候 +1，写入 {@link RetryAttemptContext}
+ * 同时在 Retry 里面检查重试预算（{@link RetryBudget}），预算用完的时候不再实际调用，直接抛出上一次的异常并且不再重试
+ * FeignDecorators.Builder 没有提供添加自定义 FeignDecorator 的方法，所以只能在外面包装
+ */
+public class RetryAttemptFeignDecorator implements FeignDecorator {
+    private final FeignDecorators feignDecorators;
+    //可以为 null，为 null 的时候不限制重试
+    private final RetryBudget retryBudget;
+
+    public RetryAttemptFeignDecorator(FeignDecorators feignDecorators) {
+        this(feignDecorators, null);
+    }
+
+    public RetryAttemptFeignDecorator(FeignDecorators feignDecorators, RetryBudget retryBudget) {
+        this.feignDecorators = feignDecorators;
+        this.retryBudget = retryBudget;
+    }
+
+    @Override
+    public CheckedFunction1<Object[], Object> decorate(
+            CheckedFunction1<Object[], Object> invocationCall,
+            Method method,
+            InvocationHandlerFactory.MethodHandler methodHandler,
+            Target<?> target
+    ) {
+        CheckedFunction1<Object[], Object> counted = args -> {
+            int attempt = RetryAttemptContext.nextAttempt();
+            if (retryBudget == null) {
+                return invocationCall.apply(args);
+            }
+            if (attempt > 0 && !retryBudget.tryAcquire()) {
+                throw RetryAttemptContext.retryBudgetExhausted();
+            }
+            try {
+                Object result = invocationCall.apply(args);
+                retryBudget.onSuccess();
+                return result;
+            } catch (Throwable e) {
+                RetryAttemptContext.setLastFailure(e);
+                throw e;
+            }
+        };
+        CheckedFunction1<Object[], Object> decorated = feignDecorators.decorate(counted, method, methodHandler, target);
+        return args -> {
+            RetryAttemptContext.Previous previous = RetryAttemptContext.begin();
+            try {
+                return decorated.apply(args);
+            } finally {
+                RetryAttemptContext.end(previous);
+            }
+        };
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 某个微服务（contextId）的重试预算，令牌桶实现
+ * 每次成功调用存入 depositRatio 个令牌，每次重试取出一个令牌，取不到就不再重试
+ * 下游出问题的时候成功调用变少，令牌很快用完，重试就不会把下游的压力放大几倍
+ */
+public class RetryBudget {
+    public static final String TOKENS = "feign.retry.budget.tokens";
+    public static final String RETRIES = "feign.retry.budget.retries";
+
+    //令牌放大 1000 倍保存，这样存入小数个令牌也可以用整数 CAS
+    private static final long SCALE = 1000;
+
+    private final long maxTokens;
+    private final long deposit;
+    private final AtomicLong tokens;
+    //可以为 null，为 null 的时候不统计
+    private final Counter permitted;
+    private final Counter rejected;
+
+    public RetryBudget(double depositRatio, int maxTokens) {
+        this(depositRatio, maxTokens, null, null);
+    }
+
+    public RetryBudget(double depositRatio, int maxTokens, MeterRegistry meterRegistry, String contextId) {
+        this.maxTokens = maxTokens * SCALE;
+        this.deposit = (long) (depositRatio * SCALE);
+        this.tokens = new AtomicLong(this.maxTokens);
+        if (meterRegistry != null) {
+            Tags tags = Tags.of("contextId", contextId);
+            Gauge.builder(TOKENS, this, RetryBudget::getTokens).tags(tags).register(meterRegistry);
+            this.permitted = Counter.builder(RETRIES).tags(tags).tag("result", "permitted").register(meterRegistry);
+            this.rejected = Counter.builder(RETRIES).tags(tags).tag("result", "rejected").register(meterRegistry);
+        } else {
+            this.permitted = null;
+            this.rejected = null;
+        }
+    }
+
+    /**
+     * 成功调用之后存入令牌，令牌满了（正常情况）的时候不写
+     */
+    public void onSuccess() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current >= maxTokens) {
+                return;
+            }
+        } while (!tokens.compareAndSet(current, Math.min(maxTokens, current + deposit)));
+    }
+
+    /**
+     * 重试之前取出一个令牌
+     * @return 是否可以重试
+     */
+    public boolean tryAcquire() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < SCALE) {
+                if (rejected != null) {
+                    rejected.increment();
+                }
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - SCALE));
+        if (permitted != null) {
+            permitted.increment();
+        }
+        return true;
+    }
+
+    public double getTokens() {
+        return (double) tokens.get() / SCALE;
+    }
+}
@@ -0,0 +1,10 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+/**
+ * 重试预算用完，并且没有上一次失败的异常可以抛出（例如根据返回结果重试）的时候抛出
+ */
+public class RetryBudgetExhaustedException extends RuntimeException {
+    public RetryBudgetExhaustedException() {
+        super("retry budget exhausted", null, false, false);
+    }
+}
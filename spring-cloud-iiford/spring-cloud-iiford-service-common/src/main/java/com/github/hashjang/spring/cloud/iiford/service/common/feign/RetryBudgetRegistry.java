@@ -0,0 +1,34 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.config.RetryBudgetProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 每个 contextId 一个 RetryBudget，同一个 contextId 的所有 FeignClient 共用
+ */
+public class RetryBudgetRegistry {
+    private final RetryBudgetProperties properties;
+    //可以为 null
+    private final MeterRegistry meterRegistry;
+    private final Map<String, RetryBudget> retryBudgets = new ConcurrentHashMap<>();
+
+    public RetryBudgetRegistry(RetryBudgetProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * @return 没有启用的时候返回 null
+     */
+    public RetryBudget getRetryBudget(String contextId) {
+        RetryBudgetProperties.Config config = properties.getConfig(contextId);
+        if (!config.isEnabled()) {
+            return null;
+        }
+        return retryBudgets.computeIfAbsent(contextId,
+                k -> new RetryBudget(config.getDepositRatio(), config.getMaxTokens(), meterRegistry, contextId));
+    }
+}
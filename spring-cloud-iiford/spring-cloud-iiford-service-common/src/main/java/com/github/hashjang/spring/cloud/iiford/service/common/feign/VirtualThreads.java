@@ -0,0 +1,35 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 我们是基于 JDK 11 编译的，所以只能通过反射创建虚拟线程的 Executor
+ * 运行在 JDK 21 及以上才会有，否则为 null
+ */
+@Log4j2
+public class VirtualThreads {
+    private static final ExecutorService EXECUTOR = createExecutor();
+
+    private static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            log.info("virtual thread is not supported in current jdk: {}", System.getProperty("java.version"));
+            return null;
+        }
+    }
+
+    public static boolean isSupported() {
+        return EXECUTOR != null;
+    }
+
+    /**
+     * 每个任务一个虚拟线程的 Executor，不支持的时候返回 null
+     */
+    public static ExecutorService executor() {
+        return EXECUTOR;
+    }
+}
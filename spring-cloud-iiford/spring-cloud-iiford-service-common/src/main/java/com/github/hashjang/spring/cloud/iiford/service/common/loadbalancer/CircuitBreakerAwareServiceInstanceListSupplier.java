@@ -0,0 +1,66 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer;
+
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.loadbalancer.core.DelegatingServiceInstanceListSupplier;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 过滤掉有断路器处于打开状态的实例，避免选到这种实例之后直接失败（CIRCUIT_BREAKER_ON）浪费一次重试
+ * 断路器是实例 + 方法维度的，这里只要这个实例有一个方法的断路器打开就会过滤掉，所有实例都被过滤掉的时候返回所有实例
+ * 放在最外层，这样断路器状态变化立刻生效，不受实例列表缓存影响
+ */
+public class CircuitBreakerAwareServiceInstanceListSupplier extends DelegatingServiceInstanceListSupplier {
+    private final OpenCircuitBreakerInstances openCircuitBreakerInstances;
+    //上次过滤的结果，实例列表与断路器状态都没变的时候返回同一个 List，负载均衡器就不用重新排序
+    private volatile Filtered filtered;
+
+    public CircuitBreakerAwareServiceInstanceListSupplier(ServiceInstanceListSupplier delegate, OpenCircuitBreakerInstances openCircuitBreakerInstances) {
+        super(delegate);
+        this.openCircuitBreakerInstances = openCircuitBreakerInstances;
+    }
+
+    @Override
+    public Flux<List<ServiceInstance>> get() {
+        return getDelegate().get().map(this::filteredByCircuitBreaker);
+    }
+
+    List<ServiceInstance> filteredByCircuitBreaker(List<ServiceInstance> serviceInstances) {
+        //绝大部分时间没有打开的断路器，直接返回
+        if (openCircuitBreakerInstances.isEmpty()) {
+            return serviceInstances;
+        }
+        long version = openCircuitBreakerInstances.getVersion();
+        Filtered current = this.filtered;
+        if (current != null && current.source == serviceInstances && current.version == version) {
+            return current.result;
+        }
+        List<ServiceInstance> result = new ArrayList<>(serviceInstances.size());
+        for (ServiceInstance serviceInstance : serviceInstances) {
+            if (!openCircuitBreakerInstances.isOpen(serviceInstance.getHost() + ":" + serviceInstance.getPort())) {
+                result.add(serviceInstance);
+            }
+        }
+        if (result.isEmpty() || result.size() == serviceInstances.size()) {
+            //全部打开的时候与全部没打开的时候，都返回原始列表
+            result = serviceInstances;
+        }
+        this.filtered = new Filtered(serviceInstances, version, result);
+        return result;
+    }
+
+    private static final class Filtered {
+        private final List<ServiceInstance> source;
+        private final long version;
+        private final List<ServiceInstance> result;
+
+        private Filtered(List<ServiceInstance> source, long version, List<ServiceInstance> result) {
+            this.source = source;
+            this.version = version;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer;
+
+import com.netflix.discovery.CacheRefreshedEvent;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.EurekaEvent;
+import com.netflix.discovery.EurekaEventListener;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 由 Eureka Client 本地缓存刷新事件（CacheRefreshedEvent）驱动的实例列表，替代 CachingServiceInstanceListSupplier 按照 ttl 轮询 DiscoveryClient
+ * 只有实例列表真的变化的时候才发布新的 List，没变化的时候一直返回同一个 List 对象，下游按照对象标识的缓存（zone 过滤，排序）都能命中
+ * 实例下线之后，Eureka Client 下一次拉取到就会立刻生效，不用再等缓存过期
+ */
+@Log4j2
+public class EurekaEventServiceInstanceListSupplier implements ServiceInstanceListSupplier, EurekaEventListener, DisposableBean {
+    private final String serviceId;
+    private final DiscoveryClient discoveryClient;
+    private final EurekaClient eurekaClient;
+    //只保留最新的一个实例列表，新的订阅者立刻拿到
+    private final Sinks.Many<List<ServiceInstance>> sink = Sinks.many().replay().latest();
+    private volatile List<ServiceInstance> current;
+
+    public EurekaEventServiceInstanceListSupplier(String serviceId, DiscoveryClient discoveryClient, EurekaClient eurekaClient) {
+        this.serviceId = serviceId;
+        this.discoveryClient = discoveryClient;
+        this.eurekaClient = eurekaClient;
+        refresh();
+        eurekaClient.registerEventListener(this);
+    }
+
+    @Override
+    public String getServiceId() {
+        return serviceId;
+    }
+
+    @Override
+    public Flux<List<ServiceInstance>> get() {
+        return sink.asFlux();
+    }
+
+    @Override
+    public void onEvent(EurekaEvent event) {
+        if (event instanceof CacheRefreshedEvent) {
+            refresh();
+        }
+    }
+
+    /**
+     * 从 DiscoveryClient 读取实例列表（Eureka 读取的是本地缓存），和当前的列表比较，有变化才发布
+     */
+    synchronized void refresh() {
+        List<ServiceInstance> latest;
+        try {
+            latest = discoveryClient.getInstances(serviceId);
+        } catch (Throwable e) {
+            //读取失败保留原来的列表
+            log.warn("refresh instances of {} failed: {}", serviceId, e.getMessage());
+            return;
+        }
+        if (current != null && sameInstances(current, latest)) {
+            return;
+        }
+        current = List.copyOf(latest);
+        log.info("instances of {} changed, now: {}", serviceId, current.size());
+        Sinks.EmitResult emitResult = sink.tryEmitNext(current);
+        if (emitResult.isFailure()) {
+            log.warn("emit instances of {} failed: {}", serviceId, emitResult);
+        }
+    }
+
+    /**
+     * Eureka 每次返回的实例顺序可能不一样，所以按照 instanceId 比较，同时比较地址与 metadata（zone 在 metadata 里面）
+     */
+    static boolean sameInstances(List<ServiceInstance> current, List<ServiceInstance> latest) {
+        if (current.size() != latest.size()) {
+            return false;
+        }
+        Map<String, ServiceInstance> byId = new HashMap<>(current.size() * 2);
+        for (ServiceInstance serviceInstance : current) {
+            byId.put(serviceInstance.getInstanceId(), serviceInstance);
+        }
+        for (ServiceInstance serviceInstance : latest) {
+            ServiceInstance old = byId.get(serviceInstance.getInstanceId());
+            if (old == null
+                    || !Objects.equals(old.getHost(), serviceInstance.getHost())
+                    || old.getPort() != serviceInstance.getPort()
+                    || !Objects.equals(old.getMetadata(), serviceInstance.getMetadata())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void destroy() {
+        eurekaClient.unregisterEventListener(this);
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer;
+
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 记录哪些实例（host:port）有处于打开状态的断路器，通过断路器的状态变化事件维护，负载均衡的时候不用遍历 CircuitBreakerRegistry
+ * Resilience4jFeignClient 的断路器名称为 host:port:方法，取前两段作为实例
+ */
+@Log4j2
+public class OpenCircuitBreakerInstances {
+    //实例 -> 处于打开状态的断路器个数，没有打开的断路器的实例不在这里面
+    private final Map<String, AtomicInteger> openCounts = new ConcurrentHashMap<>();
+    //每次有变化 +1，用于 CircuitBreakerAwareServiceInstanceListSupplier 判断是否需要重新过滤
+    private final AtomicLong version = new AtomicLong();
+
+    public OpenCircuitBreakerInstances(CircuitBreakerRegistry circuitBreakerRegistry) {
+        circuitBreakerRegistry.getEventPublisher()
+                .onEntryAdded(event -> register(event.getAddedEntry()))
+                .onEntryRemoved(event -> {
+                    if (isOpen(event.getRemovedEntry().getState())) {
+                        onClose(event.getRemovedEntry().getName());
+                    }
+                });
+        //事件监听注册之前已经创建的断路器
+        circuitBreakerRegistry.getAllCircuitBreakers().forEach(this::register);
+    }
+
+    private void register(CircuitBreaker circuitBreaker) {
+        circuitBreaker.getEventPublisher().onStateTransition(event -> {
+            boolean wasOpen = isOpen(event.getStateTransition().getFromState());
+            boolean nowOpen = isOpen(event.getStateTransition().getToState());
+            if (!wasOpen && nowOpen) {
+                onOpen(event.getCircuitBreakerName());
+            } else if (wasOpen && !nowOpen) {
+                onClose(event.getCircuitBreakerName());
+            }
+        });
+        if (isOpen(circuitBreaker.getState())) {
+            onOpen(circuitBreaker.getName());
+        }
+    }
+
+    private static boolean isOpen(CircuitBreaker.State state) {
+        return state == CircuitBreaker.State.OPEN || state == CircuitBreaker.State.FORCED_OPEN;
+    }
+
+    private void onOpen(String circuitBreakerName) {
+        String instance = getInstance(circuitBreakerName);
+        if (instance == null) {
+            return;
+        }
+        openCounts.computeIfAbsent(instance, k -> new AtomicInteger()).incrementAndGet();
+        version.incrementAndGet();
+        log.info("circuit breaker {} is open, instance {} will be skipped by load balancer", circuitBreakerName, instance);
+    }
+
+    private void onClose(String circuitBreakerName) {
+        String instance = getInstance(circuitBreakerName);
+        if (instance == null) {
+            return;
+        }
+        openCounts.computeIfPresent(instance, (k, count) -> count.decrementAndGet() <= 0 ? null : count);
+        version.incrementAndGet();
+    }
+
+    /**
+     * 断路器名称的前两段 host:port，不是这个格式的断路器（例如不是实例维度的）返回 null
+     */
+    static String getInstance(String circuitBreakerName) {
+        int first = circuitBreakerName.indexOf(':');
+        if (first < 0) {
+            return null;
+        }
+        int second = circuitBreakerName.indexOf(':', first + 1);
+        return second < 0 ? circuitBreakerName : circuitBreakerName.substring(0, second);
+    }
+
+    public boolean isEmpty() {
+        return openCounts.isEmpty();
+    }
+
+    public boolean isOpen(String hostAndPort) {
+        return openCounts.containsKey(hostAndPort);
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.feign.RetryAttemptContext;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.loadbalancer.DefaultResponse;
+import org.springframework.cloud.client.loadbalancer.EmptyResponse;
+import org.springframework.cloud.client.loadbalancer.Request;
+import org.springframework.cloud.client.loadbalancer.Response;
+import org.springframework.cloud.loadbalancer.core.ReactorServiceInstanceLoadBalancer;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 基于 peak-EWMA 响应时间与正在处理的请求数的负载均衡，通过 spring.cloud.loadbalancer.peak-ewma.enabled=true 启用
+ * 随机选两个实例（power of two choices），选代价（{@link InstanceLoadStats#cost(long)}）小的那个
+ * 某个实例变慢的时候，在断路器打开之前就会少分配请求
+ * 同一个 Feign 调用重试的时候，排除已经尝试过的实例（{@link RetryAttemptContext#triedInstances()}），所有实例都尝试过之后才会重复
+ */
+@Log4j2
+public class PeakEwmaLoadBalancer implements ReactorServiceInstanceLoadBalancer {
+    private final ServiceInstanceListSupplier serviceInstanceListSupplier;
+    private final String serviceId;
+    private final InstanceLoadStatsRegistry instanceLoadStatsRegistry;
+    private volatile Snapshot snapshot;
+
+    public PeakEwmaLoadBalancer(ServiceInstanceListSupplier serviceInstanceListSupplier, String serviceId, InstanceLoadStatsRegistry instanceLoadStatsRegistry) {
+        this.serviceInstanceListSupplier = serviceInstanceListSupplier;
+        this.serviceId = serviceId;
+        this.instanceLoadStatsRegistry = instanceLoadStatsRegistry;
+    }
+
+    @Override
+    public Mono<Response<ServiceInstance>> choose(Request request) {
+        //在调用线程获取，缓存过期的时候 serviceInstanceListSupplier 可能在其他线程返回
+        List<String> triedInstances = RetryAttemptContext.triedInstances();
+        return serviceInstanceListSupplier.get().next().map(serviceInstances -> getInstanceResponse(serviceInstances, triedInstances));
+    }
+
+    private Response<ServiceInstance> getInstanceResponse(List<ServiceInstance> serviceInstances, List<String> triedInstances) {
+        if (serviceInstances.isEmpty()) {
+            log.warn("No servers available for service: " + this.serviceId);
+            return new EmptyResponse();
+        }
+        Snapshot current = getSnapshot(serviceInstances);
+        int chosen = choose(current, triedInstances);
+        if (triedInstances != null) {
+            triedInstances.add(current.hostAndPorts[chosen]);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("choose {}, inflight: {}, ewma: {}ns, instances count: {}", current.hostAndPorts[chosen],
+                    current.stats[chosen].getInflight(), (long) current.stats[chosen].getEwmaNanos(), serviceInstances.size());
+        }
+        return new DefaultResponse(current.instances[chosen]);
+    }
+
+    int choose(Snapshot current, List<String> triedInstances) {
+        int count = current.instances.length;
+        int[] candidates = null;
+        int candidateCount = count;
+        if (triedInstances != null && !triedInstances.isEmpty()) {
+            //只有重试的时候才需要排除，这时候才创建数组
+            candidates = new int[count];
+            candidateCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (!triedInstances.contains(current.hostAndPorts[i])) {
+                    candidates[candidateCount++] = i;
+                }
+            }
+            //所有实例都尝试过了，重新从所有实例里面选
+            if (candidateCount == 0) {
+                candidates = null;
+                candidateCount = count;
+            }
+        }
+        if (candidateCount == 1) {
+            return candidates == null ? 0 : candidates[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(candidateCount);
+        int b = random.nextInt(candidateCount - 1);
+        if (b >= a) {
+            b++;
+        }
+        if (candidates != null) {
+            a = candidates[a];
+            b = candidates[b];
+        }
+        long now = System.nanoTime();
+        return current.stats[a].cost(now) <= current.stats[b].cost(now) ? a : b;
+    }
+
+    /**
+     * 和 RoundRobinWithRequestSeparatedPositionLoadBalancer 一样，只有实例列表变了才重新创建，这里不需要排序
+     */
+    Snapshot getSnapshot(List<ServiceInstance> serviceInstances) {
+        Snapshot current = this.snapshot;
+        if (current != null && current.source == serviceInstances) {
+            return current;
+        }
+        current = new Snapshot(serviceInstances, instanceLoadStatsRegistry);
+        this.snapshot = current;
+        return current;
+    }
+
+    /**
+     * 实例以及对应的 host:port 与负载统计，不可变
+     */
+    static final class Snapshot {
+        private final List<ServiceInstance> source;
+        private final ServiceInstance[] instances;
+        private final String[] hostAndPorts;
+        private final InstanceLoadStats[] stats;
+
+        Snapshot(List<ServiceInstance> source, InstanceLoadStatsRegistry instanceLoadStatsRegistry) {
+            this.source = source;
+            this.instances = source.toArray(new ServiceInstance[0]);
+            this.hostAndPorts = new String[instances.length];
+            this.stats = new InstanceLoadStats[instances.length];
+            for (int i = 0; i < instances.length; i++) {
+                hostAndPorts[i] = instances[i].getHost() + ":" + instances[i].getPort();
+                stats[i] = instanceLoadStatsRegistry.get(hostAndPorts[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer;
+
+/**
+ * RoundRobinWithRequestSeparatedPositionLoadBalancer 计算实例位置的方式，通过 spring.cloud.loadbalancer.position-strategy 配置
+ * 两种方式都保证同一个请求（同一个 traceId）重试的时候，不会重试到同一个实例（实例个数大于重试次数的时候）
+ */
+public enum PositionStrategy {
+    /**
+     * 每个 traceId 缓存一个 AtomicInteger，每次选择 +1，缓存 1 分钟
+     * 请求量大的时候缓存的 traceId 很多，占用内存并且淘汰有开销
+     */
+    TRACE_CACHE,
+    /**
+     * 位置 = 每次 Feign 调用随机的起始位置 + 当前是第几次尝试（RetryAttemptContext），不需要为每个 traceId 保存状态
+     * 同一个 trace 里面多次调用同一个微服务，每次调用的起始位置不同，不会都落到同一个实例
+     * 只有通过 Feign 调用的时候才能拿到尝试次数与起始位置，否则每次随机
+     */
+    TRACE_HASH,
+    ;
+}
@@ -5,6 +5,7 @@ import brave.Tracer;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.hashjang.spring.cloud.iiford.service.common.feign.RetryAttemptContext;
 import lombok.extern.log4j.Log4j2;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.cache.CacheManager;
@@ -17,13 +18,13 @@ import org.springframework.cloud.loadbalancer.core.ReactorServiceInstanceLoadBal
 import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
 import reactor.core.publisher.Mono;
 
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
 
 //一定必须是实现ReactorServiceInstanceLoadBalancer
 //而不是ReactorLoadBalancer<ServiceInstance>
@@ -33,50 +34,103 @@ public class RoundRobinWithRequestSeparatedPositionLoadBalancer implements React
     private final ServiceInstanceListSupplier serviceInstanceListSupplier;
     //每次请求算上重试不会超过1分钟
     //对于超过1分钟的，这种请求肯定比较重，不应该重试
-    private final LoadingCache<Long, AtomicInteger> positionCache = Caffeine.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES)
-            //随机初始值，防止每次都是从第一个开始调用
-            .build(k -> new AtomicInteger(ThreadLocalRandom.current().nextInt(0, 1000)));
+    //只有 TRACE_CACHE 策略才会创建
+    private final LoadingCache<Long, AtomicInteger> positionCache;
     private final String serviceId;
     private final Tracer tracer;
+    private final PositionStrategy positionStrategy;
+    private volatile SortedInstances sortedInstances;
 
 
     public RoundRobinWithRequestSeparatedPositionLoadBalancer(ServiceInstanceListSupplier serviceInstanceListSupplier, String serviceId, Tracer tracer) {
+        this(serviceInstanceListSupplier, serviceId, tracer, PositionStrategy.TRACE_CACHE);
+    }
+
+    public RoundRobinWithRequestSeparatedPositionLoadBalancer(ServiceInstanceListSupplier serviceInstanceListSupplier, String serviceId, Tracer tracer, PositionStrategy positionStrategy) {
         this.serviceInstanceListSupplier = serviceInstanceListSupplier;
         this.serviceId = serviceId;
         this.tracer = tracer;
+        this.positionStrategy = positionStrategy;
+        this.positionCache = positionStrategy == PositionStrategy.TRACE_CACHE ?
+                Caffeine.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES)
+                        //随机初始值，防止每次都是从第一个开始调用
+                        .build(k -> new AtomicInteger(ThreadLocalRandom.current().nextInt(0, 1000))) : null;
     }
 
     @Override
     public Mono<Response<ServiceInstance>> choose(Request request) {
-        return serviceInstanceListSupplier.get().next().map(serviceInstances -> getInstanceResponse(serviceInstances));
+        //在调用线程获取 span 以及重试次数，缓存过期的时候 serviceInstanceListSupplier 可能在其他线程返回
+        Span span = tracer.currentSpan();
+        int attempt = RetryAttemptContext.current();
+        int startOffset = RetryAttemptContext.startOffset();
+        return serviceInstanceListSupplier.get().next().map(serviceInstances -> getInstanceResponse(serviceInstances, span, attempt, startOffset));
     }
 
-    private Response<ServiceInstance> getInstanceResponse(List<ServiceInstance> serviceInstances) {
+    private Response<ServiceInstance> getInstanceResponse(List<ServiceInstance> serviceInstances, Span span, int attempt, int startOffset) {
         if (serviceInstances.isEmpty()) {
             log.warn("No servers available for service: " + this.serviceId);
             return new EmptyResponse();
         }
-        return getInstanceResponseByRoundRobin(serviceInstances);
+        return getInstanceResponseByRoundRobin(getSortedInstances(serviceInstances), span, attempt, startOffset);
     }
 
-    private Response<ServiceInstance> getInstanceResponseByRoundRobin(List<ServiceInstance> serviceInstances) {
-        if (serviceInstances.isEmpty()) {
-            log.warn("No servers available for service: " + this.serviceId);
-            return new EmptyResponse();
+    /**
+     * 实例返回列表顺序可能不同，为了保持一致，需要排序之后再取
+     * 只有 serviceInstanceListSupplier 返回的列表变了（CachingServiceInstanceListSupplier 缓存过期重新拉取）才重新排序
+     * 缓存没过期的时候返回的是同一个 List 对象，直接用上次排好序的数组
+     */
+    ServiceInstance[] getSortedInstances(List<ServiceInstance> serviceInstances) {
+        SortedInstances current = this.sortedInstances;
+        if (current != null && current.source == serviceInstances) {
+            return current.instances;
         }
+        ServiceInstance[] instances = serviceInstances.toArray(new ServiceInstance[0]);
+        Arrays.sort(instances, Comparator.comparing(ServiceInstance::getInstanceId));
+        //并发的时候可能多个线程都重新排序，结果是一样的，谁最后写入都没关系
+        this.sortedInstances = new SortedInstances(serviceInstances, instances);
+        return instances;
+    }
+
+    private Response<ServiceInstance> getInstanceResponseByRoundRobin(ServiceInstance[] serviceInstances, Span currentSpan, int attempt, int startOffset) {
         //为了解决原始算法不同调用并发可能导致一个请求重试相同的实例
-        Span currentSpan = tracer.currentSpan();
-        if (currentSpan == null) {
-            currentSpan = tracer.newTrace();
+        long key;
+        if (positionStrategy == PositionStrategy.TRACE_HASH) {
+            //每次 Feign 调用随机的起始位置，同一个 trace 里面多次调用同一个微服务不会都落到同一个实例
+            key = startOffset;
+        } else if (currentSpan != null) {
+            key = currentSpan.context().traceId();
+        } else {
+            key = tracer.newTrace().context().traceId();
+        }
+        int pos = position(key, attempt, serviceInstances.length);
+        if (log.isDebugEnabled()) {
+            log.debug("position {}, key: {}, attempt: {}, instances count: {}", pos, key, attempt, serviceInstances.length);
+        }
+        return new DefaultResponse(serviceInstances[pos]);
+    }
+
+    /**
+     * @param key TRACE_CACHE 为 traceId，TRACE_HASH 为这次 Feign 调用随机的起始位置
+     */
+    int position(long key, int attempt, int instanceCount) {
+        if (positionStrategy == PositionStrategy.TRACE_HASH) {
+            //起始位置本身就是随机的，每次重试位置 +1
+            return Math.floorMod(Long.hashCode(key) + attempt, instanceCount);
+        }
+        AtomicInteger seed = positionCache.get(key);
+        return Math.floorMod(seed.getAndIncrement(), instanceCount);
+    }
+
+    /**
+     * serviceInstanceListSupplier 返回的列表以及对应的排好序的实例，不可变
+     */
+    private static final class SortedInstances {
+        private final List<ServiceInstance> source;
+        private final ServiceInstance[] instances;
+
+        private SortedInstances(List<ServiceInstance> source, ServiceInstance[] instances) {
+            this.source = source;
+            this.instances = instances;
         }
-        long l = currentSpan.context().traceId();
-        AtomicInteger seed = positionCache.get(l);
-        int s = seed.getAndIncrement();
-        int pos = s % serviceInstances.size();
-        log.info("position {}, seed: {}, instances count: {}", pos, s, serviceInstances.size());
-        return new DefaultResponse(serviceInstances.stream()
-                //实例返回列表顺序可能不同，为了保持一致，先排序再取
-                .sorted(Comparator.comparing(ServiceInstance::getInstanceId))
-                .collect(Collectors.toList()).get(pos));
     }
 }
@@ -1,5 +1,7 @@
 package com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.cloud.client.ServiceInstance;
 import org.springframework.cloud.loadbalancer.config.LoadBalancerZoneConfig;
 import org.springframework.cloud.loadbalancer.core.DelegatingServiceInstanceListSupplier;
@@ -7,24 +9,47 @@ import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
 import reactor.core.publisher.Flux;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 /**
  * 只返回与当前实例同一个 Zone 的服务实例，不同 zone 之间的服务不互相调用
+ * 过滤结果按照上游 List 的对象标识缓存，上游（CachingServiceInstanceListSupplier）缓存命中返回同一个 List 的时候，直接返回上次过滤的结果，不再分配内存
  */
 public class SameZoneOnlyServiceInstanceListSupplier extends DelegatingServiceInstanceListSupplier {
+    public static final String ZONE_FILTER = "loadbalancer.zone.filter";
 
-    private final String ZONE = "zone";
+    private static final String ZONE = "zone";
 
     private final LoadBalancerZoneConfig zoneConfig;
 
     private String zone;
 
+    //上次过滤的上游 List 与结果
+    private volatile Filtered filtered;
+
+    //可以为 null，为 null 的时候不统计
+    private final Counter hit;
+    private final Counter miss;
+
     public SameZoneOnlyServiceInstanceListSupplier(ServiceInstanceListSupplier delegate,
                                                    LoadBalancerZoneConfig zoneConfig) {
+        this(delegate, zoneConfig, null);
+    }
+
+    public SameZoneOnlyServiceInstanceListSupplier(ServiceInstanceListSupplier delegate,
+                                                   LoadBalancerZoneConfig zoneConfig,
+                                                   MeterRegistry meterRegistry) {
         super(delegate);
         this.zoneConfig = zoneConfig;
+        if (meterRegistry != null) {
+            this.hit = Counter.builder(ZONE_FILTER).tag("serviceId", delegate.getServiceId()).tag("result", "hit").register(meterRegistry);
+            this.miss = Counter.builder(ZONE_FILTER).tag("serviceId", delegate.getServiceId()).tag("result", "miss").register(meterRegistry);
+        } else {
+            this.hit = null;
+            this.miss = null;
+        }
     }
 
     @Override
@@ -32,7 +57,23 @@ public class SameZoneOnlyServiceInstanceListSupplier extends DelegatingServiceIn
         return getDelegate().get().map(this::filteredByZone);
     }
 
-    private List<ServiceInstance> filteredByZone(List<ServiceInstance> serviceInstances) {
+    List<ServiceInstance> filteredByZone(List<ServiceInstance> serviceInstances) {
+        Filtered current = this.filtered;
+        if (current != null && current.source == serviceInstances) {
+            if (hit != null) {
+                hit.increment();
+            }
+            return current.result;
+        }
+        if (miss != null) {
+            miss.increment();
+        }
+        List<ServiceInstance> result = filter(serviceInstances);
+        this.filtered = new Filtered(serviceInstances, result);
+        return result;
+    }
+
+    private List<ServiceInstance> filter(List<ServiceInstance> serviceInstances) {
         if (zone == null) {
             zone = zoneConfig.getZone();
         }
@@ -45,7 +86,8 @@ public class SameZoneOnlyServiceInstanceListSupplier extends DelegatingServiceIn
                 }
             }
             if (filteredInstances.size() > 0) {
-                return filteredInstances;
+                //结果会被多次返回，不能被修改
+                return Collections.unmodifiableList(filteredInstances);
             }
         }
         /**
@@ -63,4 +105,13 @@ public class SameZoneOnlyServiceInstanceListSupplier extends DelegatingServiceIn
         return null;
     }
 
+    private static final class Filtered {
+        private final List<ServiceInstance> source;
+        private final List<ServiceInstance> result;
+
+        private Filtered(List<ServiceInstance> source, List<ServiceInstance> result) {
+            this.source = source;
+            this.result = result;
+        }
+    }
 }
@@ -0,0 +1,71 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.misc;
+
+/**
+ * 调用方通过请求头告诉被调用方还剩多少时间（毫秒），被调用方收到的时候换算成本地的截止时间
+ * 传的是剩余时间而不是绝对时间，不同机器的时钟不一致也没关系，和 gRPC 的 grpc-timeout 一样
+ * 收到的截止时间由 RequestDeadlineFilter 放在当前线程，Feign 调用的时候再根据剩余时间设置请求头、限制超时、判断是否还值得重试
+ */
+public class RequestDeadline {
+    public static final String HEADER = "X-Request-Timeout";
+    /**
+     * AdmissionControl 在 IO 线程收到请求时计算的截止时间（System.nanoTime()），放在 ServletRequest 的这个属性里面，这样排队的时间也算进去
+     */
+    public static final String ATTRIBUTE = RequestDeadline.class.getName() + ".deadlineNanos";
+    /**
+     * 剩余时间少于这个，连建立连接都不一定够，不再重试
+     */
+    public static final long MIN_ATTEMPT_MILLIS = 20;
+
+    private static final ThreadLocal<Long> DEADLINE_NANOS = new ThreadLocal<>();
+
+    /**
+     * @return 请求头没有或者格式不对的时候返回 -1
+     */
+    public static long parseRemainingMillis(String header) {
+        if (header == null || header.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(header.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param deadlineNanos System.nanoTime() 的截止时间，null 为没有截止时间
+     * @return 之前的值，用于 {@link #restore(Long)}
+     */
+    public static Long set(Long deadlineNanos) {
+        Long previous = DEADLINE_NANOS.get();
+        DEADLINE_NANOS.set(deadlineNanos);
+        return previous;
+    }
+
+    public static void restore(Long previous) {
+        if (previous == null) {
+            DEADLINE_NANOS.remove();
+        } else {
+            DEADLINE_NANOS.set(previous);
+        }
+    }
+
+    /**
+     * @return 当前线程的请求还剩多少毫秒，已经过期返回 0，没有截止时间返回 -1
+     */
+    public static long remainingMillis() {
+        Long deadline = DEADLINE_NANOS.get();
+        if (deadline == null) {
+            return -1;
+        }
+        return Math.max(0, (deadline - System.nanoTime()) / 1_000_000);
+    }
+
+    /**
+     * @return 有截止时间并且剩下的时间不够再尝试一次
+     */
+    public static boolean isTooLateToRetry() {
+        long remaining = remainingMillis();
+        return remaining >= 0 && remaining < MIN_ATTEMPT_MILLIS;
+    }
+}
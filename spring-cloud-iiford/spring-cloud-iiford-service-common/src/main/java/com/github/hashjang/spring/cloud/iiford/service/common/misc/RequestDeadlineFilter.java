@@ -0,0 +1,36 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.misc;
+
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * 把调用方传过来的截止时间放到当前线程，请求处理完清除
+ * 开启了 AdmissionControl 的时候使用它在 IO 线程计算的截止时间，否则从这里收到请求的时间开始算
+ */
+public class RequestDeadlineFilter extends OncePerRequestFilter {
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        Long deadlineNanos = (Long) request.getAttribute(RequestDeadline.ATTRIBUTE);
+        if (deadlineNanos == null) {
+            long remainingMillis = RequestDeadline.parseRemainingMillis(request.getHeader(RequestDeadline.HEADER));
+            if (remainingMillis >= 0) {
+                deadlineNanos = System.nanoTime() + remainingMillis * 1_000_000;
+            }
+        }
+        if (deadlineNanos == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        Long previous = RequestDeadline.set(deadlineNanos);
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            RequestDeadline.restore(previous);
+        }
+    }
+}
@@ -8,6 +8,10 @@ public enum SpecialHttpStatus {
      * 断路器打开
      */
     CIRCUIT_BREAKER_ON(581),
+    /**
+     * 超过实例的自适应并发限制，请求没有发出去
+     */
+    CONCURRENCY_LIMITED(582),
     ;
     private int value;
 
@@ -0,0 +1,134 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.undertow;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.feign.AdaptiveConcurrencyLimit;
+import com.github.hashjang.spring.cloud.iiford.service.common.misc.RequestDeadline;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.undertow.server.HandlerWrapper;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.servlet.handlers.ServletRequestContext;
+import io.undertow.util.AttachmentKey;
+import io.undertow.util.StatusCodes;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Undertow 服务端的过载保护，过载的时候请求在 worker 线程池里面排队，排到的时候调用方可能早就超时了，处理这种请求只是浪费
+ * 分两段：
+ * 1. {@link #arrivalWrapper()} 在 IO 线程上面，记录收到请求的时间，根据调用方传过来的 {@link RequestDeadline#HEADER} 计算本地截止时间，
+ *    已经过期的请求直接返回 503，超过自适应并发限制的也直接返回 503，都不占用 worker 线程
+ * 2. {@link #dispatchedWrapper()} 在 worker 线程上面，排队时间超过 maxQueueWait 或者已经过了截止时间，返回 503，不进入 Controller
+ */
+@Log4j2
+public class AdmissionControl {
+    public static final String REJECTED = "undertow.admission.rejected";
+    public static final String LIMIT = "undertow.admission.concurrency.limit";
+
+    private static final AttachmentKey<Long> ARRIVAL_NANOS = AttachmentKey.create(Long.class);
+    //没有截止时间请求头的时候没有
+    private static final AttachmentKey<Long> DEADLINE_NANOS = AttachmentKey.create(Long.class);
+    private static final AttachmentKey<Boolean> REJECTED_BY_ADMISSION = AttachmentKey.create(Boolean.class);
+
+    private final long maxQueueWaitNanos;
+    //没有开启的时候为 null
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+    //meterRegistry 为 null 的时候为 null
+    private final Counter deadlineExpired;
+    private final Counter queueTimeout;
+    private final Counter concurrencyLimited;
+
+    public AdmissionControl(AdmissionControlProperties properties, MeterRegistry meterRegistry) {
+        this.maxQueueWaitNanos = properties.getMaxQueueWait().toNanos();
+        this.concurrencyLimit = properties.getConcurrency().isEnabled() ? new AdaptiveConcurrencyLimit(properties.getConcurrency()) : null;
+        if (meterRegistry != null) {
+            this.deadlineExpired = Counter.builder(REJECTED).tag("reason", "deadline_expired").register(meterRegistry);
+            this.queueTimeout = Counter.builder(REJECTED).tag("reason", "queue_timeout").register(meterRegistry);
+            this.concurrencyLimited = Counter.builder(REJECTED).tag("reason", "concurrency_limited").register(meterRegistry);
+            if (concurrencyLimit != null) {
+                Gauge.builder(LIMIT, concurrencyLimit, AdaptiveConcurrencyLimit::getLimit).register(meterRegistry);
+            }
+        } else {
+            this.deadlineExpired = null;
+            this.queueTimeout = null;
+            this.concurrencyLimited = null;
+        }
+    }
+
+    /**
+     * 加到 DeploymentInfo 的 InitialHandlerChainWrapper，在 ServletInitialHandler 把请求分发到 worker 线程之前执行
+     */
+    public HandlerWrapper arrivalWrapper() {
+        return next -> exchange -> onArrival(exchange, next);
+    }
+
+    /**
+     * 加到 DeploymentInfo 的 OuterHandlerChainWrapper，在 worker 线程上面执行
+     */
+    public HandlerWrapper dispatchedWrapper() {
+        return next -> exchange -> onDispatched(exchange, next);
+    }
+
+    void onArrival(HttpServerExchange exchange, HttpHandler next) throws Exception {
+        long arrival = System.nanoTime();
+        exchange.putAttachment(ARRIVAL_NANOS, arrival);
+        long remainingMillis = RequestDeadline.parseRemainingMillis(exchange.getRequestHeaders().getFirst(RequestDeadline.HEADER));
+        if (remainingMillis == 0) {
+            reject(exchange, "deadline expired", deadlineExpired);
+            return;
+        }
+        if (remainingMillis > 0) {
+            exchange.putAttachment(DEADLINE_NANOS, arrival + remainingMillis * 1_000_000);
+        }
+        if (concurrencyLimit != null) {
+            if (!concurrencyLimit.tryAcquire()) {
+                reject(exchange, "concurrency limited", concurrencyLimited);
+                return;
+            }
+            exchange.addExchangeCompleteListener((completed, nextListener) -> {
+                //被 onDispatched 拒绝的不算一次延迟采样
+                if (completed.getAttachment(REJECTED_BY_ADMISSION) != null) {
+                    concurrencyLimit.onIgnore();
+                } else {
+                    concurrencyLimit.onSuccess(System.nanoTime() - arrival);
+                }
+                nextListener.proceed();
+            });
+        }
+        next.handleRequest(exchange);
+    }
+
+    void onDispatched(HttpServerExchange exchange, HttpHandler next) throws Exception {
+        Long arrival = exchange.getAttachment(ARRIVAL_NANOS);
+        if (arrival != null) {
+            long now = System.nanoTime();
+            Long deadline = exchange.getAttachment(DEADLINE_NANOS);
+            if (deadline != null && now >= deadline) {
+                reject(exchange, "deadline expired", deadlineExpired);
+                return;
+            }
+            if (now - arrival > maxQueueWaitNanos) {
+                reject(exchange, "queue timeout", queueTimeout);
+                return;
+            }
+            //交给 RequestDeadlineFilter，这样排队的时间也算进去
+            ServletRequestContext servletRequestContext = exchange.getAttachment(ServletRequestContext.ATTACHMENT_KEY);
+            if (deadline != null && servletRequestContext != null) {
+                servletRequestContext.getServletRequest().setAttribute(RequestDeadline.ATTRIBUTE, deadline);
+            }
+        }
+        next.handleRequest(exchange);
+    }
+
+    private void reject(HttpServerExchange exchange, String reason, Counter counter) {
+        if (counter != null) {
+            counter.increment();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("reject {} {}, reason: {}", exchange.getRequestMethod(), exchange.getRequestURI(), reason);
+        }
+        exchange.putAttachment(REJECTED_BY_ADMISSION, Boolean.TRUE);
+        exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+        exchange.endExchange();
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.undertow;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.config.AdaptiveConcurrencyProperties;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Undertow 服务端的过载保护配置，默认关闭
+ * server.undertow.admission.enabled=true
+ * server.undertow.admission.max-queue-wait=500ms
+ * server.undertow.admission.concurrency.enabled=true
+ */
+@Data
+@ConfigurationProperties(prefix = "server.undertow.admission")
+public class AdmissionControlProperties {
+    private boolean enabled = false;
+    /**
+     * 请求在 worker 线程池里面排队超过这个时间，调用方大概率已经超时了，直接返回 503
+     */
+    private Duration maxQueueWait = Duration.ofMillis(500);
+    /**
+     * 服务端的自适应并发限制，和 Feign 调用实例的一样是 Gradient 算法，延迟为请求从 IO 线程收到到响应结束的时间，默认关闭
+     */
+    private AdaptiveConcurrencyProperties.Config concurrency = new AdaptiveConcurrencyProperties.Config();
+}
@@ -5,14 +5,22 @@ import io.undertow.attribute.ResponseTimeAttribute;
 import org.apache.commons.lang.StringUtils;
 import org.springframework.boot.autoconfigure.web.ServerProperties;
 import org.springframework.boot.web.embedded.undertow.ConfigurableUndertowWebServerFactory;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
 import org.springframework.boot.web.server.WebServerFactoryCustomizer;
 
 public class DefaultWebServerFactoryCustomizer implements WebServerFactoryCustomizer<ConfigurableUndertowWebServerFactory> {
 
     private final ServerProperties serverProperties;
+    //没有开启过载保护的时候为 null
+    private final AdmissionControl admissionControl;
 
     public DefaultWebServerFactoryCustomizer(ServerProperties serverProperties) {
+        this(serverProperties, null);
+    }
+
+    public DefaultWebServerFactoryCustomizer(ServerProperties serverProperties, AdmissionControl admissionControl) {
         this.serverProperties = serverProperties;
+        this.admissionControl = admissionControl;
     }
 
     @Override
@@ -22,6 +30,12 @@ public class DefaultWebServerFactoryCustomizer implements WebServerFactoryCustom
         if (logRequestProcessingTiming(pattern)) {
             factory.addBuilderCustomizers(builder -> builder.setServerOption(UndertowOptions.RECORD_REQUEST_START_TIME, true));
         }
+        //Servlet 才有 DeploymentInfo，分发到 worker 线程之前与之后各加一个 Handler
+        if (admissionControl != null && factory instanceof UndertowServletWebServerFactory) {
+            ((UndertowServletWebServerFactory) factory).addDeploymentInfoCustomizers(deploymentInfo -> deploymentInfo
+                    .addInitialHandlerChainWrapper(admissionControl.arrivalWrapper())
+                    .addOuterHandlerChainWrapper(admissionControl.dispatchedWrapper()));
+        }
     }
 
     private boolean logRequestProcessingTiming(String pattern) {
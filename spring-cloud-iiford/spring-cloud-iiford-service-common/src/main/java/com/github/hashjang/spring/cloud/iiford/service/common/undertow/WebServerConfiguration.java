@@ -1,15 +1,37 @@
 package com.github.hashjang.spring.cloud.iiford.service.common.undertow;
 
+import com.github.hashjang.spring.cloud.iiford.service.common.misc.RequestDeadlineFilter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.web.ServerProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.web.embedded.undertow.ConfigurableUndertowWebServerFactory;
 import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
 
 @Configuration(proxyBeanMethods = false)
+@EnableConfigurationProperties(AdmissionControlProperties.class)
 public class WebServerConfiguration {
     @Bean
-    public WebServerFactoryCustomizer<ConfigurableUndertowWebServerFactory> undertowWebServerAccessLogTimingEnabler(ServerProperties serverProperties) {
-        return new DefaultWebServerFactoryCustomizer(serverProperties);
+    public WebServerFactoryCustomizer<ConfigurableUndertowWebServerFactory> undertowWebServerAccessLogTimingEnabler(
+            ServerProperties serverProperties,
+            AdmissionControlProperties admissionControlProperties,
+            ObjectProvider<MeterRegistry> meterRegistry
+    ) {
+        return new DefaultWebServerFactoryCustomizer(serverProperties, admissionControlProperties.isEnabled() ?
+                new AdmissionControl(admissionControlProperties, meterRegistry.getIfAvailable()) : null);
+    }
+
+    /**
+     * 调用方传过来的截止时间放到当前线程，Feign 调用的时候继续往下传，最先执行
+     */
+    @Bean
+    public FilterRegistrationBean<RequestDeadlineFilter> requestDeadlineFilter() {
+        FilterRegistrationBean<RequestDeadlineFilter> registrationBean = new FilterRegistrationBean<>(new RequestDeadlineFilter());
+        registrationBean.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        return registrationBean;
     }
 }
@@ -0,0 +1,77 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.config.AdaptiveConcurrencyProperties;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimitTest {
+    private AdaptiveConcurrencyLimit newLimit() {
+        AdaptiveConcurrencyProperties.Config config = new AdaptiveConcurrencyProperties.Config();
+        config.setInitialLimit(10);
+        config.setMinLimit(2);
+        config.setMaxLimit(100);
+        return new AdaptiveConcurrencyLimit(config);
+    }
+
+    /**
+     * 模拟 concurrency 个并发一直在调用，每次调用的延迟为 rttNanos
+     */
+    private void run(AdaptiveConcurrencyLimit limit, int concurrency, long rttNanos, int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            int acquired = 0;
+            while (acquired < concurrency && limit.tryAcquire()) {
+                acquired++;
+            }
+            for (int j = 0; j < acquired; j++) {
+                limit.onSuccess(rttNanos);
+            }
+        }
+    }
+
+    @Test
+    public void testRejectWhenLimitReached() {
+        AdaptiveConcurrencyLimit limit = newLimit();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(limit.tryAcquire());
+        }
+        Assert.assertFalse(limit.tryAcquire());
+        limit.onIgnore();
+        Assert.assertTrue(limit.tryAcquire());
+    }
+
+    /**
+     * 延迟稳定的时候限制增加，实例排队延迟变大之后限制减小
+     */
+    @Test
+    public void testLimitFollowsRtt() {
+        AdaptiveConcurrencyLimit limit = newLimit();
+        run(limit, 100, 10_000_000, 50);
+        int grown = limit.getLimit();
+        Assert.assertTrue(grown > 10);
+        //延迟变成 4 倍
+        run(limit, 100, 40_000_000, 3);
+        Assert.assertTrue(limit.getLimit() < grown);
+        Assert.assertEquals(0, limit.getInflight());
+    }
+
+    /**
+     * 并发用不到一半的时候不增加
+     */
+    @Test
+    public void testNotGrowWhenUnderused() {
+        AdaptiveConcurrencyLimit limit = newLimit();
+        run(limit, 2, 10_000_000, 100);
+        Assert.assertEquals(10, limit.getLimit());
+    }
+
+    @Test
+    public void testBackoffOnDropped() {
+        AdaptiveConcurrencyLimit limit = newLimit();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(limit.tryAcquire());
+            limit.onDropped();
+        }
+        Assert.assertEquals(2, limit.getLimit());
+        Assert.assertEquals(0, limit.getInflight());
+    }
+}
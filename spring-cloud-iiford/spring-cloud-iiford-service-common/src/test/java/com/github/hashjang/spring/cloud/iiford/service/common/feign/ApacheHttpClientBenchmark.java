@@ -0,0 +1,139 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import com.sun.net.httpserver.HttpServer;
+import feign.Request;
+import feign.Response;
+import feign.Util;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.HttpClients;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比 1KB、1MB、50MB 的 body 在 ApacheHttpClient 中的内存分配
+ * 请求：原来的 new String + StringEntity（两份额外拷贝）与现在直接包装字节数组
+ * 响应：直接读取连接上的流与先读成字节数组（byte[]/String 返回类型的 Decoder 就是这样）
+ * 直接运行 main 方法，带上 GCProfiler 可以看到每次调用分配的内存（gc.alloc.rate.norm）
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApacheHttpClientBenchmark {
+    @Param({"1024", "1048576", "52428800"})
+    private int bodySize;
+
+    private final Request.Options options = new Request.Options(1, TimeUnit.SECONDS, 10, TimeUnit.SECONDS, true);
+    private final byte[] readBuffer = new byte[8192];
+    private HttpServer httpServer;
+    private ApacheHttpClient apacheHttpClient;
+    private Request postRequest;
+    private Request getRequest;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'a');
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+        httpServer.createContext("/download", exchange -> {
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        httpServer.start();
+        String baseUrl = "http://127.0.0.1:" + httpServer.getAddress().getPort();
+        apacheHttpClient = new ApacheHttpClient(HttpClients.createDefault());
+        postRequest = Request.create(Request.HttpMethod.POST, baseUrl + "/upload",
+                Map.of("Content-Type", List.of("application/json")), body, StandardCharsets.UTF_8, null);
+        getRequest = Request.create(Request.HttpMethod.GET, baseUrl + "/download",
+                Map.of(), null, StandardCharsets.UTF_8, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        httpServer.stop(0);
+    }
+
+    /**
+     * 原来的方式：new String 再由 StringEntity 编码，再写出
+     */
+    @Benchmark
+    public long legacyRequestEntity() throws IOException {
+        HttpEntity entity = new StringEntity(
+                new String(postRequest.body(), postRequest.charset()),
+                ContentType.APPLICATION_JSON.withCharset(postRequest.charset())
+        );
+        entity.writeTo(OutputStream.nullOutputStream());
+        return entity.getContentLength();
+    }
+
+    @Benchmark
+    public long streamingRequestEntity() throws Exception {
+        HttpEntity entity = ((HttpEntityEnclosingRequestBase) apacheHttpClient.toHttpUriRequest(postRequest, options)).getEntity();
+        entity.writeTo(OutputStream.nullOutputStream());
+        return entity.getContentLength();
+    }
+
+    /**
+     * 先把响应读成字节数组
+     */
+    @Benchmark
+    public int bufferedResponse() throws IOException {
+        try (Response response = apacheHttpClient.execute(getRequest, options)) {
+            return Util.toByteArray(response.body().asInputStream()).length;
+        }
+    }
+
+    /**
+     * 直接读取连接上的流
+     */
+    @Benchmark
+    public long streamingResponse() throws IOException {
+        long total = 0;
+        try (Response response = apacheHttpClient.execute(getRequest, options)) {
+            InputStream inputStream = response.body().asInputStream();
+            int read;
+            while ((read = inputStream.read(readBuffer)) != -1) {
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(ApacheHttpClientBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
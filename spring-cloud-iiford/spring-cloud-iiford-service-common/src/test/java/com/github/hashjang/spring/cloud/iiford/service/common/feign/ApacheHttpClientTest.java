@@ -0,0 +1,147 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import feign.Request;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.util.EntityUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class ApacheHttpClientTest {
+    private final ApacheHttpClient apacheHttpClient = new ApacheHttpClient();
+    private final Request.Options options = new Request.Options(1, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, true);
+
+    /**
+     * 请求 body 原样发送，没有 Content-Type 的时候也不会重新编码
+     */
+    @Test
+    public void testRequestBodyNotReEncoded() throws Exception {
+        byte[] body = "{\"name\":\"中文\"}".getBytes(StandardCharsets.UTF_8);
+        Request request = Request.create(Request.HttpMethod.POST, "http://127.0.0.1:8080/test", Map.of(), body, StandardCharsets.UTF_8, null);
+        HttpEntity entity = ((HttpEntityEnclosingRequestBase) apacheHttpClient.toHttpUriRequest(request, options)).getEntity();
+        Assert.assertArrayEquals(body, EntityUtils.toByteArray(entity));
+
+        request = Request.create(Request.HttpMethod.POST, "http://127.0.0.1:8080/test",
+                Map.of("Content-Type", List.of("application/json")), body, StandardCharsets.UTF_8, null);
+        entity = ((HttpEntityEnclosingRequestBase) apacheHttpClient.toHttpUriRequest(request, options)).getEntity();
+        Assert.assertArrayEquals(body, EntityUtils.toByteArray(entity));
+        Assert.assertEquals("application/json; charset=UTF-8", entity.getContentType().getValue());
+    }
+
+    /**
+     * 没有 body 的请求共用同一个空 entity
+     */
+    @Test
+    public void testEmptyBodyShared() throws Exception {
+        Request request = Request.create(Request.HttpMethod.GET, "http://127.0.0.1:8080/test", Map.of(), null, StandardCharsets.UTF_8, null);
+        HttpEntity entity1 = ((HttpEntityEnclosingRequestBase) apacheHttpClient.toHttpUriRequest(request, options)).getEntity();
+        HttpEntity entity2 = ((HttpEntityEnclosingRequestBase) apacheHttpClient.toHttpUriRequest(request, options)).getEntity();
+        Assert.assertSame(entity1, entity2);
+        Assert.assertEquals(0, entity1.getContentLength());
+    }
+
+    /**
+     * 剩余内容少的时候读完，多的时候不读完
+     */
+    @Test
+    public void testDrain() throws Exception {
+        Assert.assertTrue(ApacheHttpClient.drain(null));
+        Assert.assertTrue(ApacheHttpClient.drain(new ByteArrayInputStream(new byte[0])));
+        Assert.assertTrue(ApacheHttpClient.drain(new ByteArrayInputStream(new byte[ApacheHttpClient.DRAIN_LIMIT])));
+        ByteArrayInputStream large = new ByteArrayInputStream(new byte[ApacheHttpClient.DRAIN_LIMIT * 4]);
+        Assert.assertFalse(ApacheHttpClient.drain(large));
+        Assert.assertTrue(large.available() > 0);
+    }
+
+    /**
+     * 连接失败与读取失败的阶段
+     */
+    @Test
+    public void testFailurePhase() throws Exception {
+        Request.Options options = new Request.Options(1, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, true);
+        int closedPort;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            closedPort = serverSocket.getLocalPort();
+        }
+        Request request = Request.create(Request.HttpMethod.POST, "http://127.0.0.1:" + closedPort + "/test", Map.of(), null, StandardCharsets.UTF_8, null);
+        try {
+            apacheHttpClient.execute(request, options);
+            Assert.fail();
+        } catch (PhasedIOException e) {
+            Assert.assertEquals(FailurePhase.CONNECT, e.getPhase());
+        }
+
+        //读取请求之后不返回任何响应直接关闭连接
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread server = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try (Socket socket = serverSocket.accept()) {
+                        socket.getInputStream().read(new byte[1024]);
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            server.setDaemon(true);
+            server.start();
+            request = Request.create(Request.HttpMethod.POST, "http://127.0.0.1:" + serverSocket.getLocalPort() + "/test", Map.of(), null, StandardCharsets.UTF_8, null);
+            try {
+                apacheHttpClient.execute(request, options);
+                Assert.fail();
+            } catch (PhasedIOException e) {
+                Assert.assertEquals(FailurePhase.READ, e.getPhase());
+            }
+        }
+    }
+
+    /**
+     * 对冲输了被取消的时候，阻塞读马上返回，不用等到读取超时
+     */
+    @Test
+    public void testHedgeCancellationAbortsRequest() throws Exception {
+        Request.Options options = new Request.Options(1, TimeUnit.SECONDS, 10, TimeUnit.SECONDS, true);
+        //读取请求之后一直不返回
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread server = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    socket.getInputStream().read(new byte[1024]);
+                    Thread.sleep(10_000);
+                } catch (IOException | InterruptedException e) {
+                    //ignore
+                }
+            });
+            server.setDaemon(true);
+            server.start();
+            Request request = Request.create(Request.HttpMethod.GET, "http://127.0.0.1:" + serverSocket.getLocalPort() + "/test", Map.of(), null, StandardCharsets.UTF_8, null);
+            HedgeCancellation cancellation = new HedgeCancellation();
+            Thread canceller = new Thread(() -> {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                cancellation.cancel();
+            });
+            canceller.start();
+            long start = System.nanoTime();
+            HedgeCancellation previous = HedgeCancellation.set(cancellation);
+            try {
+                apacheHttpClient.execute(request, options);
+                Assert.fail();
+            } catch (IOException e) {
+                Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            } finally {
+                HedgeCancellation.restore(previous);
+            }
+        }
+    }
+}
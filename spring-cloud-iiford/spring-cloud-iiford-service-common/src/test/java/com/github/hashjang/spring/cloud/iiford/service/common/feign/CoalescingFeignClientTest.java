@@ -0,0 +1,198 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.misc.SpecialHttpStatus;
+import feign.Client;
+import feign.Contract;
+import feign.MethodMetadata;
+import feign.Request;
+import feign.RequestLine;
+import feign.RequestTemplate;
+import feign.Response;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.openfeign.FeignClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CoalescingFeignClientTest {
+    private static final String CONTEXT_ID = "coalescingTestClient";
+    private static final int CALLERS = 8;
+
+    @FeignClient(name = "coalescingTestService", contextId = CONTEXT_ID)
+    public interface CoalescingTestClient {
+        @CoalescedRequest(headers = "X-User-Id")
+        @RequestLine("GET /config")
+        String config();
+
+        @RequestLine("GET /anything")
+        String anything();
+    }
+
+    private final AtomicInteger calls = new AtomicInteger();
+    //下游返回的响应码
+    private volatile int status = 200;
+    //下游收到请求之后等这个
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+    private SimpleMeterRegistry meterRegistry;
+    private CoalescingFeignClient coalescingFeignClient;
+    private List<MethodMetadata> methodMetadatas;
+
+    @Before
+    public void setUp() {
+        Client delegate = (request, options) -> {
+            calls.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (status != 200) {
+                //和 Resilience4jFeignClient 一样，非 200 的响应在返回之前已经关闭了
+                InputStream closed = new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("Attempted read from closed stream");
+                    }
+                };
+                return Response.builder()
+                        .status(status)
+                        .reason("error")
+                        .request(request)
+                        .headers(Map.of("X-Error", List.of("true")))
+                        .body(closed, null)
+                        .build();
+            }
+            return Response.builder()
+                    .status(200)
+                    .request(request)
+                    .headers(Map.of())
+                    .body("config", StandardCharsets.UTF_8)
+                    .build();
+        };
+        meterRegistry = new SimpleMeterRegistry();
+        coalescingFeignClient = new CoalescingFeignClient(delegate, meterRegistry);
+        methodMetadatas = new Contract.Default().parseAndValidateMetadata(CoalescingTestClient.class);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    /**
+     * 同时发出的相同请求只有一个到下游，每个调用方都能完整读取自己的响应
+     */
+    @Test
+    public void testCoalesced() throws Exception {
+        List<Future<String>> results = sendConcurrently("config", Map.of("X-User-Id", List.of("1")));
+        Thread.sleep(200);
+        release.countDown();
+        for (Future<String> result : results) {
+            Assert.assertEquals("config", result.get(5, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(1, calls.get());
+        String configKey = methodMetadata("config").configKey();
+        Assert.assertEquals(1, meterRegistry.counter(CoalescingFeignClient.COALESCED,
+                "contextId", CONTEXT_ID, "method", configKey, "result", "leader").count(), 0);
+        Assert.assertEquals(CALLERS - 1, meterRegistry.counter(CoalescingFeignClient.COALESCED,
+                "contextId", CONTEXT_ID, "method", configKey, "result", "follower").count(), 0);
+        //结果出来之后的请求重新发
+        execute("config", Map.of("X-User-Id", List.of("1")));
+        Assert.assertEquals(2, calls.get());
+    }
+
+    /**
+     * 指定的请求头不同的请求，以及没有注解的方法不合并
+     */
+    @Test
+    public void testNotCoalesced() throws Exception {
+        release.countDown();
+        execute("config", Map.of("X-User-Id", List.of("1")));
+        execute("config", Map.of("X-User-Id", List.of("2")));
+        List<Future<String>> results = sendConcurrently("anything", Map.of());
+        for (Future<String> result : results) {
+            result.get(5, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(2 + CALLERS, calls.get());
+    }
+
+    /**
+     * 非 200 的响应合并之后每个调用方都拿到响应码与 header，没有 body，交给 ErrorDecoder 处理
+     */
+    @Test
+    public void testCoalescedServerError() throws Exception {
+        testCoalescedErrorStatus(500);
+    }
+
+    /**
+     * 断路器打开返回的 581 也一样
+     */
+    @Test
+    public void testCoalescedCircuitBreakerOn() throws Exception {
+        testCoalescedErrorStatus(SpecialHttpStatus.CIRCUIT_BREAKER_ON.getValue());
+    }
+
+    private void testCoalescedErrorStatus(int errorStatus) throws Exception {
+        status = errorStatus;
+        List<Future<Response>> results = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            results.add(executor.submit(() -> send("config", Map.of("X-User-Id", List.of("1")))));
+        }
+        Thread.sleep(200);
+        release.countDown();
+        for (Future<Response> result : results) {
+            try (Response response = result.get(5, TimeUnit.SECONDS)) {
+                Assert.assertEquals(errorStatus, response.status());
+                Assert.assertEquals("error", response.reason());
+                Assert.assertEquals(List.of("true"), response.headers().get("X-Error"));
+                Assert.assertNull(response.body());
+            }
+        }
+        Assert.assertEquals(1, calls.get());
+    }
+
+    private List<Future<String>> sendConcurrently(String path, Map<String, Collection<String>> headers) {
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            results.add(executor.submit(() -> execute(path, headers)));
+        }
+        return results;
+    }
+
+    private String execute(String path, Map<String, Collection<String>> headers) throws IOException {
+        try (Response response = send(path, headers)) {
+            return new String(response.body().asInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private Response send(String path, Map<String, Collection<String>> headers) throws IOException {
+        MethodMetadata methodMetadata = methodMetadata(path);
+        RequestTemplate requestTemplate = new RequestTemplate();
+        requestTemplate.methodMetadata(methodMetadata);
+        Request request = Request.create(Request.HttpMethod.GET, "http://coalescingTestService/" + path, headers, null, StandardCharsets.UTF_8, requestTemplate);
+        return coalescingFeignClient.execute(request, new Request.Options(1, TimeUnit.SECONDS, 5, TimeUnit.SECONDS, true));
+    }
+
+    private MethodMetadata methodMetadata(String path) {
+        return methodMetadatas.stream()
+                .filter(m -> m.template().url().equals("/" + path))
+                .findFirst().get();
+    }
+}
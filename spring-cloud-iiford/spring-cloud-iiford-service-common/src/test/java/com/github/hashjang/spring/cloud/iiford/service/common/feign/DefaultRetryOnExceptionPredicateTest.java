@@ -0,0 +1,90 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.misc.RequestDeadline;
+import com.github.hashjang.spring.cloud.iiford.service.common.misc.ResponseWrapperException;
+import feign.Request;
+import feign.RetryableException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+public class DefaultRetryOnExceptionPredicateTest {
+    private final DefaultRetryOnExceptionPredicate predicate = new DefaultRetryOnExceptionPredicate();
+    private final Request get = Request.create(Request.HttpMethod.GET, "http://127.0.0.1:8080/test", Map.of(), null, StandardCharsets.UTF_8, null);
+    private final Request post = Request.create(Request.HttpMethod.POST, "http://127.0.0.1:8080/test", Map.of(), null, StandardCharsets.UTF_8, null);
+
+    /**
+     * 请求没有发出去的失败都可以重试
+     */
+    @Test
+    public void testNotSent() {
+        Assert.assertTrue(predicate.test(new PhasedIOException(FailurePhase.CONNECT, post, new ConnectException())));
+        Assert.assertTrue(predicate.test(new PhasedIOException(FailurePhase.POOL_ACQUIRE, post, new IOException())));
+        //经过 Resilience4jFeignClient 包装两层
+        Assert.assertTrue(predicate.test(new ResponseWrapperException("", new ResponseWrapperException("",
+                new PhasedIOException(FailurePhase.TLS, post, new IOException())))));
+    }
+
+    /**
+     * 请求已经发出去的失败，只有查询请求可以重试
+     */
+    @Test
+    public void testSent() {
+        Assert.assertFalse(predicate.test(new PhasedIOException(FailurePhase.READ, post, new SocketTimeoutException("Read timed out"))));
+        Assert.assertFalse(predicate.test(new PhasedIOException(FailurePhase.WRITE, post, new IOException())));
+        Assert.assertTrue(predicate.test(new PhasedIOException(FailurePhase.READ, get, new SocketTimeoutException("Read timed out"))));
+    }
+
+    /**
+     * 没有阶段的 IOException 根据类型判断，message 为 null 也不会有问题
+     */
+    @Test
+    public void testUnphased() {
+        Assert.assertTrue(predicate.test(new RetryableException(-1, null, Request.HttpMethod.POST, new ConnectException(), null, post)));
+        Assert.assertFalse(predicate.test(new RetryableException(-1, null, Request.HttpMethod.POST, new IOException(), null, post)));
+        Assert.assertTrue(predicate.test(new RetryableException(-1, null, Request.HttpMethod.GET, new IOException(), null, get)));
+        Assert.assertFalse(predicate.test(new ResponseWrapperException(null, new IOException())));
+    }
+
+    /**
+     * 只有 TLS 握手失败算请求没有发出去，连接建立之后的 SSLException 可能已经发出了请求
+     */
+    @Test
+    public void testUnphasedTls() {
+        Assert.assertTrue(predicate.test(new RetryableException(-1, null, Request.HttpMethod.POST, new SSLHandshakeException("handshake failed"), null, post)));
+        Assert.assertFalse(predicate.test(new RetryableException(-1, null, Request.HttpMethod.POST, new SSLException("Connection reset"), null, post)));
+        Assert.assertEquals(FailurePhase.UNKNOWN, FailurePhase.classify(new SSLException("Tag mismatch!")));
+    }
+
+    /**
+     * DefaultErrorDecoder 生成的没有 cause 的 RetryableException 可以重试，其他异常不重试
+     */
+    @Test
+    public void testOthers() {
+        Assert.assertTrue(predicate.test(new RetryableException(581, "circuit breaker on", Request.HttpMethod.POST, null, post)));
+        Assert.assertFalse(predicate.test(new IllegalStateException()));
+    }
+
+    /**
+     * 调用方剩下的时间不够再试一次的时候不重试
+     */
+    @Test
+    public void testDeadline() {
+        PhasedIOException notSent = new PhasedIOException(FailurePhase.CONNECT, get, new ConnectException());
+        Long previous = RequestDeadline.set(System.nanoTime() + 5_000_000);
+        try {
+            Assert.assertFalse(predicate.test(notSent));
+            RequestDeadline.set(System.nanoTime() + 1_000_000_000);
+            Assert.assertTrue(predicate.test(notSent));
+        } finally {
+            RequestDeadline.restore(previous);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import brave.Tracing;
+import com.github.hashjang.spring.cloud.iiford.service.common.config.FeignExecutionProperties;
+import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.InstanceLoadStatsRegistry;
+import com.sun.net.httpserver.HttpServer;
+import feign.Contract;
+import feign.MethodMetadata;
+import feign.Request;
+import feign.RequestLine;
+import feign.RequestTemplate;
+import feign.Response;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.bulkhead.ThreadPoolBulkhead;
+import io.github.resilience4j.bulkhead.ThreadPoolBulkheadConfig;
+import io.github.resilience4j.bulkhead.ThreadPoolBulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.cloud.openfeign.FeignClient;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比 THREAD_POOL、SEMAPHORE、VIRTUAL_THREAD 三种执行方式在同样并发下的 p50/p99 延迟与线程数
+ * 本地起一个每次请求 sleep 一段时间的 HttpServer 模拟微服务实例，CALLERS 个线程同时调用
+ * 直接运行 main 方法，VIRTUAL_THREAD 只有在 JDK 21 及以上运行才会测试
+ */
+public class ExecutionModeLoadBenchmark {
+    private static final String CONTEXT_ID = "loadTestClient";
+    private static final int CALLERS = 64;
+    private static final int CALLS_PER_CALLER = 200;
+    private static final int PROVIDER_LATENCY_MILLIS = 5;
+
+    @FeignClient(name = "loadTestService", contextId = CONTEXT_ID)
+    public interface LoadTestClient {
+        @RequestLine("GET /anything")
+        String anything();
+    }
+
+    public static void main(String[] args) throws Exception {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        httpServer.createContext("/anything", exchange -> {
+            try {
+                Thread.sleep(PROVIDER_LATENCY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        ExecutorService providerExecutor = Executors.newFixedThreadPool(CALLERS * 2);
+        httpServer.setExecutor(providerExecutor);
+        httpServer.start();
+        String url = "http://127.0.0.1:" + httpServer.getAddress().getPort() + "/anything";
+        try {
+            for (FeignExecutionMode mode : FeignExecutionMode.values()) {
+                if (mode == FeignExecutionMode.VIRTUAL_THREAD && !VirtualThreads.isSupported()) {
+                    System.out.println(mode + ": skipped, jdk " + System.getProperty("java.version") + " does not support virtual thread");
+                    continue;
+                }
+                //第一轮预热，第二轮才统计
+                run(mode, url);
+                run(mode, url);
+            }
+        } finally {
+            httpServer.stop(0);
+            providerExecutor.shutdownNow();
+        }
+    }
+
+    private static void run(FeignExecutionMode mode, String url) throws Exception {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(CALLERS * 2);
+        connectionManager.setDefaultMaxPerRoute(CALLERS * 2);
+        ApacheHttpClient apacheHttpClient = new ApacheHttpClient(HttpClients.custom().setConnectionManager(connectionManager).build());
+        FeignExecutionProperties feignExecutionProperties = new FeignExecutionProperties();
+        feignExecutionProperties.getMode().put(FeignExecutionProperties.DEFAULT, mode);
+        //三种方式的并发限制都设置为 CALLERS，保证对比的是执行方式而不是限流
+        ThreadPoolBulkheadRegistry threadPoolBulkheadRegistry = ThreadPoolBulkheadRegistry.of(ThreadPoolBulkheadConfig.custom()
+                .coreThreadPoolSize(CALLERS)
+                .maxThreadPoolSize(CALLERS)
+                .queueCapacity(CALLERS)
+                .build());
+        Resilience4jFeignClient client = new Resilience4jFeignClient(
+                apacheHttpClient,
+                threadPoolBulkheadRegistry,
+                BulkheadRegistry.of(BulkheadConfig.custom()
+                        .maxConcurrentCalls(CALLERS)
+                        .maxWaitDuration(Duration.ZERO)
+                        .build()),
+                CircuitBreakerRegistry.ofDefaults(),
+                Tracing.newBuilder().build().tracer(),
+                feignExecutionProperties,
+                new SimpleMeterRegistry(),
+                new InstanceLoadStatsRegistry(Duration.ofSeconds(10))
+        );
+        MethodMetadata methodMetadata = new Contract.Default().parseAndValidateMetadata(LoadTestClient.class).get(0);
+        RequestTemplate requestTemplate = new RequestTemplate();
+        requestTemplate.methodMetadata(methodMetadata);
+        Request request = Request.create(Request.HttpMethod.GET, url, Map.of(), null, StandardCharsets.UTF_8, requestTemplate);
+        Request.Options options = new Request.Options(1, TimeUnit.SECONDS, 5, TimeUnit.SECONDS, true);
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        int threadsBefore = threadMXBean.getThreadCount();
+        threadMXBean.resetPeakThreadCount();
+        long[] latencies = new long[CALLERS * CALLS_PER_CALLER];
+        int[] failures = new int[1];
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(CALLERS);
+        for (int i = 0; i < CALLERS; i++) {
+            int offset = i * CALLS_PER_CALLER;
+            Thread caller = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < CALLS_PER_CALLER; j++) {
+                        long begin = System.nanoTime();
+                        try (Response response = client.execute(request, options)) {
+                            if (response.status() != 200) {
+                                synchronized (failures) {
+                                    failures[0]++;
+                                }
+                            }
+                        } catch (Exception e) {
+                            synchronized (failures) {
+                                failures[0]++;
+                            }
+                        }
+                        latencies[offset + j] = System.nanoTime() - begin;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, "caller-" + i);
+            caller.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        int peakThreads = threadMXBean.getPeakThreadCount();
+        connectionManager.shutdown();
+        //关闭线程池，不影响下一种方式的线程数统计
+        for (ThreadPoolBulkhead threadPoolBulkhead : threadPoolBulkheadRegistry.getAllBulkheads()) {
+            threadPoolBulkhead.close();
+        }
+
+        Arrays.sort(latencies);
+        System.out.printf("%-15s throughput: %8.1f req/s, p50: %6.2f ms, p99: %6.2f ms, failures: %d, threads before: %d, peak threads: %d%n",
+                mode,
+                latencies.length * 1e9 / elapsed,
+                latencies[latencies.length / 2] / 1e6,
+                latencies[(int) (latencies.length * 0.99)] / 1e6,
+                failures[0],
+                threadsBefore,
+                peakThreads
+        );
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.config.FeignConnectionPoolProperties;
+import com.sun.net.httpserver.HttpServer;
+import feign.Request;
+import feign.Response;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class FeignConnectionPoolsTest {
+    /**
+     * 不同的 contextId 使用不同的连接池
+     */
+    @Test
+    public void testPartitionedByContextId() {
+        FeignConnectionPools feignConnectionPools = new FeignConnectionPools(new FeignConnectionPoolProperties(), null);
+        try {
+            Assert.assertSame(feignConnectionPools.getHttpClient("service1"), feignConnectionPools.getHttpClient("service1"));
+            Assert.assertNotSame(feignConnectionPools.getHttpClient("service1"), feignConnectionPools.getHttpClient("service2"));
+        } finally {
+            feignConnectionPools.destroy();
+        }
+    }
+
+    /**
+     * 连接池满的时候等待超过 connection-request-timeout 抛出 POOL_ACQUIRE 阶段的异常
+     */
+    @Test
+    public void testConnectionRequestTimeout() throws Exception {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+        httpServer.createContext("/test", exchange -> {
+            byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        httpServer.start();
+        FeignConnectionPoolProperties properties = new FeignConnectionPoolProperties();
+        FeignConnectionPoolProperties.Pool pool = new FeignConnectionPoolProperties.Pool();
+        pool.setMaxPerRoute(1);
+        pool.setConnectionRequestTimeout(Duration.ofMillis(100));
+        properties.getConfigs().put(FeignConnectionPoolProperties.DEFAULT, pool);
+        FeignConnectionPools feignConnectionPools = new FeignConnectionPools(properties, null);
+        try {
+            ApacheHttpClient apacheHttpClient = new ApacheHttpClient(feignConnectionPools);
+            Request request = Request.create(Request.HttpMethod.GET, "http://127.0.0.1:" + httpServer.getAddress().getPort() + "/test", Map.of(), null, StandardCharsets.UTF_8, null);
+            Request.Options options = new Request.Options(5, TimeUnit.SECONDS, 5, TimeUnit.SECONDS, true);
+            //不关闭响应，唯一的连接一直被占用
+            try (Response response = apacheHttpClient.execute(request, options)) {
+                Assert.assertEquals(200, response.status());
+                long start = System.nanoTime();
+                try {
+                    apacheHttpClient.execute(request, options);
+                    Assert.fail();
+                } catch (PhasedIOException e) {
+                    Assert.assertEquals(FailurePhase.POOL_ACQUIRE, e.getPhase());
+                }
+                Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            }
+        } finally {
+            feignConnectionPools.destroy();
+            httpServer.stop(0);
+        }
+    }
+
+    /**
+     * 调用之后有每个 route 的连接池指标
+     */
+    @Test
+    public void testRouteGauges() throws Exception {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+        httpServer.createContext("/test", exchange -> {
+            byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        httpServer.start();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        FeignConnectionPoolProperties properties = new FeignConnectionPoolProperties();
+        properties.setIdleTimeout(Duration.ZERO);
+        FeignConnectionPools feignConnectionPools = new FeignConnectionPools(properties, meterRegistry);
+        try {
+            ApacheHttpClient apacheHttpClient = new ApacheHttpClient(feignConnectionPools);
+            String route = "127.0.0.1:" + httpServer.getAddress().getPort();
+            Request request = Request.create(Request.HttpMethod.GET, "http://" + route + "/test", Map.of(), null, StandardCharsets.UTF_8, null);
+            try (Response response = apacheHttpClient.execute(request, new Request.Options(1, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, true))) {
+                Assert.assertEquals(200, response.status());
+                feignConnectionPools.evict();
+                Assert.assertEquals(1, meterRegistry.get(FeignConnectionPools.LEASED)
+                        .tag("contextId", FeignConnectionPoolProperties.DEFAULT).tag("route", route).gauge().value(), 0);
+            }
+            Assert.assertEquals(0, meterRegistry.get(FeignConnectionPools.LEASED).tag("route", route).gauge().value(), 0);
+            Assert.assertEquals(1, meterRegistry.get(FeignConnectionPools.AVAILABLE).tag("route", route).gauge().value(), 0);
+            //idle-timeout 为 0，空闲连接都被关闭之后 route 消失，指标也删除
+            feignConnectionPools.evict();
+            Assert.assertNull(meterRegistry.find(FeignConnectionPools.LEASED).tag("route", route).gauge());
+        } finally {
+            feignConnectionPools.destroy();
+            httpServer.stop(0);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import brave.Tracing;
+import com.github.hashjang.spring.cloud.iiford.service.common.config.FeignHedgingProperties;
+import com.github.hashjang.spring.cloud.iiford.service.common.config.RetryBudgetProperties;
+import feign.Client;
+import feign.Contract;
+import feign.MethodMetadata;
+import feign.Request;
+import feign.RequestLine;
+import feign.RequestTemplate;
+import feign.Response;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.openfeign.FeignClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HedgingFeignClientTest {
+    private static final String CONTEXT_ID = "hedgingTestClient";
+
+    @FeignClient(name = "hedgingTestService", contextId = CONTEXT_ID)
+    public interface HedgingTestClient {
+        @RequestLine("GET /anything")
+        String anything();
+
+        @RequestLine("POST /anything")
+        String post();
+    }
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+    private final AtomicInteger cancelled = new AtomicInteger();
+    //为 true 的时候第一次尝试卡住
+    private volatile boolean slowFirstAttempt;
+    private SimpleMeterRegistry meterRegistry;
+    private HedgingFeignClient hedgingFeignClient;
+    private List<MethodMetadata> methodMetadatas;
+
+    @Before
+    public void setUp() {
+        //模拟负载均衡器：第几次尝试就选第几个实例
+        Client delegate = (request, options) -> {
+            calls.incrementAndGet();
+            int attempt = RetryAttemptContext.current();
+            List<String> triedInstances = RetryAttemptContext.triedInstances();
+            if (triedInstances != null) {
+                triedInstances.add("instance" + attempt);
+            }
+            if (slowFirstAttempt && attempt == 0) {
+                //和 ApacheHttpClient 一样，被取消的时候中止请求抛出异常
+                CountDownLatch aborted = new CountDownLatch(1);
+                HedgeCancellation.current().onCancel(aborted::countDown);
+                try {
+                    if (aborted.await(5, TimeUnit.SECONDS)) {
+                        cancelled.incrementAndGet();
+                        throw new IOException("request aborted");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return Response.builder()
+                    .status(200)
+                    .request(request)
+                    .headers(Map.of())
+                    .body(new ByteArrayInputStream(("instance" + attempt).getBytes(StandardCharsets.UTF_8)) {
+                        @Override
+                        public void close() {
+                            closed.incrementAndGet();
+                        }
+                    }, null)
+                    .build();
+        };
+        FeignHedgingProperties properties = new FeignHedgingProperties();
+        FeignHedgingProperties.Config config = new FeignHedgingProperties.Config();
+        config.setEnabled(true);
+        config.setMinSamples(5);
+        config.setMinDelay(Duration.ofMillis(20));
+        properties.getConfigs().put(CONTEXT_ID, config);
+        meterRegistry = new SimpleMeterRegistry();
+        hedgingFeignClient = new HedgingFeignClient(delegate, properties,
+                new RetryBudgetRegistry(new RetryBudgetProperties(), null),
+                Tracing.newBuilder().build().tracer(), meterRegistry);
+        methodMetadatas = new Contract.Default().parseAndValidateMetadata(HedgingTestClient.class);
+    }
+
+    @After
+    public void tearDown() {
+        hedgingFeignClient.destroy();
+    }
+
+    /**
+     * 第一个请求卡住的时候，对冲请求发到下一个实例并且先返回，第一个请求被中止
+     */
+    @Test
+    public void testHedgeWins() throws Exception {
+        Request request = request("GET");
+        for (int i = 0; i < 5; i++) {
+            hedgingFeignClient.execute(request, options()).close();
+        }
+        slowFirstAttempt = true;
+        long start = System.nanoTime();
+        RetryAttemptContext.Previous before = RetryAttemptContext.begin();
+        try {
+            RetryAttemptContext.nextAttempt();
+            try (Response response = hedgingFeignClient.execute(request, options())) {
+                Assert.assertEquals("instance1", new String(response.body().asInputStream().readAllBytes(), StandardCharsets.UTF_8));
+            }
+            //之后的重试排除对冲用过的实例，从下一个位置继续
+            Assert.assertEquals(1, RetryAttemptContext.current());
+            Assert.assertTrue(RetryAttemptContext.triedInstances().contains("instance0"));
+            Assert.assertTrue(RetryAttemptContext.triedInstances().contains("instance1"));
+        } finally {
+            RetryAttemptContext.end(before);
+        }
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        Assert.assertEquals(7, calls.get());
+        //第一个请求被中止，没有响应：预热 5 个 + 对冲请求 1 个的响应被关闭
+        long deadline = System.currentTimeMillis() + 2000;
+        while (cancelled.get() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, cancelled.get());
+        Assert.assertEquals(6, closed.get());
+        Assert.assertEquals(1, meterRegistry.counter(HedgingFeignClient.HEDGES,
+                "contextId", CONTEXT_ID, "method", request.requestTemplate().methodMetadata().configKey(), "result", "hedge_won").count(), 0);
+    }
+
+    /**
+     * 不可重试的请求不对冲
+     */
+    @Test
+    public void testNotRetryableNotHedged() throws Exception {
+        Request request = request("POST");
+        for (int i = 0; i < 5; i++) {
+            hedgingFeignClient.execute(request, options()).close();
+        }
+        Assert.assertEquals(5, calls.get());
+        Assert.assertTrue(meterRegistry.getMeters().isEmpty());
+    }
+
+    @Test
+    public void testPercentile() {
+        LatencyPercentileTracker tracker = new LatencyPercentileTracker(100, 0.95, 10);
+        for (int i = 1; i <= 9; i++) {
+            tracker.record(i);
+        }
+        Assert.assertEquals(-1, tracker.getPercentileNanos());
+        for (int i = 10; i <= 100; i++) {
+            tracker.record(i);
+        }
+        Assert.assertEquals(95, tracker.getPercentileNanos());
+        //环形数组，旧的样本被覆盖
+        for (int i = 0; i < 100; i++) {
+            tracker.record(1000);
+        }
+        Assert.assertEquals(1000, tracker.getPercentileNanos());
+    }
+
+    private Request request(String method) {
+        MethodMetadata methodMetadata = methodMetadatas.stream()
+                .filter(m -> m.template().method().equals(method))
+                .findFirst().get();
+        RequestTemplate requestTemplate = new RequestTemplate();
+        requestTemplate.methodMetadata(methodMetadata);
+        return Request.create(Request.HttpMethod.valueOf(method), "http://hedgingTestService/anything", Map.of(), null, StandardCharsets.UTF_8, requestTemplate);
+    }
+
+    private Request.Options options() {
+        return new Request.Options(1, TimeUnit.SECONDS, 5, TimeUnit.SECONDS, true);
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import feign.Request;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class JdkHttpClientTest {
+    private final JdkHttpClient jdkHttpClient = new JdkHttpClient(HttpClient.Version.HTTP_1_1);
+
+    /**
+     * 超时为 0 是不超时，不会因为 HttpClient 不允许 0 而失败
+     */
+    @Test
+    public void testZeroTimeouts() throws Exception {
+        Request.Options options = new Request.Options(0, TimeUnit.MILLISECONDS, 0, TimeUnit.MILLISECONDS, true);
+        Request request = Request.create(Request.HttpMethod.GET, "http://127.0.0.1:8080/test", Map.of(), null, StandardCharsets.UTF_8, null);
+        Assert.assertTrue(jdkHttpClient.toHttpRequest(request, options).timeout().isEmpty());
+
+        int closedPort;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            closedPort = serverSocket.getLocalPort();
+        }
+        request = Request.create(Request.HttpMethod.GET, "http://127.0.0.1:" + closedPort + "/test", Map.of(), null, StandardCharsets.UTF_8, null);
+        try {
+            jdkHttpClient.execute(request, options);
+            Assert.fail();
+        } catch (PhasedIOException e) {
+            Assert.assertEquals(FailurePhase.CONNECT, e.getPhase());
+        }
+    }
+
+    /**
+     * 只有 url 解析失败的时候才是 url 的问题
+     */
+    @Test
+    public void testInvalidUrl() {
+        Request.Options options = new Request.Options(1, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, true);
+        Request request = Request.create(Request.HttpMethod.GET, "http://127.0.0.1:8080/bad path", Map.of(), null, StandardCharsets.UTF_8, null);
+        try {
+            jdkHttpClient.execute(request, options);
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("couldn't be parsed into a URI"));
+        }
+    }
+
+    /**
+     * 对冲输了被取消的时候，调用线程马上返回，之后响应回来的时候连接被关闭，不会一直占着等整个 body
+     */
+    @Test
+    public void testHedgeCancellationReleasesConnection() throws Exception {
+        Request.Options options = new Request.Options(1, TimeUnit.SECONDS, 10, TimeUnit.SECONDS, true);
+        CountDownLatch responseSent = new CountDownLatch(1);
+        CountDownLatch connectionClosed = new CountDownLatch(1);
+        //读取请求之后过一会儿返回响应头与一部分 body，剩下的一直不返回
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread server = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    InputStream inputStream = socket.getInputStream();
+                    inputStream.read(new byte[1024]);
+                    Thread.sleep(500);
+                    OutputStream outputStream = socket.getOutputStream();
+                    outputStream.write("HTTP/1.1 200 OK\r\nContent-Length: 1000000\r\n\r\npartial".getBytes(StandardCharsets.US_ASCII));
+                    outputStream.flush();
+                    responseSent.countDown();
+                    socket.setSoTimeout(5000);
+                    if (inputStream.read() == -1) {
+                        connectionClosed.countDown();
+                    }
+                } catch (SocketTimeoutException e) {
+                    //连接一直没有关闭
+                } catch (IOException | InterruptedException e) {
+                    //连接被重置也是关闭了
+                    connectionClosed.countDown();
+                }
+            });
+            server.setDaemon(true);
+            server.start();
+            Request request = Request.create(Request.HttpMethod.GET, "http://127.0.0.1:" + serverSocket.getLocalPort() + "/test", Map.of(), null, StandardCharsets.UTF_8, null);
+            HedgeCancellation cancellation = new HedgeCancellation();
+            Thread canceller = new Thread(() -> {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                cancellation.cancel();
+            });
+            canceller.start();
+            HedgeCancellation previous = HedgeCancellation.set(cancellation);
+            try {
+                jdkHttpClient.execute(request, options);
+                Assert.fail();
+            } catch (IOException e) {
+                //不用等响应回来
+                Assert.assertEquals(1, responseSent.getCount());
+            } finally {
+                HedgeCancellation.restore(previous);
+            }
+            Assert.assertTrue(connectionClosed.await(5, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.github.hashjang.spring.cloud.iiford.service.common.feign;
 
+import com.github.hashjang.spring.cloud.iiford.service.common.misc.RequestDeadline;
 import feign.MethodMetadata;
 import feign.Request;
 import feign.RequestTemplate;
@@ -8,6 +9,10 @@ import org.junit.Test;
 import org.mockito.Mockito;
 
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Util 类静态方法测试
@@ -59,4 +64,41 @@ public class OpenfeignUtilTest {
         Request testSimple = getPostRequest(AnnotatedClass.class.getMethod("testSimple"));
         Assert.assertTrue(OpenfeignUtil.isRetryableRequest(testSimple));
     }
-}
\ No newline at end of file
+
+    /**
+     * 超时限制在请求头里面的剩余时间以内，剩余时间为 0 的时候至少 1ms
+     */
+    @Test
+    public void testLimitByDeadline() {
+        Request.Options options = new Request.Options(500, TimeUnit.MILLISECONDS, 2000, TimeUnit.MILLISECONDS, true);
+        Request noDeadline = Request.create(Request.HttpMethod.GET, "http://127.0.0.1:8080/test", Map.of(), null, StandardCharsets.UTF_8, null);
+        Assert.assertSame(options, OpenfeignUtil.limitByDeadline(noDeadline, options));
+
+        Request.Options limited = OpenfeignUtil.limitByDeadline(withDeadline("800"), options);
+        Assert.assertEquals(500, limited.connectTimeoutMillis());
+        Assert.assertEquals(800, limited.readTimeoutMillis());
+        Assert.assertTrue(limited.isFollowRedirects());
+
+        Assert.assertSame(options, OpenfeignUtil.limitByDeadline(withDeadline("5000"), options));
+        Assert.assertEquals(1, OpenfeignUtil.limitByDeadline(withDeadline("0"), options).readTimeoutMillis());
+        //连接超时不跟着剩余时间变化
+        Assert.assertEquals(500, OpenfeignUtil.limitByDeadline(withDeadline("100"), options).connectTimeoutMillis());
+    }
+
+    /**
+     * 读取超时为 0（不超时）的时候也限制在剩余时间以内
+     */
+    @Test
+    public void testLimitInfiniteReadTimeoutByDeadline() {
+        Request.Options options = new Request.Options(500, TimeUnit.MILLISECONDS, 0, TimeUnit.MILLISECONDS, true);
+        Assert.assertEquals(800, OpenfeignUtil.limitByDeadline(withDeadline("800"), options).readTimeoutMillis());
+        Assert.assertEquals(1, OpenfeignUtil.limitByDeadline(withDeadline("0"), options).readTimeoutMillis());
+        Request noDeadline = Request.create(Request.HttpMethod.GET, "http://127.0.0.1:8080/test", Map.of(), null, StandardCharsets.UTF_8, null);
+        Assert.assertSame(options, OpenfeignUtil.limitByDeadline(noDeadline, options));
+    }
+
+    private Request withDeadline(String remainingMillis) {
+        return Request.create(Request.HttpMethod.GET, "http://127.0.0.1:8080/test",
+                Map.of(RequestDeadline.HEADER, List.of(remainingMillis)), null, StandardCharsets.UTF_8, null);
+    }
+}
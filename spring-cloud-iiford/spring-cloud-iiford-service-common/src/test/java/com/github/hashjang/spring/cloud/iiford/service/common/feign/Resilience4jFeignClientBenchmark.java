@@ -0,0 +1,141 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import brave.Tracing;
+import com.github.hashjang.spring.cloud.iiford.service.common.config.FeignExecutionProperties;
+import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.InstanceLoadStatsRegistry;
+import feign.Contract;
+import feign.MethodMetadata;
+import feign.Request;
+import feign.RequestLine;
+import feign.RequestTemplate;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.bulkhead.ThreadPoolBulkhead;
+import io.github.resilience4j.bulkhead.ThreadPoolBulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.github.resilience4j.core.ConfigurationNotFoundException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.cloud.openfeign.FeignClient;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比每次调用都反射读取注解、解析两次 URL、拼接 id 再去 registry 查找的原始方式
+ * 与现在通过 FeignMethodDescriptor 缓存的方式，获取线程池与断路器的开销
+ * 直接运行 main 方法，带上 GCProfiler 可以看到每次调用分配的内存（gc.alloc.rate.norm）
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Resilience4jFeignClientBenchmark {
+    private static final String CONTEXT_ID = "benchmarkClient";
+
+    @FeignClient(name = "benchmarkService", contextId = CONTEXT_ID)
+    public interface BenchmarkClient {
+        @RequestLine("GET /anything")
+        String anything();
+    }
+
+    private ThreadPoolBulkheadRegistry threadPoolBulkheadRegistry;
+    private CircuitBreakerRegistry circuitBreakerRegistry;
+    private Resilience4jFeignClient resilience4jFeignClient;
+    private Request[] requests;
+    private int index;
+
+    @Setup
+    public void setup() {
+        threadPoolBulkheadRegistry = ThreadPoolBulkheadRegistry.ofDefaults();
+        circuitBreakerRegistry = CircuitBreakerRegistry.ofDefaults();
+        resilience4jFeignClient = new Resilience4jFeignClient(
+                new ApacheHttpClient(),
+                threadPoolBulkheadRegistry,
+                BulkheadRegistry.ofDefaults(),
+                circuitBreakerRegistry,
+                Tracing.newBuilder().build().tracer(),
+                new FeignExecutionProperties(),
+                new SimpleMeterRegistry(),
+                new InstanceLoadStatsRegistry(Duration.ofSeconds(10))
+        );
+        List<MethodMetadata> methodMetadata = new Contract.Default().parseAndValidateMetadata(BenchmarkClient.class);
+        RequestTemplate requestTemplate = new RequestTemplate();
+        requestTemplate.methodMetadata(methodMetadata.get(0));
+        //模拟负载均衡轮询 3 个实例
+        requests = new Request[]{
+                request("http://10.0.0.1:8080/anything?a=1", requestTemplate),
+                request("http://10.0.0.2:8080/anything?a=1", requestTemplate),
+                request("http://10.0.0.3:8080/anything?a=1", requestTemplate),
+        };
+    }
+
+    private static Request request(String url, RequestTemplate requestTemplate) {
+        return Request.create(Request.HttpMethod.GET, url, Map.of(), null, StandardCharsets.UTF_8, requestTemplate);
+    }
+
+    private Request nextRequest() {
+        Request request = requests[index];
+        index = (index + 1) % requests.length;
+        return request;
+    }
+
+    @Benchmark
+    public void legacy(Blackhole blackhole) throws Exception {
+        Request request = nextRequest();
+        FeignClient annotation = request.requestTemplate().methodMetadata().method().getDeclaringClass().getAnnotation(FeignClient.class);
+        String contextId = annotation.contextId();
+        URL url = new URL(request.url());
+        String serviceInstanceId = contextId + ":" + url.getHost() + ":" + url.getPort();
+        url = new URL(request.url());
+        String methodName = request.requestTemplate().methodMetadata().method().toGenericString();
+        String serviceInstanceMethodId = url.getHost() + ":" + url.getPort() + ":" + methodName;
+        ThreadPoolBulkhead threadPoolBulkhead;
+        CircuitBreaker circuitBreaker;
+        try {
+            threadPoolBulkhead = threadPoolBulkheadRegistry.bulkhead(serviceInstanceId, contextId);
+        } catch (ConfigurationNotFoundException e) {
+            threadPoolBulkhead = threadPoolBulkheadRegistry.bulkhead(serviceInstanceId);
+        }
+        try {
+            circuitBreaker = circuitBreakerRegistry.circuitBreaker(serviceInstanceMethodId, contextId);
+        } catch (ConfigurationNotFoundException e) {
+            circuitBreaker = circuitBreakerRegistry.circuitBreaker(serviceInstanceMethodId);
+        }
+        blackhole.consume(threadPoolBulkhead);
+        blackhole.consume(circuitBreaker);
+    }
+
+    @Benchmark
+    public void cached(Blackhole blackhole) throws Exception {
+        FeignInstanceHandle instanceHandle = resilience4jFeignClient.getInstanceHandle(nextRequest());
+        blackhole.consume(instanceHandle.getThreadPoolBulkhead());
+        blackhole.consume(instanceHandle.getCircuitBreaker());
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(Resilience4jFeignClientBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
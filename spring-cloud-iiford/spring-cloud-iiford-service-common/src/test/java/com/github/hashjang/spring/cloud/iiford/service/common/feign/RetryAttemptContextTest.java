@@ -0,0 +1,64 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class RetryAttemptContextTest {
+
+    /**
+     * 嵌套的 Feign 调用结束之后，外层的尝试次数、起始位置以及尝试过的实例都恢复
+     */
+    @Test
+    public void testNestedCallRestoresOuterState() {
+        RetryAttemptContext.Previous outer = RetryAttemptContext.begin();
+        Assert.assertNull(outer);
+        try {
+            RetryAttemptContext.nextAttempt();
+            RetryAttemptContext.nextAttempt();
+            RetryAttemptContext.triedInstances().add("instance0");
+            int startOffset = RetryAttemptContext.startOffset();
+
+            RetryAttemptContext.Previous nested = RetryAttemptContext.begin();
+            try {
+                RetryAttemptContext.nextAttempt();
+                Assert.assertEquals(0, RetryAttemptContext.current());
+                Assert.assertTrue(RetryAttemptContext.triedInstances().isEmpty());
+                RetryAttemptContext.triedInstances().add("nested0");
+            } finally {
+                RetryAttemptContext.end(nested);
+            }
+
+            Assert.assertEquals(1, RetryAttemptContext.current());
+            Assert.assertEquals(startOffset, RetryAttemptContext.startOffset());
+            Assert.assertEquals(List.of("instance0"), RetryAttemptContext.triedInstances());
+        } finally {
+            RetryAttemptContext.end(outer);
+        }
+        Assert.assertNull(RetryAttemptContext.triedInstances());
+    }
+
+    /**
+     * 每次 Feign 调用的起始位置是随机的，同一个 trace 里面的多次调用不会都从同一个位置开始
+     */
+    @Test
+    public void testStartOffsetPerCall() {
+        Set<Integer> startOffsets = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            RetryAttemptContext.Previous previous = RetryAttemptContext.begin();
+            try {
+                RetryAttemptContext.nextAttempt();
+                int startOffset = RetryAttemptContext.startOffset();
+                //同一次调用内不变
+                Assert.assertEquals(startOffset, RetryAttemptContext.startOffset());
+                startOffsets.add(startOffset);
+            } finally {
+                RetryAttemptContext.end(previous);
+            }
+        }
+        Assert.assertTrue(startOffsets.size() > 1);
+    }
+}
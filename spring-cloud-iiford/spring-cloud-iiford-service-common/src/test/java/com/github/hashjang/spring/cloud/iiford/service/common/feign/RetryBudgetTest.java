@@ -0,0 +1,73 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import feign.Request;
+import io.github.resilience4j.feign.FeignDecorators;
+import io.github.resilience4j.retry.Retry;
+import io.github.resilience4j.retry.RetryConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.vavr.CheckedFunction1;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RetryBudgetTest {
+    /**
+     * 令牌用完之后不能重试，成功调用之后恢复
+     */
+    @Test
+    public void testTokenBucket() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        RetryBudget retryBudget = new RetryBudget(0.5, 2, meterRegistry, "testService");
+        Assert.assertTrue(retryBudget.tryAcquire());
+        Assert.assertTrue(retryBudget.tryAcquire());
+        Assert.assertFalse(retryBudget.tryAcquire());
+        retryBudget.onSuccess();
+        Assert.assertFalse(retryBudget.tryAcquire());
+        retryBudget.onSuccess();
+        Assert.assertTrue(retryBudget.tryAcquire());
+        //不会超过最大令牌数
+        for (int i = 0; i < 100; i++) {
+            retryBudget.onSuccess();
+        }
+        Assert.assertEquals(2, retryBudget.getTokens(), 0);
+        Assert.assertEquals(3, meterRegistry.counter(RetryBudget.RETRIES, "contextId", "testService", "result", "permitted").count(), 0);
+        Assert.assertEquals(2, meterRegistry.counter(RetryBudget.RETRIES, "contextId", "testService", "result", "rejected").count(), 0);
+    }
+
+    /**
+     * 在 Retry 里面，预算用完之后不再调用，抛出的是最后一次调用的异常
+     */
+    @Test
+    public void testRetryStopsWhenBudgetExhausted() throws Throwable {
+        Retry retry = Retry.of("testService", RetryConfig.custom()
+                .maxAttempts(5)
+                .waitDuration(Duration.ofMillis(1))
+                .retryOnException(new DefaultRetryOnExceptionPredicate())
+                .build());
+        RetryBudget retryBudget = new RetryBudget(0.2, 1);
+        Request request = Request.create(Request.HttpMethod.POST, "http://127.0.0.1:8080/test", Map.of(), null, StandardCharsets.UTF_8, null);
+        AtomicInteger calls = new AtomicInteger();
+        PhasedIOException failure = new PhasedIOException(FailurePhase.CONNECT, request, new ConnectException());
+        CheckedFunction1<Object[], Object> decorated = new RetryAttemptFeignDecorator(
+                FeignDecorators.builder().withRetry(retry).build(), retryBudget
+        ).decorate(args -> {
+            calls.incrementAndGet();
+            throw failure;
+        }, RetryBudgetTest.class.getMethod("testRetryStopsWhenBudgetExhausted"), null, null);
+        try {
+            decorated.apply(new Object[0]);
+            Assert.fail();
+        } catch (PhasedIOException e) {
+            Assert.assertSame(failure, e);
+        }
+        //第一次调用 + 一次重试
+        Assert.assertEquals(2, calls.get());
+        //调用结束之后清除标记
+        Assert.assertFalse(RetryAttemptContext.isRetryBudgetExhausted());
+    }
+}
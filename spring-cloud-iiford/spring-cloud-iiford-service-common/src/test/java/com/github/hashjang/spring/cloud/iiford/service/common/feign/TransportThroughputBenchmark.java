@@ -0,0 +1,166 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.feign;
+
+import brave.Tracing;
+import com.github.hashjang.spring.cloud.iiford.service.common.config.FeignConnectionPoolProperties;
+import com.github.hashjang.spring.cloud.iiford.service.common.config.FeignExecutionProperties;
+import com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer.InstanceLoadStatsRegistry;
+import feign.Client;
+import feign.Contract;
+import feign.MethodMetadata;
+import feign.Request;
+import feign.RequestLine;
+import feign.RequestTemplate;
+import feign.Response;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.bulkhead.ThreadPoolBulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import io.undertow.server.ConnectorStatistics;
+import org.springframework.cloud.openfeign.FeignClient;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 对比 APACHE 与 JDK 两种 FeignTransport 在同样并发下的吞吐量、p50/p99 延迟、连接数与线程数
+ * 本地起一个支持 h2c 的 Undertow 模拟微服务实例，每个请求延迟一段时间返回（不占用服务端线程），CALLERS 个线程通过 Resilience4jFeignClient（SEMAPHORE 模式）同时调用
+ * 直接运行 main 方法
+ */
+public class TransportThroughputBenchmark {
+    private static final String CONTEXT_ID = "transportTestClient";
+    private static final int CALLERS = 128;
+    private static final int CALLS_PER_CALLER = 200;
+    private static final int PROVIDER_LATENCY_MILLIS = 5;
+
+    @FeignClient(name = "transportTestService", contextId = CONTEXT_ID)
+    public interface TransportTestClient {
+        @RequestLine("GET /anything")
+        String anything();
+    }
+
+    public static void main(String[] args) throws Exception {
+        ByteBuffer body = ByteBuffer.wrap("{}".getBytes(StandardCharsets.UTF_8));
+        Undertow undertow = Undertow.builder()
+                .addHttpListener(0, "127.0.0.1")
+                .setServerOption(UndertowOptions.ENABLE_HTTP2, true)
+                .setServerOption(UndertowOptions.ENABLE_STATISTICS, true)
+                .setHandler(exchange -> {
+                    //延迟返回，不阻塞 IO 线程
+                    exchange.dispatch(exchange.getIoThread(), () -> exchange.getIoThread().executeAfter(
+                            () -> exchange.getResponseSender().send(body.duplicate()),
+                            PROVIDER_LATENCY_MILLIS, TimeUnit.MILLISECONDS
+                    ));
+                })
+                .build();
+        undertow.start();
+        Undertow.ListenerInfo listenerInfo = undertow.getListenerInfo().get(0);
+        String url = "http://127.0.0.1:" + ((InetSocketAddress) listenerInfo.getAddress()).getPort() + "/anything";
+        try {
+            for (FeignTransport transport : FeignTransport.values()) {
+                //第一轮预热，第二轮才统计
+                run(transport, url, listenerInfo.getConnectorStatistics());
+                run(transport, url, listenerInfo.getConnectorStatistics());
+            }
+        } finally {
+            undertow.stop();
+        }
+    }
+
+    private static void run(FeignTransport transport, String url, ConnectorStatistics connectorStatistics) throws Exception {
+        FeignConnectionPoolProperties feignConnectionPoolProperties = new FeignConnectionPoolProperties();
+        FeignConnectionPoolProperties.Pool pool = new FeignConnectionPoolProperties.Pool();
+        pool.setMaxTotal(CALLERS);
+        pool.setMaxPerRoute(CALLERS);
+        feignConnectionPoolProperties.getConfigs().put(FeignConnectionPoolProperties.DEFAULT, pool);
+        FeignConnectionPools feignConnectionPools = new FeignConnectionPools(feignConnectionPoolProperties, null);
+        Client client = transport == FeignTransport.JDK ? new JdkHttpClient() : new ApacheHttpClient(feignConnectionPools);
+        FeignExecutionProperties feignExecutionProperties = new FeignExecutionProperties();
+        feignExecutionProperties.getMode().put(FeignExecutionProperties.DEFAULT, FeignExecutionMode.SEMAPHORE);
+        Resilience4jFeignClient resilience4jFeignClient = new Resilience4jFeignClient(
+                client,
+                ThreadPoolBulkheadRegistry.ofDefaults(),
+                BulkheadRegistry.of(BulkheadConfig.custom()
+                        .maxConcurrentCalls(CALLERS)
+                        .maxWaitDuration(Duration.ZERO)
+                        .build()),
+                CircuitBreakerRegistry.ofDefaults(),
+                Tracing.newBuilder().build().tracer(),
+                feignExecutionProperties,
+                new SimpleMeterRegistry(),
+                new InstanceLoadStatsRegistry(Duration.ofSeconds(10))
+        );
+        MethodMetadata methodMetadata = new Contract.Default().parseAndValidateMetadata(TransportTestClient.class).get(0);
+        RequestTemplate requestTemplate = new RequestTemplate();
+        requestTemplate.methodMetadata(methodMetadata);
+        Request request = Request.create(Request.HttpMethod.GET, url, Map.of(), null, StandardCharsets.UTF_8, requestTemplate);
+        Request.Options options = new Request.Options(1, TimeUnit.SECONDS, 5, TimeUnit.SECONDS, true);
+
+        //先调用一次，JDK 的 h2c 升级在第一个请求完成，之后的并发请求才会复用同一个 HTTP/2 连接
+        resilience4jFeignClient.execute(request, options).close();
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        threadMXBean.resetPeakThreadCount();
+        connectorStatistics.reset();
+        AtomicInteger peakConnections = new AtomicInteger();
+        long[] latencies = new long[CALLERS * CALLS_PER_CALLER];
+        AtomicInteger failures = new AtomicInteger();
+        byte[] buffer = new byte[64];
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(CALLERS);
+        for (int i = 0; i < CALLERS; i++) {
+            int offset = i * CALLS_PER_CALLER;
+            Thread caller = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < CALLS_PER_CALLER; j++) {
+                        long begin = System.nanoTime();
+                        try (Response response = resilience4jFeignClient.execute(request, options)) {
+                            InputStream inputStream = response.body().asInputStream();
+                            while (inputStream.read(buffer) != -1) {
+                            }
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                        latencies[offset + j] = System.nanoTime() - begin;
+                        peakConnections.accumulateAndGet((int) connectorStatistics.getActiveConnections(), Math::max);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, "caller-" + i);
+            caller.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        int peakThreads = threadMXBean.getPeakThreadCount();
+        feignConnectionPools.destroy();
+
+        Arrays.sort(latencies);
+        System.out.printf("%-6s throughput: %8.1f req/s, p50: %6.2f ms, p99: %6.2f ms, failures: %d, peak server connections: %d, peak threads: %d%n",
+                transport,
+                latencies.length * 1e9 / elapsed,
+                latencies[latencies.length / 2] / 1e6,
+                latencies[(int) (latencies.length * 0.99)] / 1e6,
+                failures.get(),
+                peakConnections.get(),
+                peakThreads
+        );
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer;
+
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+
+public class CircuitBreakerAwareServiceInstanceListSupplierTest {
+    private final CircuitBreakerRegistry circuitBreakerRegistry = CircuitBreakerRegistry.ofDefaults();
+    private final CircuitBreakerAwareServiceInstanceListSupplier supplier = new CircuitBreakerAwareServiceInstanceListSupplier(
+            new ServiceInstanceListSupplier() {
+                @Override
+                public String getServiceId() {
+                    return "testService";
+                }
+
+                @Override
+                public Flux<List<ServiceInstance>> get() {
+                    return Flux.empty();
+                }
+            }, new OpenCircuitBreakerInstances(circuitBreakerRegistry)
+    );
+    private final ServiceInstance instance1 = new DefaultServiceInstance("instance1", "testService", "10.0.0.1", 8080, false);
+    private final ServiceInstance instance2 = new DefaultServiceInstance("instance2", "testService", "10.0.0.2", 8080, false);
+    private final List<ServiceInstance> instances = List.of(instance1, instance2);
+
+    /**
+     * 没有打开的断路器的时候返回同一个 List
+     */
+    @Test
+    public void testNoOpenCircuitBreaker() {
+        circuitBreakerRegistry.circuitBreaker("10.0.0.1:8080:public abstract java.lang.String test()");
+        Assert.assertSame(instances, supplier.filteredByCircuitBreaker(instances));
+    }
+
+    /**
+     * 断路器打开的实例被过滤掉，关闭之后恢复
+     */
+    @Test
+    public void testOpenInstanceFiltered() {
+        CircuitBreaker circuitBreaker = circuitBreakerRegistry.circuitBreaker("10.0.0.1:8080:public abstract java.lang.String test()");
+        circuitBreaker.transitionToOpenState();
+        Assert.assertEquals(List.of(instance2), supplier.filteredByCircuitBreaker(instances));
+        //状态没变的时候返回同一个结果
+        Assert.assertSame(supplier.filteredByCircuitBreaker(instances), supplier.filteredByCircuitBreaker(instances));
+        circuitBreaker.transitionToHalfOpenState();
+        Assert.assertSame(instances, supplier.filteredByCircuitBreaker(instances));
+    }
+
+    /**
+     * 所有实例的断路器都打开的时候返回所有实例
+     */
+    @Test
+    public void testAllOpenReturnAll() {
+        circuitBreakerRegistry.circuitBreaker("10.0.0.1:8080:public abstract java.lang.String test()").transitionToOpenState();
+        circuitBreakerRegistry.circuitBreaker("10.0.0.2:8080:public abstract java.lang.String test()").transitionToOpenState();
+        Assert.assertSame(instances, supplier.filteredByCircuitBreaker(instances));
+    }
+
+    @Test
+    public void testGetInstance() {
+        Assert.assertEquals("10.0.0.1:8080", OpenCircuitBreakerInstances.getInstance("10.0.0.1:8080:public abstract java.lang.String test()"));
+        Assert.assertEquals("10.0.0.1:8080", OpenCircuitBreakerInstances.getInstance("10.0.0.1:8080"));
+        Assert.assertNull(OpenCircuitBreakerInstances.getInstance("service-provider"));
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer;
+
+import com.netflix.discovery.CacheRefreshedEvent;
+import com.netflix.discovery.EurekaClient;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+
+import java.util.List;
+import java.util.Map;
+
+public class EurekaEventServiceInstanceListSupplierTest {
+    private final ServiceInstance instance1 = new DefaultServiceInstance("instance1", "testService", "10.0.0.1", 8080, false, Map.of("zone", "zone1"));
+    private final ServiceInstance instance2 = new DefaultServiceInstance("instance2", "testService", "10.0.0.2", 8080, false, Map.of("zone", "zone1"));
+
+    /**
+     * 缓存刷新但是实例没变的时候返回同一个 List，实例变化之后返回新的 List
+     */
+    @Test
+    public void testOnlyPublishWhenChanged() {
+        DiscoveryClient discoveryClient = Mockito.mock(DiscoveryClient.class);
+        EurekaClient eurekaClient = Mockito.mock(EurekaClient.class);
+        Mockito.when(discoveryClient.getInstances("testService")).thenReturn(List.of(instance1, instance2));
+        EurekaEventServiceInstanceListSupplier supplier = new EurekaEventServiceInstanceListSupplier("testService", discoveryClient, eurekaClient);
+        Mockito.verify(eurekaClient).registerEventListener(supplier);
+        List<ServiceInstance> first = supplier.get().blockFirst();
+        Assert.assertEquals(List.of(instance1, instance2), first);
+
+        //顺序变化不算变化
+        Mockito.when(discoveryClient.getInstances("testService")).thenReturn(List.of(instance2, instance1));
+        supplier.onEvent(new CacheRefreshedEvent());
+        Assert.assertSame(first, supplier.get().blockFirst());
+
+        //实例下线
+        Mockito.when(discoveryClient.getInstances("testService")).thenReturn(List.of(instance1));
+        supplier.onEvent(new CacheRefreshedEvent());
+        Assert.assertEquals(List.of(instance1), supplier.get().blockFirst());
+
+        supplier.destroy();
+        Mockito.verify(eurekaClient).unregisterEventListener(supplier);
+    }
+
+    @Test
+    public void testMetadataChanged() {
+        ServiceInstance changed = new DefaultServiceInstance("instance1", "testService", "10.0.0.1", 8080, false, Map.of("zone", "zone2"));
+        Assert.assertTrue(EurekaEventServiceInstanceListSupplier.sameInstances(List.of(instance1), List.of(instance1)));
+        Assert.assertFalse(EurekaEventServiceInstanceListSupplier.sameInstances(List.of(instance1), List.of(changed)));
+        Assert.assertFalse(EurekaEventServiceInstanceListSupplier.sameInstances(List.of(instance1), List.of(instance2)));
+    }
+}
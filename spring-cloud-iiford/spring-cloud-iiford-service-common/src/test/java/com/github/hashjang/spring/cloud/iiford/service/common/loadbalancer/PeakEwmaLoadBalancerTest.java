@@ -0,0 +1,101 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class PeakEwmaLoadBalancerTest {
+    private final InstanceLoadStatsRegistry instanceLoadStatsRegistry = new InstanceLoadStatsRegistry(Duration.ofSeconds(10));
+    private final PeakEwmaLoadBalancer loadBalancer = new PeakEwmaLoadBalancer(null, "testService", instanceLoadStatsRegistry);
+
+    private static List<ServiceInstance> instances(int count) {
+        List<ServiceInstance> instances = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            instances.add(new DefaultServiceInstance("instance" + i, "testService", "10.0.0." + i, 8080, false));
+        }
+        return instances;
+    }
+
+    private void record(String hostAndPort, long millis) {
+        InstanceLoadStats instanceLoadStats = instanceLoadStatsRegistry.get(hostAndPort);
+        instanceLoadStats.start();
+        instanceLoadStats.complete(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * 变慢的实例分配到的请求更少
+     */
+    @Test
+    public void testSlowInstanceGetsLessTraffic() {
+        List<ServiceInstance> instances = instances(3);
+        PeakEwmaLoadBalancer.Snapshot snapshot = loadBalancer.getSnapshot(instances);
+        record("10.0.0.0:8080", 10);
+        record("10.0.0.1:8080", 10);
+        record("10.0.0.2:8080", 500);
+        int[] counts = new int[3];
+        for (int i = 0; i < 3000; i++) {
+            counts[loadBalancer.choose(snapshot, null)]++;
+        }
+        //power of two choices 下最慢的实例只有两次都随机到它的时候才会被选中，但是两次随机不会是同一个，所以一次都不会选到
+        Assert.assertEquals(0, counts[2]);
+        //两个快的实例记录的时间有先后，衰减之后负载不完全相等，其中一个会在两者之间总是胜出，所以只能保证各自至少分到三分之一左右
+        Assert.assertTrue(counts[0] > 800 && counts[1] > 800);
+    }
+
+    /**
+     * 快速失败的实例不会因为响应时间短分配到更多的请求
+     */
+    @Test
+    public void testFastFailingInstanceGetsLessTraffic() {
+        List<ServiceInstance> instances = instances(3);
+        PeakEwmaLoadBalancer.Snapshot snapshot = loadBalancer.getSnapshot(instances);
+        record("10.0.0.0:8080", 10);
+        record("10.0.0.1:8080", 10);
+        record("10.0.0.2:8080", 10);
+        InstanceLoadStats failing = instanceLoadStatsRegistry.get("10.0.0.2:8080");
+        for (int i = 0; i < 10; i++) {
+            failing.start();
+            failing.fail(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        Assert.assertTrue(failing.getEwmaNanos() > TimeUnit.MILLISECONDS.toNanos(10));
+        int[] counts = new int[3];
+        for (int i = 0; i < 3000; i++) {
+            counts[loadBalancer.choose(snapshot, null)]++;
+        }
+        Assert.assertEquals(0, counts[2]);
+    }
+
+    /**
+     * 同一个 Feign 调用的重试，在实例个数以内不会选到同一个实例
+     */
+    @Test
+    public void testRetryReturnNext() {
+        List<ServiceInstance> instances = instances(5);
+        PeakEwmaLoadBalancer.Snapshot snapshot = loadBalancer.getSnapshot(instances);
+        for (int i = 0; i < 100; i++) {
+            List<String> triedInstances = new ArrayList<>();
+            for (int attempt = 0; attempt < instances.size(); attempt++) {
+                int chosen = loadBalancer.choose(snapshot, triedInstances);
+                String hostAndPort = instances.get(chosen).getHost() + ":" + instances.get(chosen).getPort();
+                Assert.assertFalse(triedInstances.contains(hostAndPort));
+                triedInstances.add(hostAndPort);
+            }
+        }
+    }
+
+    /**
+     * 实例列表不变的时候不会重新创建
+     */
+    @Test
+    public void testSnapshotReused() {
+        List<ServiceInstance> instances = instances(3);
+        Assert.assertSame(loadBalancer.getSnapshot(instances), loadBalancer.getSnapshot(instances));
+        Assert.assertNotSame(loadBalancer.getSnapshot(instances), loadBalancer.getSnapshot(instances(3)));
+    }
+}
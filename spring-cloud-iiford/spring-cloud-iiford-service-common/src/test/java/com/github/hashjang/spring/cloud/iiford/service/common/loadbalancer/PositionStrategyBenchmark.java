@@ -0,0 +1,91 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer;
+
+import brave.Tracing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比 TRACE_CACHE 与 TRACE_HASH 两种计算实例位置的方式
+ * 每次调用都是一个新的 traceId 加一次重试，模拟大量不同请求的情况
+ * main 方法先统计 100 万个不同 traceId 之后两种方式占用的堆内存，再跑 JMH 统计吞吐量与每次调用分配的内存
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class PositionStrategyBenchmark {
+    private static final int INSTANCE_COUNT = 10;
+
+    @Param({"TRACE_CACHE", "TRACE_HASH"})
+    private PositionStrategy positionStrategy;
+
+    private RoundRobinWithRequestSeparatedPositionLoadBalancer loadBalancer;
+
+    @Setup
+    public void setup() {
+        loadBalancer = newLoadBalancer(positionStrategy);
+    }
+
+    private static RoundRobinWithRequestSeparatedPositionLoadBalancer newLoadBalancer(PositionStrategy positionStrategy) {
+        return new RoundRobinWithRequestSeparatedPositionLoadBalancer(
+                null, "benchmarkService", Tracing.newBuilder().build().tracer(), positionStrategy
+        );
+    }
+
+    @Benchmark
+    public int firstCallAndRetry() {
+        long traceId = ThreadLocalRandom.current().nextLong();
+        return loadBalancer.position(traceId, 0, INSTANCE_COUNT) + loadBalancer.position(traceId, 1, INSTANCE_COUNT);
+    }
+
+    private static long retainedBytes(PositionStrategy positionStrategy, int traces) {
+        long before = usedHeap();
+        RoundRobinWithRequestSeparatedPositionLoadBalancer loadBalancer = newLoadBalancer(positionStrategy);
+        for (int i = 0; i < traces; i++) {
+            loadBalancer.position(ThreadLocalRandom.current().nextLong(), 0, INSTANCE_COUNT);
+        }
+        long after = usedHeap();
+        //保证统计的时候 loadBalancer 还没有被回收
+        loadBalancer.position(0, 0, INSTANCE_COUNT);
+        return after - before;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int traces = 1_000_000;
+        for (PositionStrategy positionStrategy : PositionStrategy.values()) {
+            System.out.printf("%s retained after %d traces: %.1f MB%n",
+                    positionStrategy, traces, retainedBytes(positionStrategy, traces) / 1024.0 / 1024.0);
+        }
+        new Runner(new OptionsBuilder()
+                .include(PositionStrategyBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
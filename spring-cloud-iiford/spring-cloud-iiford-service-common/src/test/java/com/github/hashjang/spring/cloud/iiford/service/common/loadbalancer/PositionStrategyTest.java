@@ -0,0 +1,49 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer;
+
+import brave.Tracing;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class PositionStrategyTest {
+
+    /**
+     * 同一个 traceId，实例个数以内的重试，每次都是不同的实例
+     */
+    @Test
+    public void testRetryReturnNext() {
+        for (PositionStrategy positionStrategy : PositionStrategy.values()) {
+            RoundRobinWithRequestSeparatedPositionLoadBalancer loadBalancer = new RoundRobinWithRequestSeparatedPositionLoadBalancer(
+                    null, "testService", Tracing.newBuilder().build().tracer(), positionStrategy
+            );
+            for (int i = 0; i < 100; i++) {
+                long traceId = ThreadLocalRandom.current().nextLong();
+                int instanceCount = ThreadLocalRandom.current().nextInt(1, 10);
+                Set<Integer> positions = new HashSet<>();
+                for (int attempt = 0; attempt < instanceCount; attempt++) {
+                    int position = loadBalancer.position(traceId, attempt, instanceCount);
+                    Assert.assertTrue(position >= 0 && position < instanceCount);
+                    Assert.assertTrue(positionStrategy + " returned same position", positions.add(position));
+                }
+            }
+        }
+    }
+
+    /**
+     * TRACE_HASH 不保存状态，同一个 traceId 与尝试次数，无论调用几次结果都一样
+     */
+    @Test
+    public void testTraceHashIsStateless() {
+        RoundRobinWithRequestSeparatedPositionLoadBalancer loadBalancer = new RoundRobinWithRequestSeparatedPositionLoadBalancer(
+                null, "testService", Tracing.newBuilder().build().tracer(), PositionStrategy.TRACE_HASH
+        );
+        long traceId = ThreadLocalRandom.current().nextLong();
+        int position = loadBalancer.position(traceId, 1, 7);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(position, loadBalancer.position(traceId, 1, 7));
+        }
+    }
+}
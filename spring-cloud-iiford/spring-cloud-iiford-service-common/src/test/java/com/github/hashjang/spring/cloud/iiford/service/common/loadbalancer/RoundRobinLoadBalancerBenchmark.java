@@ -0,0 +1,109 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer;
+
+import brave.Tracer;
+import brave.Tracing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 对比每次 choose 都排序并收集成新 List 的原始方式，与缓存排好序的实例数组的方式
+ * 实例列表和 CachingServiceInstanceListSupplier 缓存没过期时一样，每次返回同一个 List 对象
+ * 直接运行 main 方法，带上 GCProfiler 可以看到每次调用分配的内存（gc.alloc.rate.norm）
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundRobinLoadBalancerBenchmark {
+    @Param({"5", "50", "500"})
+    private int instanceCount;
+
+    private List<ServiceInstance> serviceInstances;
+    private RoundRobinWithRequestSeparatedPositionLoadBalancer loadBalancer;
+    private Tracer.SpanInScope spanInScope;
+    private int position;
+
+    @Setup
+    public void setup() {
+        List<ServiceInstance> instances = new ArrayList<>();
+        for (int i = 0; i < instanceCount; i++) {
+            instances.add(new DefaultServiceInstance("instance" + i, "benchmarkService", "10.0.0." + i, 8080, false));
+        }
+        //打乱顺序，和注册中心返回的一样是无序的
+        Collections.shuffle(instances);
+        serviceInstances = Collections.unmodifiableList(instances);
+        Tracer tracer = Tracing.newBuilder().build().tracer();
+        ServiceInstanceListSupplier serviceInstanceListSupplier = new ServiceInstanceListSupplier() {
+            @Override
+            public String getServiceId() {
+                return "benchmarkService";
+            }
+
+            @Override
+            public Flux<List<ServiceInstance>> get() {
+                return Flux.just(serviceInstances);
+            }
+        };
+        loadBalancer = new RoundRobinWithRequestSeparatedPositionLoadBalancer(serviceInstanceListSupplier, "benchmarkService", tracer);
+        //同一个 trace 内调用，和一个请求内的重试一样
+        spanInScope = tracer.withSpanInScope(tracer.newTrace());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        spanInScope.close();
+    }
+
+    @Benchmark
+    public ServiceInstance legacySortAndCollect() {
+        int pos = position++ % serviceInstances.size();
+        return serviceInstances.stream()
+                .sorted(Comparator.comparing(ServiceInstance::getInstanceId))
+                .collect(Collectors.toList()).get(pos);
+    }
+
+    @Benchmark
+    public ServiceInstance sortedSnapshot() {
+        int pos = position++ % serviceInstances.size();
+        return loadBalancer.getSortedInstances(serviceInstances)[pos];
+    }
+
+    @Benchmark
+    public ServiceInstance choose() {
+        return loadBalancer.choose().block().getServer();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(RoundRobinLoadBalancerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.loadbalancer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.loadbalancer.config.LoadBalancerZoneConfig;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+import java.util.Map;
+
+public class SameZoneOnlyServiceInstanceListSupplierTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final SameZoneOnlyServiceInstanceListSupplier supplier = new SameZoneOnlyServiceInstanceListSupplier(
+            new ServiceInstanceListSupplier() {
+                @Override
+                public String getServiceId() {
+                    return "testService";
+                }
+
+                @Override
+                public Flux<List<ServiceInstance>> get() {
+                    return Flux.empty();
+                }
+            },
+            new LoadBalancerZoneConfig("zone1"),
+            meterRegistry
+    );
+    private final ServiceInstance instance1 = new DefaultServiceInstance("instance1", "testService", "10.0.0.1", 8080, false, Map.of("zone", "zone1"));
+    private final ServiceInstance instance2 = new DefaultServiceInstance("instance2", "testService", "10.0.0.2", 8080, false, Map.of("zone", "zone2"));
+
+    /**
+     * 同一个上游 List 返回同一个过滤结果，上游 List 变化之后重新过滤
+     */
+    @Test
+    public void testMemoizedByIdentity() {
+        List<ServiceInstance> instances = List.of(instance1, instance2);
+        List<ServiceInstance> filtered = supplier.filteredByZone(instances);
+        Assert.assertEquals(List.of(instance1), filtered);
+        Assert.assertSame(filtered, supplier.filteredByZone(instances));
+        //内容一样但是不是同一个对象，重新过滤
+        Assert.assertNotSame(filtered, supplier.filteredByZone(List.of(instance1, instance2)));
+        Assert.assertEquals(1, meterRegistry.counter(SameZoneOnlyServiceInstanceListSupplier.ZONE_FILTER, "serviceId", "testService", "result", "hit").count(), 0);
+        Assert.assertEquals(2, meterRegistry.counter(SameZoneOnlyServiceInstanceListSupplier.ZONE_FILTER, "serviceId", "testService", "result", "miss").count(), 0);
+    }
+
+    /**
+     * 没有相同 zone 的实例的时候返回空列表
+     */
+    @Test
+    public void testNoSameZoneInstance() {
+        Assert.assertTrue(supplier.filteredByZone(List.of(instance2)).isEmpty());
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.hashjang.spring.cloud.iiford.service.common.undertow;
+
+import com.github.hashjang.spring.cloud.iiford.service.common.misc.RequestDeadline;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.undertow.Undertow;
+import io.undertow.server.HttpHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 直接起一个 Undertow，worker 线程池只有一个线程，和 Servlet 一样在 IO 线程上面执行 arrivalWrapper，分发到 worker 之后执行 dispatchedWrapper
+ */
+public class AdmissionControlTest {
+    private static final int PROCESS_MILLIS = 300;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private Undertow undertow;
+    private String url;
+
+    @Before
+    public void setUp() {
+        AdmissionControlProperties properties = new AdmissionControlProperties();
+        properties.setEnabled(true);
+        properties.setMaxQueueWait(Duration.ofMillis(100));
+        AdmissionControl admissionControl = new AdmissionControl(properties, meterRegistry);
+        HttpHandler controller = admissionControl.dispatchedWrapper().wrap(exchange -> {
+            Thread.sleep(PROCESS_MILLIS);
+            exchange.getResponseSender().send("ok");
+        });
+        undertow = Undertow.builder()
+                .addHttpListener(0, "127.0.0.1")
+                .setHandler(admissionControl.arrivalWrapper().wrap(exchange -> exchange.dispatch(worker, controller)))
+                .build();
+        undertow.start();
+        InetSocketAddress address = (InetSocketAddress) undertow.getListenerInfo().get(0).getAddress();
+        url = "http://127.0.0.1:" + address.getPort() + "/test";
+    }
+
+    @After
+    public void tearDown() {
+        undertow.stop();
+        worker.shutdownNow();
+    }
+
+    @Test
+    public void testAccepted() throws Exception {
+        Assert.assertEquals(200, send(null).join().statusCode());
+        Assert.assertEquals(200, send("1000").join().statusCode());
+    }
+
+    @Test
+    public void testDeadlineExpired() throws Exception {
+        Assert.assertEquals(503, send("0").join().statusCode());
+        Assert.assertEquals(1, meterRegistry.counter(AdmissionControl.REJECTED, "reason", "deadline_expired").count(), 0);
+    }
+
+    /**
+     * 第二个请求排队等第一个处理完，排队时间超过 maxQueueWait
+     */
+    @Test
+    public void testQueueTimeout() throws Exception {
+        CompletableFuture<HttpResponse<String>> first = send(null);
+        Thread.sleep(50);
+        CompletableFuture<HttpResponse<String>> second = send(null);
+        Assert.assertEquals(200, first.join().statusCode());
+        Assert.assertEquals(503, second.join().statusCode());
+        Assert.assertEquals(1, meterRegistry.counter(AdmissionControl.REJECTED, "reason", "queue_timeout").count(), 0);
+    }
+
+    private CompletableFuture<HttpResponse<String>> send(String remainingMillis) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url));
+        if (remainingMillis != null) {
+            builder.header(RequestDeadline.HEADER, remainingMillis);
+        }
+        return httpClient.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofString());
+    }
+}